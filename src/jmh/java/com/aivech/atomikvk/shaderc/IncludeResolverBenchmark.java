@@ -0,0 +1,99 @@
+package com.aivech.atomikvk.shaderc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Include lookups against a generated tree of include directories. Misses are left out on purpose, they rescan the
+ * directories and are expected to be rare.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IncludeResolverBenchmark {
+    @Param({"16", "1024"})
+    int filesPerDirectory;
+
+    private Path root;
+    private Path shader;
+    private List<Path> directories;
+    private IncludeResolver resolver;
+    private String standardInclude;
+    private String relativeInclude;
+    private Path contentsFile;
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("atomikvk-includes");
+        directories = new ArrayList<>();
+        for (int d = 0; d < 4; d++) {
+            Path dir = root.resolve("include" + d);
+            for (int i = 0; i < filesPerDirectory; i++) {
+                Path file = dir.resolve("lib" + (i % 8)).resolve("file" + i + ".glsl");
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, "float f" + d + "_" + i + "() { return " + i + ".0; }\n");
+            }
+            directories.add(dir);
+        }
+        shader = root.resolve("shader.frag");
+        Files.writeString(shader, "#version 450\nvoid main() {}\n");
+        Files.writeString(root.resolve("common.glsl"), "const float PI = 3.14159265;\n");
+
+        // the last directory, so every lookup walks the whole search path
+        int last = filesPerDirectory - 1;
+        standardInclude = "lib" + (last % 8) + "/file" + last + ".glsl";
+        relativeInclude = "common.glsl";
+        contentsFile = directories.get(3).resolve(standardInclude);
+
+        resolver = new IncludeResolver();
+        resolver.resolve(shader, standardInclude, false, directories);
+        resolver.contents(contentsFile);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        resolver.close();
+        try (var files = Files.walk(root)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+
+    @Benchmark
+    public Path resolveStandard() {
+        return resolver.resolve(shader, standardInclude, false, directories);
+    }
+
+    @Benchmark
+    public Path resolveRelative() {
+        return resolver.resolve(shader, relativeInclude, true, directories);
+    }
+
+    /**
+     * Cached contents, which still costs a stat to notice edits.
+     */
+    @Benchmark
+    public ByteBuffer cachedContents() throws IOException {
+        return resolver.contents(contentsFile);
+    }
+
+    /**
+     * Indexing a directory from scratch, what the first compile against it pays.
+     */
+    @Benchmark
+    public Path coldIndex() {
+        try (IncludeResolver fresh = new IncludeResolver()) {
+            return fresh.resolve(shader, standardInclude, false, directories);
+        }
+    }
+}
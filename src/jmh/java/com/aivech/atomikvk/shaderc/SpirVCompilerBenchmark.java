@@ -0,0 +1,110 @@
+package com.aivech.atomikvk.shaderc;
+
+import com.aivech.atomikvk.common.config.AtomikVkConfig;
+import com.aivech.atomikvk.common.resource.ShaderType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SpirVCompiler#compile} on a shader with a couple of includes. Cold compiles change the source before every
+ * call, so they always miss the SPIR-V cache and run shaderc; warm compiles are served from the cache.
+ * <p>
+ * Both write to the SPIR-V cache, run with {@code -Datomikvk.cacheDirectory} pointing somewhere disposable. The build
+ * does that for the {@code jmh} task.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpirVCompilerBenchmark {
+    private static final String FRAGMENT = """
+            #version 450
+            #include "lighting.glsl"
+            #include "tonemap.glsl"
+
+            layout(location = 0) in vec3 fragColor;
+            layout(location = 0) out vec4 outColor;
+
+            void main() {
+                outColor = vec4(tonemap(lighting(fragColor)), 1.0);
+            }
+            """;
+
+    private Path root;
+    private File warmShader;
+    private File coldShader;
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("atomikvk-shaders");
+        Files.writeString(root.resolve("lighting.glsl"), """
+                vec3 lighting(vec3 albedo) {
+                    vec3 n = normalize(vec3(0.3, 0.8, 0.5));
+                    return albedo * (0.2 + max(dot(n, vec3(0.0, 1.0, 0.0)), 0.0));
+                }
+                """);
+        Files.writeString(root.resolve("tonemap.glsl"), """
+                vec3 tonemap(vec3 color) {
+                    return color / (color + vec3(1.0));
+                }
+                """);
+        warmShader = root.resolve("warm.frag").toFile();
+        coldShader = root.resolve("cold.frag").toFile();
+        Files.writeString(warmShader.toPath(), FRAGMENT);
+        Files.writeString(coldShader.toPath(), FRAGMENT);
+
+        SpirVCompiler.init();
+        SpirVCompiler.compile(warmShader, ShaderType.FRAG).close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SpirVCompiler.destroy();
+        delete(root);
+        // only throw away a cache that was set aside for the run
+        if (System.getProperty("atomikvk.cacheDirectory") != null) delete(Path.of(AtomikVkConfig.CACHE_DIRECTORY, "spirv"));
+    }
+
+    @State(Scope.Thread)
+    public static class ColdSource {
+        private int edits;
+
+        @Setup(Level.Invocation)
+        public void edit(SpirVCompilerBenchmark benchmark) throws IOException {
+            // a new source every time, so the cache key changes. The size alternates too, the resolver only rereads
+            // files whose size or modification time changed and the latter may be too coarse to notice.
+            int edit = edits++;
+            Files.writeString(benchmark.coldShader.toPath(),
+                    FRAGMENT + String.format("// edit %010d%s%n", edit, edit % 2 == 0 ? "" : " "));
+        }
+    }
+
+    @Benchmark
+    public int cold(ColdSource source) throws IOException {
+        try (SpirVCompiler.Result result = SpirVCompiler.compile(coldShader, ShaderType.FRAG)) {
+            return result.bytes().remaining();
+        }
+    }
+
+    @Benchmark
+    public int warm() throws IOException {
+        try (SpirVCompiler.Result result = SpirVCompiler.compile(warmShader, ShaderType.FRAG)) {
+            return result.bytes().remaining();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (var files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Device side paths on a surfaceless device: buffer creation through the {@link MemoryAllocator}, staged uploads and
+ * a frame context's submit round trip.
+ * <p>
+ * Needs nothing but a Vulkan driver, so CI machines without a GPU can run it on Mesa's lavapipe by pointing the loader
+ * at its ICD, e.g. {@code VK_ICD_FILENAMES=/usr/share/vulkan/icd.d/lvp_icd.x86_64.json}. Numbers from lavapipe only
+ * compare against other lavapipe runs. Without any driver the setup fails and JMH moves on to the next benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceBenchmark {
+    @Param({"4096", "1048576"})
+    int uploadSize;
+
+    private VkInstance instance;
+    private PhysicalDevice gpu;
+    private VkDevice device;
+    private VkQueue queue;
+    private MemoryAllocator allocator;
+    private UploadService uploads;
+    private GraphicsBuffer uploadTarget;
+    private DescriptorLayoutCache descriptorLayouts;
+    private FrameContext frame;
+
+    @Setup
+    public void setup() {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var appInfo = VkApplicationInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_APPLICATION_INFO)
+                    .apiVersion(VK_API_VERSION_1_0);
+            var instanceInfo = VkInstanceCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_INSTANCE_CREATE_INFO)
+                    .pApplicationInfo(appInfo);
+            PointerBuffer pInstance = stack.mallocPointer(1);
+            _CHECK_(vkCreateInstance(instanceInfo, null, pInstance), "Failed to create VkInstance!");
+            instance = new VkInstance(pInstance.get(0), instanceInfo);
+
+            gpu = PhysicalDevice.selectVkPhysDevice(instance, VK_NULL_HANDLE, new CharSequence[0]);
+            var queueInfo = VkDeviceQueueCreateInfo.calloc(1, stack)
+                    .sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO)
+                    .queueFamilyIndex(gpu.graphicsIndex)
+                    .pQueuePriorities(stack.floats(1.0f));
+            var deviceInfo = VkDeviceCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_DEVICE_CREATE_INFO)
+                    .pQueueCreateInfos(queueInfo)
+                    .pEnabledFeatures(VkPhysicalDeviceFeatures.calloc(stack));
+            PointerBuffer pDevice = stack.mallocPointer(1);
+            _CHECK_(vkCreateDevice(gpu.device, deviceInfo, null, pDevice), "Failed to create logical device!");
+            device = new VkDevice(pDevice.get(0), gpu.device, deviceInfo);
+
+            PointerBuffer pQueue = stack.mallocPointer(1);
+            vkGetDeviceQueue(device, gpu.graphicsIndex, 0, pQueue);
+            queue = new VkQueue(pQueue.get(0), device);
+        }
+        allocator = new MemoryAllocator(gpu, device);
+        uploads = new UploadService(device, allocator, queue, gpu.graphicsIndex, UploadService.DEFAULT_RING_SIZE);
+        uploadTarget = new GraphicsBuffer(allocator, device, uploadSize,
+                VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                VK_SHARING_MODE_EXCLUSIVE,
+                VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+        descriptorLayouts = new DescriptorLayoutCache(device);
+        frame = new FrameContext(device, allocator, descriptorLayouts, gpu.limits().minUniformBufferOffsetAlignment(),
+                gpu.graphicsIndex, 0, 1L << 20, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (device != null) {
+            vkDeviceWaitIdle(device);
+            if (frame != null) frame.destroy(device);
+            if (descriptorLayouts != null) descriptorLayouts.destroy();
+            if (uploadTarget != null) uploadTarget.free(device);
+            if (uploads != null) uploads.destroy();
+            if (allocator != null) allocator.destroy();
+            vkDestroyDevice(device, null);
+        }
+        if (gpu != null) gpu.free();
+        if (instance != null) vkDestroyInstance(instance, null);
+    }
+
+    /**
+     * A device local buffer sub-allocated from an existing block, what streaming a mesh in pays per buffer.
+     */
+    @Benchmark
+    public long createAndFreeBuffer() {
+        var buffer = new GraphicsBuffer(allocator, device, 64 * 1024,
+                VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                VK_SHARING_MODE_EXCLUSIVE,
+                VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+        long handle = buffer.buffer;
+        buffer.free(device);
+        return handle;
+    }
+
+    /**
+     * Stages {@code uploadSize} bytes, submits the copy and waits for it.
+     */
+    @Benchmark
+    public void uploadAndWait() {
+        var ticket = uploads.upload(uploadTarget, 0, uploadSize, staging -> {
+            for (int i = 0; i < uploadSize; i += Long.BYTES) staging.putLong(i);
+        });
+        uploads.await(ticket);
+    }
+
+    /**
+     * Recycles the frame context, records an empty command buffer and submits it, the fixed cost of every frame.
+     */
+    @Benchmark
+    public void frameSubmit() {
+        frame.begin(device);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var beginInfo = VkCommandBufferBeginInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+                    .flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+            _CHECK_(vkBeginCommandBuffer(frame.commandBuffer, beginInfo), "Failed to begin recording command buffer.");
+            _CHECK_(vkEndCommandBuffer(frame.commandBuffer), "Failed to record command buffer.");
+            var submitInfo = VkSubmitInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                    .pCommandBuffers(stack.pointers(frame.commandBuffer));
+            vkResetFences(device, frame.fence);
+            synchronized (queue) {
+                _CHECK_(vkQueueSubmit(queue, submitInfo, frame.fence), "Failed to submit frame.");
+            }
+        }
+    }
+
+    /**
+     * What a draw pays for its own uniforms: an aligned slice of the frame's mapped ring, bound by dynamic offset.
+     */
+    @Benchmark
+    public long uniformSlice() {
+        frame.begin(device);
+        long sum = 0;
+        for (int i = 0; i < 1024; i++) {
+            long offset = frame.allocateUniform(64);
+            MemoryUtil.memPutFloat(frame.transientAddress(offset), i);
+            sum += offset;
+        }
+        return sum;
+    }
+}
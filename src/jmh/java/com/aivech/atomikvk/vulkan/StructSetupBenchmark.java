@@ -0,0 +1,104 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.vulkan.KHRSwapchain.VK_STRUCTURE_TYPE_PRESENT_INFO_KHR;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * The per-frame struct setup of the frame loop: the submit and present infos and the render pass begin info. None of
+ * it reaches the driver, this only measures building the structs on the {@link MemoryStack} versus the heap.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructSetupBenchmark {
+    // stand-ins for handles, the structs only store them
+    private final long semaphore = 0x1000L;
+    private final long swapchain = 0x2000L;
+    private final long renderPass = 0x3000L;
+    private final long framebuffer = 0x4000L;
+    private final long commandBuffer = 0x5000L;
+
+    @Benchmark
+    public long submitAndPresentStack() {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var submitInfo = VkSubmitInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                    .waitSemaphoreCount(1)
+                    .pWaitSemaphores(stack.longs(semaphore))
+                    .pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT))
+                    .pCommandBuffers(stack.pointers(commandBuffer))
+                    .pSignalSemaphores(stack.longs(semaphore + 1));
+            var presentInfo = VkPresentInfoKHR.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_PRESENT_INFO_KHR)
+                    .pWaitSemaphores(stack.longs(semaphore + 1))
+                    .swapchainCount(1)
+                    .pSwapchains(stack.longs(swapchain))
+                    .pImageIndices(stack.ints(0));
+            return submitInfo.address() ^ presentInfo.address();
+        }
+    }
+
+    @Benchmark
+    public long submitAndPresentHeap() {
+        var waitSemaphores = MemoryUtil.memAllocLong(1).put(0, semaphore);
+        var waitStages = MemoryUtil.memAllocInt(1).put(0, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT);
+        var commandBuffers = MemoryUtil.memAllocPointer(1).put(0, commandBuffer);
+        var signalSemaphores = MemoryUtil.memAllocLong(1).put(0, semaphore + 1);
+        var swapchains = MemoryUtil.memAllocLong(1).put(0, swapchain);
+        var imageIndices = MemoryUtil.memAllocInt(1).put(0, 0);
+        var submitInfo = VkSubmitInfo.calloc()
+                .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                .waitSemaphoreCount(1)
+                .pWaitSemaphores(waitSemaphores)
+                .pWaitDstStageMask(waitStages)
+                .pCommandBuffers(commandBuffers)
+                .pSignalSemaphores(signalSemaphores);
+        var presentInfo = VkPresentInfoKHR.calloc()
+                .sType(VK_STRUCTURE_TYPE_PRESENT_INFO_KHR)
+                .pWaitSemaphores(signalSemaphores)
+                .swapchainCount(1)
+                .pSwapchains(swapchains)
+                .pImageIndices(imageIndices);
+        long result = submitInfo.address() ^ presentInfo.address();
+        submitInfo.free();
+        presentInfo.free();
+        MemoryUtil.memFree(waitSemaphores);
+        MemoryUtil.memFree(waitStages);
+        MemoryUtil.memFree(commandBuffers);
+        MemoryUtil.memFree(signalSemaphores);
+        MemoryUtil.memFree(swapchains);
+        MemoryUtil.memFree(imageIndices);
+        return result;
+    }
+
+    @Benchmark
+    public long renderPassBeginStack() {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var beginInfo = VkCommandBufferBeginInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+                    .flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+            var renderPassInfo = VkRenderPassBeginInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO)
+                    .renderPass(renderPass)
+                    .framebuffer(framebuffer);
+            renderPassInfo.renderArea().extent().set(1920, 1080);
+            var clearValues = VkClearValue.calloc(1, stack);
+            clearValues.color().float32(0, 0f).float32(1, 0f).float32(2, 0f).float32(3, 1f);
+            renderPassInfo.pClearValues(clearValues);
+            var viewport = VkViewport.calloc(1, stack).width(1920).height(1080).maxDepth(1f);
+            var scissor = VkRect2D.calloc(1, stack);
+            scissor.extent().set(1920, 1080);
+            return beginInfo.address() ^ renderPassInfo.address() ^ viewport.address() ^ scissor.address();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.joml.Vector2f;
+import org.joml.Vector2fc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.aivech.atomikvk.vulkan.VertexFormat.Encoding.*;
+
+/**
+ * Packing vertex data through {@link VertexBuilder} in full float, compact and separate stream layouts, against the
+ * per-object copy the engine used to do, plus index packing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VertexPackingBenchmark {
+    private static final VertexFormat FULL = VertexFormat.interleaved(FLOAT2, FLOAT3);
+    private static final VertexFormat COMPACT = VertexFormat.interleaved(HALF2, UNORM8X3);
+    private static final VertexFormat SEPARATE = VertexFormat.separate(FLOAT2, FLOAT3);
+    private static final VertexFormat MESH = VertexFormat.interleaved(HALF3, OCT16, UNORM8X4);
+
+    @Param({"19", "4096", "65536"})
+    int vertexCount;
+
+    private ObjectVertex[] objects;
+    private float[] positions;
+    private float[] colors;
+    private float[] positions3;
+    private float[] normals;
+    private float[] colors4;
+    private short[] indices;
+    private ByteBuffer objectTarget;
+    private ByteBuffer indexTarget;
+    private VertexBuilder full;
+    private VertexBuilder compact;
+    private VertexBuilder separate;
+    private VertexBuilder mesh;
+
+    @Setup
+    public void setup() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        objects = new ObjectVertex[vertexCount];
+        positions = new float[vertexCount * 2];
+        colors = new float[vertexCount * 3];
+        positions3 = new float[vertexCount * 3];
+        normals = new float[vertexCount * 3];
+        colors4 = new float[vertexCount * 4];
+        for (int i = 0; i < vertexCount; i++) {
+            for (int c = 0; c < 2; c++) positions[2 * i + c] = random.nextFloat(-1f, 1f);
+            for (int c = 0; c < 3; c++) {
+                colors[3 * i + c] = random.nextFloat();
+                positions3[3 * i + c] = random.nextFloat(-100f, 100f);
+                normals[3 * i + c] = random.nextFloat(-1f, 1f);
+            }
+            for (int c = 0; c < 4; c++) colors4[4 * i + c] = random.nextFloat();
+            objects[i] = new ObjectVertex(new Vector2f(positions[2 * i], positions[2 * i + 1]),
+                    new Vector3f(colors[3 * i], colors[3 * i + 1], colors[3 * i + 2]));
+        }
+        indices = new short[vertexCount];
+        for (int i = 0; i < vertexCount; i++) indices[i] = (short) i;
+        // mapped device memory is native and native endian, so are these
+        objectTarget = MemoryUtil.memAlloc(vertexCount * FULL.stride(0));
+        indexTarget = MemoryUtil.memAlloc(Math.max(vertexCount, DemoGeometry.INDICES.length) * Short.BYTES);
+        full = new VertexBuilder(FULL, vertexCount);
+        compact = new VertexBuilder(COMPACT, vertexCount);
+        separate = new VertexBuilder(SEPARATE, vertexCount);
+        mesh = new VertexBuilder(MESH, vertexCount);
+    }
+
+    @TearDown
+    public void tearDown() {
+        MemoryUtil.memFree(objectTarget);
+        MemoryUtil.memFree(indexTarget);
+        full.close();
+        compact.close();
+        separate.close();
+        mesh.close();
+    }
+
+    /**
+     * The old layout: one JOML vector pair per vertex, five relative puts each.
+     */
+    @Benchmark
+    public ByteBuffer objectPuts() {
+        ByteBuffer buffer = objectTarget.clear();
+        for (var v : objects) {
+            buffer.putFloat(v.pos().x());
+            buffer.putFloat(v.pos().y());
+            buffer.putFloat(v.color().x());
+            buffer.putFloat(v.color().y());
+            buffer.putFloat(v.color().z());
+        }
+        return buffer;
+    }
+
+    /**
+     * The same 20 byte layout from flat arrays.
+     */
+    @Benchmark
+    public VertexBuilder fullInterleaved() {
+        return full.put(0, positions).put(1, colors);
+    }
+
+    /**
+     * Half positions and 8 bit colors, 8 bytes a vertex.
+     */
+    @Benchmark
+    public VertexBuilder compactInterleaved() {
+        return compact.put(0, positions).put(1, colors);
+    }
+
+    /**
+     * Full floats in one stream per attribute, both filled by bulk copies.
+     */
+    @Benchmark
+    public VertexBuilder separateStreams() {
+        return separate.put(0, positions).put(1, colors);
+    }
+
+    /**
+     * A typical lit mesh vertex: half positions, octahedral normals and 8 bit colors in 16 bytes instead of 40.
+     */
+    @Benchmark
+    public VertexBuilder compactMesh() {
+        return mesh.put(0, positions3).put(1, normals).put(2, colors4);
+    }
+
+    @Benchmark
+    public ByteBuffer engineIndexCopy() {
+        indexTarget.clear();
+        DemoGeometry.indexCopy(indexTarget);
+        return indexTarget;
+    }
+
+    @Benchmark
+    public ByteBuffer relativeIndexPuts() {
+        ByteBuffer buffer = indexTarget.clear();
+        for (short index : indices) buffer.putShort(index);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer bulkIndexArray() {
+        indexTarget.clear().asShortBuffer().put(indices);
+        return indexTarget;
+    }
+
+    private record ObjectVertex(Vector2fc pos, Vector3fc color) {
+    }
+}
@@ -1,15 +1,30 @@
 package com.aivech.atomikvk;
 
+import com.aivech.atomikvk.common.capture.FrameConsumer;
+import com.aivech.atomikvk.common.capture.PngFrameWriter;
+import com.aivech.atomikvk.common.capture.ZstdFrameWriter;
 import com.aivech.atomikvk.glfw.GLFWHelper;
+import com.aivech.atomikvk.headless.HeadlessHelper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.lwjgl.system.Configuration;
 
+import java.nio.file.Path;
+import java.util.Arrays;
+
 public class AtomikVk {
 
     public static final Logger LOGGER = LogManager.getLogger("AtomikVk");
 
+    /**
+     * {@code --headless [--size=WIDTHxHEIGHT] [--frames=N] [--capture=png|zstd:DIRECTORY]} renders offscreen without
+     * opening a window, optionally writing every frame out.
+     */
     public static void main(String[] args) {
+        if (Arrays.asList(args).contains("--headless")) {
+            runHeadless(args);
+            return;
+        }
         try {
             Configuration.DEBUG_MEMORY_ALLOCATOR.set(true);
             GLFWHelper.glfwSetupWindow();
@@ -22,4 +37,39 @@ public class AtomikVk {
             GLFWHelper.glfwCleanup();
         }
     }
+
+    private static void runHeadless(String[] args) {
+        int width = HeadlessHelper.DEFAULT_WIDTH;
+        int height = HeadlessHelper.DEFAULT_HEIGHT;
+        long frames = 600;
+        FrameConsumer capture = null;
+        for (String arg : args) {
+            if (arg.startsWith("--size=")) {
+                String[] size = arg.substring("--size=".length()).split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if (arg.startsWith("--frames=")) {
+                frames = Long.parseLong(arg.substring("--frames=".length()));
+            } else if (arg.startsWith("--capture=")) {
+                String[] spec = arg.substring("--capture=".length()).split(":", 2);
+                Path directory = Path.of(spec.length > 1 ? spec[1] : "capture");
+                capture = switch (spec[0]) {
+                    case "png" -> new PngFrameWriter(directory);
+                    case "zstd" -> new ZstdFrameWriter(directory);
+                    default -> throw new IllegalArgumentException("Unknown capture format " + spec[0]);
+                };
+            }
+        }
+        try {
+            Configuration.DEBUG_MEMORY_ALLOCATOR.set(true);
+            HeadlessHelper.setup(width, height);
+            if (capture != null) HeadlessHelper.capture(capture);
+            HeadlessHelper.renderFrames(frames);
+        } catch (Throwable e) {
+            LOGGER.fatal("Fatal error.", e);
+            throw e;
+        } finally {
+            HeadlessHelper.cleanup();
+        }
+    }
 }
@@ -2,6 +2,11 @@ package com.aivech.atomikvk.common;
 
 public interface GraphicsProvider {
     void init(long window);
+
+    /**
+     * Initializes without a window, frames are rendered into offscreen images of the given size.
+     */
+    void initHeadless(int width, int height);
     void drawFrame();
 
     void windowResizeUpdate();
@@ -0,0 +1,60 @@
+package com.aivech.atomikvk.common.capture;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A rendered frame read back to host memory. The pixels are a view of the mapped readback buffer, not a copy, and are
+ * only valid until the frame is closed. Consumers must close every frame they are handed, readback stops capturing
+ * once all of its buffers are held.
+ */
+public final class CapturedFrame implements AutoCloseable {
+    public static final int CHANNELS = 4;
+
+    private final long frameNumber;
+    private final int width;
+    private final int height;
+    private final ByteBuffer pixels;
+    private final Runnable release;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public CapturedFrame(long frameNumber, int width, int height, ByteBuffer pixels, Runnable release) {
+        this.frameNumber = frameNumber;
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels.asReadOnlyBuffer();
+        this.release = release;
+    }
+
+    public long frameNumber() {
+        return frameNumber;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * @return tightly packed 8 bit sRGB RGBA rows, top row first
+     */
+    public ByteBuffer pixels() {
+        if (closed.get()) throw new IllegalStateException("Frame " + frameNumber + " has already been released.");
+        return pixels.duplicate();
+    }
+
+    public int stride() {
+        return width * CHANNELS;
+    }
+
+    /**
+     * Hands the buffer back to readback. Safe to call more than once.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) release.run();
+    }
+}
@@ -0,0 +1,10 @@
+package com.aivech.atomikvk.common.capture;
+
+/**
+ * Receives read back frames on a readback worker thread. Takes ownership of the frame and must close it, possibly
+ * later and from another thread.
+ */
+@FunctionalInterface
+public interface FrameConsumer {
+    void accept(CapturedFrame frame);
+}
@@ -0,0 +1,37 @@
+package com.aivech.atomikvk.common.capture;
+
+import com.aivech.atomikvk.AtomikVk;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.lwjgl.stb.STBImageWrite.stbi_write_png;
+
+/**
+ * Encodes every frame to {@code frame_NNNNNN.png} in a directory. Runs on the readback workers, so frames encode in
+ * parallel.
+ */
+public class PngFrameWriter implements FrameConsumer {
+    private final Path directory;
+
+    public PngFrameWriter(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create capture directory " + directory, e);
+        }
+    }
+
+    @Override
+    public void accept(CapturedFrame frame) {
+        try (frame) {
+            Path file = directory.resolve(String.format("frame_%06d.png", frame.frameNumber()));
+            if (!stbi_write_png(file.toString(), frame.width(), frame.height(), CapturedFrame.CHANNELS, frame.pixels(), frame.stride())) {
+                AtomikVk.LOGGER.error("Failed to write " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.aivech.atomikvk.common.capture;
+
+import com.aivech.atomikvk.AtomikVk;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.lwjgl.util.zstd.Zstd.*;
+
+/**
+ * Writes every frame's raw RGBA pixels to {@code frame_NNNNNN.rgba.zst}. Much cheaper than PNG at low levels, meant for
+ * regression runs that compare pixels rather than look at them.
+ */
+public class ZstdFrameWriter implements FrameConsumer {
+    public static final int DEFAULT_LEVEL = 3;
+
+    private final Path directory;
+    private final int level;
+
+    public ZstdFrameWriter(Path directory) {
+        this(directory, DEFAULT_LEVEL);
+    }
+
+    public ZstdFrameWriter(Path directory, int level) {
+        this.directory = directory;
+        this.level = level;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create capture directory " + directory, e);
+        }
+    }
+
+    @Override
+    public void accept(CapturedFrame frame) {
+        Path file = directory.resolve(String.format("frame_%06d.rgba.zst", frame.frameNumber()));
+        ByteBuffer compressed;
+        try (frame) {
+            ByteBuffer pixels = frame.pixels();
+            compressed = MemoryUtil.memAlloc((int) ZSTD_compressBound(pixels.remaining()));
+            long size = ZSTD_compress(compressed, pixels, level);
+            if (ZSTD_isError(size)) {
+                MemoryUtil.memFree(compressed);
+                AtomikVk.LOGGER.error("Failed to compress frame " + frame.frameNumber() + ": " + ZSTD_getErrorName(size));
+                return;
+            }
+            compressed.limit((int) size);
+        }
+        // the readback buffer is already released, only the compressed copy is written out
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (compressed.hasRemaining()) channel.write(compressed);
+        } catch (IOException e) {
+            AtomikVk.LOGGER.error("Failed to write " + file, e);
+        } finally {
+            MemoryUtil.memFree(compressed);
+        }
+    }
+}
@@ -2,4 +2,32 @@ package com.aivech.atomikvk.common.config;
 
 public class AtomikVkConfig {
     public static final boolean FORCE_OPEN_GL = false;
+
+    // more frames in flight keep the GPU busier at the cost of input latency
+    public static final int FRAMES_IN_FLIGHT = 2;
+    public static final long FRAME_TRANSIENT_BUFFER_SIZE = 4L << 20;
+    // shared vertex and index buffers all meshes are packed into
+    public static final int GEOMETRY_ARENA_VERTICES = 1 << 20;
+    public static final int GEOMETRY_ARENA_INDICES = 4 << 20;
+    // workers recording secondary command buffers, the render thread only waits on them
+    public static final int RECORDING_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    // host buffers frames are read back into, and the threads encoding them. Frames are dropped when all are busy.
+    public static final int READBACK_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int READBACK_SLOTS = FRAMES_IN_FLIGHT + READBACK_THREADS;
+    // threads compressing and decompressing mesh and texture cache chunks, straight into upload staging memory
+    public static final int CHUNK_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    // threads decoding textures, each copies its pixels into staging memory once
+    public static final int TEXTURE_LOAD_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    // timestamp queries around render passes, costs a few queries per frame
+    public static final boolean GPU_PROFILER = true;
+
+    // overridable so benchmarks and CI runs don't share the cache of a normal run
+    public static final String CACHE_DIRECTORY = System.getProperty("atomikvk.cacheDirectory", "cache");
+    public static final boolean COMPRESS_PIPELINE_CACHE = true;
+    public static final boolean CACHE_SPIRV = true;
+    public static final int MESH_CACHE_COMPRESSION_LEVEL = 9;
+    // zstd on top of block compression, converted textures are written once and read on every run
+    public static final int TEXTURE_CACHE_COMPRESSION_LEVEL = 15;
+    // recompile shaders and rebuild their pipelines when the GLSL files they were loaded from change
+    public static final boolean SHADER_HOT_RELOAD = false;
 }
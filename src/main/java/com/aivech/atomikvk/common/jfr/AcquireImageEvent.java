@@ -0,0 +1,21 @@
+package com.aivech.atomikvk.common.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * vkAcquireNextImageKHR, which blocks when the presentation engine has no free image.
+ */
+@Name("atomikvk.AcquireImage")
+@Label("Acquire Image")
+@Category({"AtomikVk", "Vulkan"})
+@StackTrace(false)
+public final class AcquireImageEvent extends Event {
+    @Label("Frame Number")
+    public long frameNumber;
+
+    @Label("Swapchain Image")
+    public int imageIndex;
+
+    @Label("Result")
+    public int result;
+}
@@ -0,0 +1,22 @@
+package com.aivech.atomikvk.common.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Creation of a GraphicsBuffer and the allocation backing it.
+ */
+@Name("atomikvk.BufferCreate")
+@Label("Buffer Create")
+@Category({"AtomikVk", "Vulkan"})
+@StackTrace(false)
+public final class BufferCreateEvent extends Event {
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Usage Flags")
+    public int usage;
+
+    @Label("Memory Type")
+    public int memoryType;
+}
@@ -0,0 +1,21 @@
+package com.aivech.atomikvk.common.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Time the render thread spends blocked in vkWaitForFences.
+ */
+@Name("atomikvk.FenceWait")
+@Label("Fence Wait")
+@Category({"AtomikVk", "Vulkan"})
+@StackTrace(false)
+public final class FenceWaitEvent extends Event {
+    @Label("Frame Number")
+    public long frameNumber;
+
+    @Label("Frame Context")
+    public int frameContext;
+
+    @Label("Waiting For")
+    public String reason;
+}
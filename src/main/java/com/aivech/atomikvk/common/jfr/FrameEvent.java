@@ -0,0 +1,21 @@
+package com.aivech.atomikvk.common.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * One call to drawFrame, from polling uploads to present.
+ */
+@Name("atomikvk.Frame")
+@Label("Frame")
+@Category({"AtomikVk", "Rendering"})
+@StackTrace(false)
+public final class FrameEvent extends Event {
+    @Label("Frame Number")
+    public long frameNumber;
+
+    @Label("Frame Context")
+    public int frameContext;
+
+    @Label("Swapchain Image")
+    public int imageIndex;
+}
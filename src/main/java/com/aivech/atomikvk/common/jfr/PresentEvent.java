@@ -0,0 +1,21 @@
+package com.aivech.atomikvk.common.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * vkQueuePresentKHR, including the time spent waiting for the queue lock.
+ */
+@Name("atomikvk.Present")
+@Label("Present")
+@Category({"AtomikVk", "Vulkan"})
+@StackTrace(false)
+public final class PresentEvent extends Event {
+    @Label("Frame Number")
+    public long frameNumber;
+
+    @Label("Swapchain Image")
+    public int imageIndex;
+
+    @Label("Result")
+    public int result;
+}
@@ -0,0 +1,21 @@
+package com.aivech.atomikvk.common.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * vkQueueSubmit of a frame, including the time spent waiting for the queue lock.
+ */
+@Name("atomikvk.QueueSubmit")
+@Label("Queue Submit")
+@Category({"AtomikVk", "Vulkan"})
+@StackTrace(false)
+public final class QueueSubmitEvent extends Event {
+    @Label("Frame Number")
+    public long frameNumber;
+
+    @Label("Swapchain Image")
+    public int imageIndex;
+
+    @Label("Queue Family")
+    public int queueFamily;
+}
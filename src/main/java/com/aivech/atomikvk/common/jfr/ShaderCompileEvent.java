@@ -0,0 +1,25 @@
+package com.aivech.atomikvk.common.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * One GLSL to SPIR-V compile, or the SPIR-V cache lookup that made it unnecessary.
+ */
+@Name("atomikvk.ShaderCompile")
+@Label("Shader Compile")
+@Category({"AtomikVk", "Shaders"})
+@StackTrace(false)
+public final class ShaderCompileEvent extends Event {
+    @Label("Source")
+    public String source;
+
+    @Label("Stage")
+    public String stage;
+
+    @Label("Cache Hit")
+    public boolean cacheHit;
+
+    @Label("SPIR-V Size")
+    @DataAmount
+    public long spirVSize;
+}
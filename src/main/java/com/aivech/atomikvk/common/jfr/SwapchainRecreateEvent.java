@@ -0,0 +1,28 @@
+package com.aivech.atomikvk.common.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * A swapchain rebuild after the window was resized or the surface went out of date.
+ */
+@Name("atomikvk.SwapchainRecreate")
+@Label("Swapchain Recreate")
+@Category({"AtomikVk", "Rendering"})
+@StackTrace(false)
+public final class SwapchainRecreateEvent extends Event {
+    @Label("Frame Number")
+    public long frameNumber;
+
+    @Label("Width")
+    public int width;
+
+    @Label("Height")
+    public int height;
+
+    @Label("Image Count")
+    public int imageCount;
+
+    @Label("Coalesced Resize Events")
+    @Description("Framebuffer size callbacks folded into this rebuild")
+    public int coalescedRequests;
+}
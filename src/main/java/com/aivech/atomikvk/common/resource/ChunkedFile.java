@@ -0,0 +1,235 @@
+package com.aivech.atomikvk.common.resource;
+
+import com.aivech.atomikvk.common.config.AtomikVkConfig;
+import com.google.common.collect.ImmutableList;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.lwjgl.util.zstd.Zstd.*;
+
+/**
+ * The container under the mesh and texture caches: a number of streams, each cut into chunks compressed on their own
+ * with zstd, so a stream decompresses in parallel and straight into its destination. Each format writes its own
+ * header first, the chunk table and the payload follow:
+ * <pre>
+ * chunks   stream, offset in the stream, size, offset in the file, compressed size
+ * payload  the compressed chunks
+ * </pre>
+ * Little endian like the headers. Strings in headers are an unsigned short length followed by UTF-8. The whole file
+ * is mapped, only the chunks of the streams asked for are ever touched.
+ */
+public final class ChunkedFile {
+    public static final int CHUNK_SIZE = 256 * 1024;
+    private static final int CHUNK_ENTRY_SIZE = 3 * Integer.BYTES + 2 * Long.BYTES;
+
+    // compresses and decompresses chunks for every format, also free for other per-asset CPU work such as encoding
+    public static final ExecutorService WORKERS;
+    // zstd reads back what it wrote for matches, which is slow on write-combined staging memory, so every chunk
+    // decompresses into a cached scratch buffer first and is then copied out in one sequential pass
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> MemoryUtil.memAlloc(CHUNK_SIZE));
+
+    static {
+        AtomicInteger threadCount = new AtomicInteger();
+        WORKERS = Executors.newFixedThreadPool(AtomikVkConfig.CHUNK_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "chunk-worker-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final String kind;
+    private final ByteBuffer contents;
+    private final long[] streamSizes;
+    private final ImmutableList<Chunk> chunks;
+
+    private record Chunk(int stream, long offset, int size, long fileOffset, int compressedSize) {
+    }
+
+    /**
+     * Reads the chunk table at the contents' position and checks that it covers every stream exactly.
+     * @param streamSizes every stream's uncompressed size, as the format's header describes it
+     * @param kind what the file holds, for messages
+     */
+    public ChunkedFile(ByteBuffer contents, int chunkCount, long[] streamSizes, String kind) throws IOException {
+        this.contents = contents;
+        this.streamSizes = streamSizes;
+        this.kind = kind;
+        if (chunkCount < 0) throw new IOException("Negative " + kind + " chunk count");
+        long[] covered = new long[streamSizes.length];
+        ImmutableList.Builder<Chunk> chunks = ImmutableList.builder();
+        for (int i = 0; i < chunkCount; i++) {
+            Chunk chunk = new Chunk(contents.getInt(), contents.getLong(), contents.getInt(), contents.getLong(), contents.getInt());
+            if (chunk.stream < 0 || chunk.stream >= streamSizes.length || chunk.size < 0 || chunk.size > CHUNK_SIZE
+                    || chunk.offset < 0 || chunk.offset + chunk.size > streamSizes[chunk.stream]
+                    || chunk.fileOffset < 0 || chunk.compressedSize < 0
+                    || chunk.fileOffset + chunk.compressedSize > contents.capacity()) {
+                throw new IOException(kind + " chunk " + i + " is out of bounds");
+            }
+            covered[chunk.stream] += chunk.size;
+            chunks.add(chunk);
+        }
+        for (int stream = 0; stream < covered.length; stream++) {
+            if (covered[stream] != streamSizes[stream]) throw new IOException(kind + " stream " + stream + " is incomplete");
+        }
+        this.chunks = chunks.build();
+    }
+
+    /**
+     * Maps a whole file for reading.
+     * @param headerSize the fixed part of the format's header, anything shorter is truncated
+     */
+    public static ByteBuffer map(Path path, int headerSize, String kind) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < headerSize) throw new IOException("Truncated " + kind + " file " + path);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    public long streamSize(int stream) {
+        return streamSizes[stream];
+    }
+
+    /**
+     * Decompresses several streams, each to the position of its target, on the workers and advances the positions.
+     * Every chunk of every stream runs in parallel, this blocks until all are done.
+     */
+    public void decompress(int[] streams, ByteBuffer[] targets) {
+        if (streams.length != targets.length) throw new IllegalArgumentException("One target per stream");
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (int i = 0; i < streams.length; i++) {
+            int stream = streams[i];
+            if (stream < 0 || stream >= streamSizes.length) throw new IndexOutOfBoundsException("Stream " + stream + " out of " + streamSizes.length);
+            if (targets[i].remaining() < streamSizes[stream]) throw new BufferOverflowException();
+            long address = MemoryUtil.memAddress(targets[i]);
+            for (Chunk chunk : chunks) {
+                if (chunk.stream == stream) pending.add(CompletableFuture.runAsync(() -> decompress(chunk, address + chunk.offset), WORKERS));
+            }
+        }
+        try {
+            CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+        for (int i = 0; i < streams.length; i++) {
+            targets[i].position(targets[i].position() + (int) streamSizes[streams[i]]);
+        }
+    }
+
+    private void decompress(Chunk chunk, long target) {
+        ByteBuffer scratch = SCRATCH.get().clear();
+        long size = ZSTD_decompress(scratch, contents.slice((int) chunk.fileOffset, chunk.compressedSize));
+        if (ZSTD_isError(size)) throw new RuntimeException("Corrupt " + kind + " chunk: " + ZSTD_getErrorName(size));
+        if (size != chunk.size) throw new RuntimeException(kind + " chunk decompressed to " + size + " bytes instead of " + chunk.size);
+        MemoryUtil.memCopy(MemoryUtil.memAddress(scratch), target, size);
+    }
+
+    /**
+     * @return how many chunks {@link #write} cuts streams of these sizes into, for the format's header
+     */
+    public static int chunkCount(List<ByteBuffer> streams) {
+        int count = 0;
+        for (ByteBuffer stream : streams) count += (stream.remaining() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        return count;
+    }
+
+    /**
+     * Compresses every stream from its position to its limit on the workers and writes the format's header, the
+     * chunk table and the payload to a temporary file that then replaces the path in one move, so readers never see
+     * a partial file.
+     * @param header the format's header from its position to its limit, already holding {@link #chunkCount}
+     */
+    public static void write(Path path, ByteBuffer header, List<ByteBuffer> streams, int level, String kind) throws IOException {
+        List<CompressedChunk> compressed = new ArrayList<>();
+        try {
+            List<CompletableFuture<CompressedChunk>> pending = new ArrayList<>();
+            for (int stream = 0; stream < streams.size(); stream++) {
+                ByteBuffer data = streams.get(stream);
+                for (int offset = 0; offset < data.remaining(); offset += CHUNK_SIZE) {
+                    ByteBuffer slice = data.slice(data.position() + offset, Math.min(CHUNK_SIZE, data.remaining() - offset));
+                    int index = stream, start = offset;
+                    pending.add(CompletableFuture.supplyAsync(() -> compress(index, start, slice, level, kind), WORKERS));
+                }
+            }
+            RuntimeException failure = null;
+            for (CompletableFuture<CompressedChunk> chunk : pending) {
+                // collect every chunk that made it, so the finally block frees them all
+                try {
+                    compressed.add(chunk.join());
+                } catch (CompletionException e) {
+                    if (failure == null) failure = e.getCause() instanceof RuntimeException cause ? cause : e;
+                }
+            }
+            if (failure != null) throw failure;
+
+            ByteBuffer table = MemoryUtil.memAlloc(compressed.size() * CHUNK_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                long fileOffset = header.remaining() + table.capacity();
+                for (CompressedChunk chunk : compressed) {
+                    table.putInt(chunk.stream).putLong(chunk.offset).putInt(chunk.size)
+                            .putLong(fileOffset).putInt(chunk.data.remaining());
+                    fileOffset += chunk.data.remaining();
+                }
+                table.flip();
+
+                Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    ByteBuffer headerView = header.duplicate();
+                    while (headerView.hasRemaining()) channel.write(headerView);
+                    while (table.hasRemaining()) channel.write(table);
+                    for (CompressedChunk chunk : compressed) {
+                        while (chunk.data.hasRemaining()) channel.write(chunk.data);
+                    }
+                } catch (IOException e) {
+                    Files.deleteIfExists(temp);
+                    throw e;
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                MemoryUtil.memFree(table);
+            }
+        } finally {
+            for (CompressedChunk chunk : compressed) MemoryUtil.memFree(chunk.data);
+        }
+    }
+
+    private record CompressedChunk(int stream, long offset, int size, ByteBuffer data) {
+    }
+
+    private static CompressedChunk compress(int stream, long offset, ByteBuffer slice, int level, String kind) {
+        ByteBuffer data = MemoryUtil.memAlloc((int) ZSTD_compressBound(slice.remaining()));
+        long size = ZSTD_compress(data, slice, level);
+        if (ZSTD_isError(size)) {
+            MemoryUtil.memFree(data);
+            throw new RuntimeException("Failed to compress " + kind + " chunk: " + ZSTD_getErrorName(size));
+        }
+        return new CompressedChunk(stream, offset, slice.remaining(), data.limit((int) size));
+    }
+
+    public static String readString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        String string = StandardCharsets.UTF_8.decode(buffer.slice(buffer.position(), length)).toString();
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    public static void putString(ByteBuffer buffer, byte[] utf8) {
+        buffer.putShort((short) utf8.length).put(utf8);
+    }
+}
@@ -6,9 +6,14 @@ import com.aivech.atomikvk.shaderc.SpirVCompiler;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class ShaderResource implements AutoCloseable {
     public final ShaderType type;
+    public final File source;
     private final SpirVCompiler.Result spirV;
 
     /**
@@ -20,6 +25,7 @@ public class ShaderResource implements AutoCloseable {
         try {
             spirV = SpirVCompiler.compile(glsl, type);
             this.type = type;
+            this.source = glsl;
         } catch (IOException e) {
             throw new ShaderException("Failed to compile shader", e);
         }
@@ -33,6 +39,49 @@ public class ShaderResource implements AutoCloseable {
         this(glsl, getShaderType(glsl.getName()));
     }
 
+    private ShaderResource(File glsl, ShaderType type, SpirVCompiler.Result spirV) {
+        this.type = type;
+        this.source = glsl;
+        this.spirV = spirV;
+    }
+
+    /**
+     * Compiles several shaders in parallel, assuming types from filenames
+     * @param glsl The GLSL shader files to compile
+     * @return The compiled shaders, in the same order
+     */
+    public static ShaderResource[] loadAll(File... glsl) {
+        List<SpirVCompiler.Source> sources = new ArrayList<>(glsl.length);
+        for (File file : glsl) {
+            sources.add(new SpirVCompiler.Source(file, getShaderType(file.getName())));
+        }
+        List<CompletableFuture<SpirVCompiler.Result>> results = SpirVCompiler.compileAll(sources);
+        try {
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // don't leak the shaders that did compile
+            for (var result : results) {
+                if (!result.isCompletedExceptionally()) result.join().close();
+            }
+            throw new ShaderException("Failed to compile shader", e.getCause());
+        }
+        ShaderResource[] shaders = new ShaderResource[glsl.length];
+        for (int i = 0; i < shaders.length; i++) {
+            shaders[i] = new ShaderResource(glsl[i], sources.get(i).type(), results.get(i).join());
+        }
+        return shaders;
+    }
+
+    /**
+     * Compiles a shader on the compiler's worker pool, assuming type from filename
+     * @param glsl The GLSL shader file to compile
+     * @return The compiled shader, or a failed future if it does not compile
+     */
+    public static CompletableFuture<ShaderResource> loadAsync(File glsl) {
+        ShaderType type = getShaderType(glsl.getName());
+        return SpirVCompiler.compileAsync(glsl, type).thenApply(result -> new ShaderResource(glsl, type, result));
+    }
+
     /**
      * Get the compiled SPIR-V bytecode.
      * @return A ByteBuffer containing the compiled shader.
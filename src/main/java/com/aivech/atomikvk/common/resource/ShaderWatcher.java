@@ -0,0 +1,154 @@
+package com.aivech.atomikvk.common.resource;
+
+import com.aivech.atomikvk.AtomikVk;
+import com.aivech.atomikvk.shaderc.IncludeResolver;
+import com.aivech.atomikvk.shaderc.SpirVCompiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches shader sources and everything they include, and recompiles the affected shaders in the background when a
+ * file changes. Successfully compiled shaders are handed to the listener, which takes ownership of them. Shaders that
+ * fail to compile are logged and dropped, so whatever the listener built from the previous version keeps running.
+ */
+public class ShaderWatcher implements AutoCloseable {
+    // editors tend to save in several steps, collect events until the directory has been quiet this long
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    private final WatchService watchService;
+    private final Consumer<List<ShaderResource>> listener;
+    private final Set<Path> shaders = ConcurrentHashMap.newKeySet();
+    private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public ShaderWatcher(Consumer<List<ShaderResource>> listener) throws IOException {
+        this.listener = listener;
+        watchService = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this::run, "shader-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts watching shaders that have already been compiled once, so their includes are known.
+     */
+    public void watch(File... glsl) {
+        for (File file : glsl) {
+            shaders.add(file.toPath().toAbsolutePath().normalize());
+        }
+        registerDirectories();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            AtomikVk.LOGGER.warn("Failed to close shader watcher", e);
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                Set<Path> changed = new HashSet<>();
+                collect(watchService.take(), changed);
+                WatchKey key;
+                while ((key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changed);
+                }
+                reload(changed);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path directory = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // we lost track, treat every shader as changed
+                changed.addAll(shaders);
+            } else {
+                changed.add(directory.resolve((Path) event.context()).normalize());
+            }
+        }
+        if (!key.reset()) watchedDirectories.remove(directory);
+    }
+
+    /**
+     * Recompiles every watched shader that is, or includes, one of the changed files.
+     */
+    private void reload(Set<Path> changed) {
+        IncludeResolver includes = SpirVCompiler.getIncludeResolver();
+        Set<Path> affected = new LinkedHashSet<>();
+        for (Path file : changed) {
+            if (shaders.contains(file)) affected.add(file);
+            for (Path dependent : includes.getDependents(file)) {
+                if (shaders.contains(dependent)) affected.add(dependent);
+            }
+        }
+        if (affected.isEmpty()) return;
+
+        List<CompletableFuture<ShaderResource>> compiles = new ArrayList<>(affected.size());
+        for (Path shader : affected) {
+            compiles.add(ShaderResource.loadAsync(shader.toFile()));
+        }
+        List<ShaderResource> compiled = new ArrayList<>(compiles.size());
+        for (var compile : compiles) {
+            try {
+                compiled.add(compile.join());
+            } catch (CompletionException e) {
+                AtomikVk.LOGGER.error("Shader reload failed, keeping the previous version", e.getCause());
+            }
+        }
+        // includes may have been added or moved
+        registerDirectories();
+
+        if (compiled.isEmpty()) return;
+        AtomikVk.LOGGER.info("Recompiled " + compiled.size() + " shader(s) after changes to " + changed);
+        listener.accept(compiled);
+    }
+
+    /**
+     * Watches the directory of every shader and of everything they include.
+     */
+    private void registerDirectories() {
+        IncludeResolver includes = SpirVCompiler.getIncludeResolver();
+        Set<Path> files = new HashSet<>();
+        Deque<Path> pending = new ArrayDeque<>(shaders);
+        while (!pending.isEmpty()) {
+            Path file = pending.poll();
+            if (files.add(file)) pending.addAll(includes.getIncludes(file));
+        }
+        for (Path file : files) {
+            Path directory = file.getParent();
+            if (directory == null || !watchedDirectories.add(directory)) continue;
+            try {
+                directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+            } catch (IOException | ClosedWatchServiceException e) {
+                watchedDirectories.remove(directory);
+                AtomikVk.LOGGER.warn("Cannot watch shader directory " + directory, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.aivech.atomikvk.headless;
+
+import com.aivech.atomikvk.AtomikVk;
+import com.aivech.atomikvk.common.capture.FrameConsumer;
+import com.aivech.atomikvk.shaderc.SpirVCompiler;
+import com.aivech.atomikvk.vulkan.Vulkan;
+
+/**
+ * Runs the renderer without a display, for batch rendering on servers. The counterpart of
+ * {@link com.aivech.atomikvk.glfw.GLFWHelper}.
+ */
+public class HeadlessHelper {
+    public static final int DEFAULT_WIDTH = 1920;
+    public static final int DEFAULT_HEIGHT = 1080;
+
+    private static Vulkan provider;
+
+    public static void setup(int width, int height) {
+        SpirVCompiler.init();
+        provider = new Vulkan();
+        provider.initHeadless(width, height);
+    }
+
+    public static Vulkan getProvider() {
+        return provider;
+    }
+
+    /**
+     * Reads every following frame back and hands it to the consumer, see {@link Vulkan#captureFrames}.
+     */
+    public static void capture(FrameConsumer consumer) {
+        provider.captureFrames(consumer);
+    }
+
+    /**
+     * Renders frames back to back, as fast as the GPU takes them.
+     */
+    public static void renderFrames(long count) {
+        long start = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            provider.drawFrame();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        AtomikVk.LOGGER.info(String.format("Rendered %d frames in %.2f s, %.1f fps", count, seconds, count / seconds));
+    }
+
+    public static void cleanup() {
+        if (provider != null) provider.cleanup();
+        provider = null;
+        SpirVCompiler.destroy();
+    }
+}
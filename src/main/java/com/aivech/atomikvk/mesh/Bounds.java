@@ -0,0 +1,14 @@
+package com.aivech.atomikvk.mesh;
+
+/**
+ * An axis aligned bounding box in model space.
+ */
+public record Bounds(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+    public static final Bounds EMPTY = new Bounds(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+            Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+
+    public Bounds union(Bounds other) {
+        return new Bounds(Math.min(minX, other.minX), Math.min(minY, other.minY), Math.min(minZ, other.minZ),
+                Math.max(maxX, other.maxX), Math.max(maxY, other.maxY), Math.max(maxZ, other.maxZ));
+    }
+}
@@ -0,0 +1,50 @@
+package com.aivech.atomikvk.mesh;
+
+import com.aivech.atomikvk.vulkan.IndexType;
+import com.aivech.atomikvk.vulkan.VertexBuilder;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An imported triangle mesh: packed vertex streams and an off-heap index buffer in the smallest index type that fits.
+ */
+public final class Mesh implements AutoCloseable {
+    public final String name;
+    public final VertexBuilder vertices;
+    public final IndexType indexType;
+    public final int indexCount;
+    public final Bounds bounds;
+    /**
+     * Average cache miss ratio, vertex shader runs per triangle, before and after optimization. NaN if the mesh
+     * wasn't optimized.
+     */
+    public final float acmrBefore;
+    public final float acmrAfter;
+    private final ByteBuffer indices;
+
+    Mesh(String name, VertexBuilder vertices, IndexType indexType, ByteBuffer indices, int indexCount, Bounds bounds, float acmrBefore, float acmrAfter) {
+        this.name = name;
+        this.vertices = vertices;
+        this.indexType = indexType;
+        this.indices = indices;
+        this.indexCount = indexCount;
+        this.bounds = bounds;
+        this.acmrBefore = acmrBefore;
+        this.acmrAfter = acmrAfter;
+    }
+
+    public int vertexCount() {
+        return vertices.vertexCount();
+    }
+
+    public ByteBuffer indices() {
+        return indices.duplicate();
+    }
+
+    @Override
+    public void close() {
+        vertices.close();
+        MemoryUtil.memFree(indices);
+    }
+}
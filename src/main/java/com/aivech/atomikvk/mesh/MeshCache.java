@@ -0,0 +1,71 @@
+package com.aivech.atomikvk.mesh;
+
+import com.aivech.atomikvk.AtomikVk;
+import com.aivech.atomikvk.common.config.AtomikVkConfig;
+import com.google.common.collect.ImmutableList;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.xxhash.XXH64State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.lwjgl.util.xxhash.XXHash.*;
+
+/**
+ * Imported meshes stored as {@link MeshFile}s, addressed by the contents of the source file and the importer's
+ * settings. A hit costs a hash of the source and a map, assimp and Tootle only run on a miss.
+ */
+public class MeshCache {
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".avm";
+
+    private final Path directory;
+
+    public MeshCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the cached meshes of the source file, imported and stored first on a miss
+     */
+    public MeshFile load(Path source, MeshImporter importer) throws IOException {
+        Path cached = directory.resolve(String.format("%016x", key(source, importer)) + SUFFIX);
+        if (Files.isRegularFile(cached)) {
+            try {
+                MeshFile file = MeshFile.open(cached);
+                AtomikVk.LOGGER.debug("Mesh cache hit: " + cached.getFileName());
+                return file;
+            } catch (IOException e) {
+                AtomikVk.LOGGER.warn("Ignoring unreadable mesh cache entry " + cached, e);
+            }
+        }
+        ImmutableList<Mesh> meshes = importer.load(source);
+        try {
+            Files.createDirectories(directory);
+            MeshFile.write(cached, importer.format(), meshes, AtomikVkConfig.MESH_CACHE_COMPRESSION_LEVEL);
+        } finally {
+            meshes.forEach(Mesh::close);
+        }
+        return MeshFile.open(cached);
+    }
+
+    private static long key(Path source, MeshImporter importer) throws IOException {
+        XXH64State state = XXH64_createState();
+        try (MemoryStack stack = MemoryStack.stackPush();
+             FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            XXH64_reset(state, FORMAT_VERSION);
+            XXH64_update(state, stack.UTF8(importer.settings(), true));
+            if (channel.size() > 0) {
+                ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                XXH64_update(state, contents);
+            }
+            return XXH64_digest(state);
+        } finally {
+            XXH64_freeState(state);
+        }
+    }
+}
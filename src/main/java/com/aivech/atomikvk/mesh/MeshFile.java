@@ -0,0 +1,239 @@
+package com.aivech.atomikvk.mesh;
+
+import com.aivech.atomikvk.common.resource.ChunkedFile;
+import com.aivech.atomikvk.vulkan.IndexType;
+import com.aivech.atomikvk.vulkan.VertexFormat;
+import com.google.common.collect.ImmutableList;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.aivech.atomikvk.common.resource.ChunkedFile.putString;
+import static com.aivech.atomikvk.common.resource.ChunkedFile.readString;
+
+/**
+ * The mesh cache container: vertex and index streams ready to upload in the engine's layout, with bounds and a table
+ * of submeshes, stored as a {@link ChunkedFile} so the streams decompress in parallel.
+ * <p>
+ * The header ahead of the chunk table, little endian:
+ * <pre>
+ * header      magic, version, vertex count, index count, index size, binding count, attribute count,
+ *             submesh count, chunk count, bounds
+ * bindings    stride, input rate
+ * attributes  location, binding, offset, encoding name
+ * submeshes   first index, index count, vertex offset, vertex count, bounds, name
+ * </pre>
+ * Streams 0 to binding count - 1 are the vertex bindings, the last one the indices. The streams themselves are in the
+ * writer's byte order, little endian on every platform the engine runs on.
+ */
+public final class MeshFile {
+    private static final int MAGIC = 0x534d5641; // "AVMS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 9 * Integer.BYTES + 6 * Float.BYTES;
+
+    public final VertexFormat format;
+    public final int vertexCount;
+    public final int indexCount;
+    public final IndexType indexType;
+    public final Bounds bounds;
+    public final ImmutableList<Submesh> submeshes;
+    private final ChunkedFile streams;
+
+    public record Submesh(String name, int firstIndex, int indexCount, int vertexOffset, int vertexCount, Bounds bounds) {
+    }
+
+    private MeshFile(ByteBuffer contents) throws IOException {
+        if (contents.getInt() != MAGIC) throw new IOException("Not a mesh file");
+        int version = contents.getInt();
+        if (version != FORMAT_VERSION) throw new IOException("Unsupported mesh file version " + version);
+        vertexCount = contents.getInt();
+        indexCount = contents.getInt();
+        int indexSize = contents.getInt();
+        if (indexSize != Short.BYTES && indexSize != Integer.BYTES) throw new IOException("Unknown index size " + indexSize);
+        indexType = indexSize == Short.BYTES ? IndexType.UINT16 : IndexType.UINT32;
+        int bindingCount = contents.getInt();
+        int attributeCount = contents.getInt();
+        int submeshCount = contents.getInt();
+        int chunkCount = contents.getInt();
+        bounds = readBounds(contents);
+
+        int[] strides = new int[bindingCount];
+        int[] inputRates = new int[bindingCount];
+        for (int i = 0; i < bindingCount; i++) {
+            strides[i] = contents.getInt();
+            inputRates[i] = contents.getInt();
+        }
+        List<VertexFormat.Attribute> stored = new ArrayList<>(attributeCount);
+        for (int i = 0; i < attributeCount; i++) {
+            int location = contents.getInt();
+            int binding = contents.getInt();
+            int offset = contents.getInt();
+            stored.add(new VertexFormat.Attribute(location, binding, offset, VertexFormat.Encoding.valueOf(readString(contents))));
+        }
+        format = rebuildFormat(inputRates, stored);
+        for (int i = 0; i < bindingCount; i++) {
+            if (format.stride(i) != strides[i] || !format.attributes.equals(stored)) throw new IOException("Inconsistent vertex layout");
+        }
+
+        ImmutableList.Builder<Submesh> submeshes = ImmutableList.builder();
+        for (int i = 0; i < submeshCount; i++) {
+            int firstIndex = contents.getInt();
+            int count = contents.getInt();
+            int vertexOffset = contents.getInt();
+            int vertices = contents.getInt();
+            Bounds submeshBounds = readBounds(contents);
+            submeshes.add(new Submesh(readString(contents), firstIndex, count, vertexOffset, vertices, submeshBounds));
+        }
+        this.submeshes = submeshes.build();
+
+        long[] streamSizes = new long[bindingCount + 1];
+        for (int binding = 0; binding < bindingCount; binding++) streamSizes[binding] = (long) vertexCount * format.stride(binding);
+        streamSizes[bindingCount] = (long) indexCount * indexType.size;
+        streams = new ChunkedFile(contents, chunkCount, streamSizes, "mesh");
+    }
+
+    /**
+     * Attributes are stored in binding and offset order, so adding them back in that order rebuilds the layout.
+     */
+    private static VertexFormat rebuildFormat(int[] inputRates, List<VertexFormat.Attribute> attributes) throws IOException {
+        VertexFormat.Builder builder = VertexFormat.builder();
+        int attribute = 0;
+        for (int binding = 0; binding < inputRates.length; binding++) {
+            builder.binding(inputRates[binding]);
+            while (attribute < attributes.size() && attributes.get(attribute).binding() == binding) {
+                builder.attribute(attributes.get(attribute).location(), attributes.get(attribute).encoding());
+                attribute++;
+            }
+        }
+        if (attribute != attributes.size()) throw new IOException("Attributes out of binding order");
+        return builder.build();
+    }
+
+    /**
+     * Maps the file and reads its tables. The streams stay compressed until {@link #decompress} is called.
+     */
+    public static MeshFile open(Path path) throws IOException {
+        ByteBuffer contents = ChunkedFile.map(path, HEADER_SIZE, "mesh");
+        try {
+            return new MeshFile(contents);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed mesh file " + path, e);
+        }
+    }
+
+    public int streamCount() {
+        return format.bindingCount() + 1;
+    }
+
+    public int indexStream() {
+        return format.bindingCount();
+    }
+
+    public long streamSize(int stream) {
+        return streams.streamSize(stream);
+    }
+
+    /**
+     * Decompresses a whole stream to the target's position on the chunk workers and advances the position. Blocks
+     * until every chunk is done.
+     */
+    public void decompress(int stream, ByteBuffer target) {
+        streams.decompress(new int[]{stream}, new ByteBuffer[]{target});
+    }
+
+    /**
+     * Packs meshes sharing one vertex format into a file, one submesh each. Indices stay relative to their submesh's
+     * vertex offset, so 16 bit indices suffice as long as no single mesh needs 32 bit ones.
+     */
+    public static void write(Path path, VertexFormat format, List<Mesh> meshes, int level) throws IOException {
+        int vertexCount = 0, indexCount = 0;
+        IndexType indexType = IndexType.UINT16;
+        Bounds bounds = Bounds.EMPTY;
+        for (Mesh mesh : meshes) {
+            if (!mesh.vertices.format().equals(format)) throw new IllegalArgumentException("Mesh '" + mesh.name + "' has a different vertex format");
+            vertexCount = Math.addExact(vertexCount, mesh.vertexCount());
+            indexCount = Math.addExact(indexCount, mesh.indexCount);
+            if (mesh.indexType == IndexType.UINT32) indexType = IndexType.UINT32;
+            bounds = bounds.union(mesh.bounds);
+        }
+
+        int streamCount = format.bindingCount() + 1;
+        List<ByteBuffer> streams = new ArrayList<>(streamCount);
+        try {
+            for (int binding = 0; binding < format.bindingCount(); binding++) {
+                ByteBuffer stream = MemoryUtil.memAlloc(vertexCount * format.stride(binding));
+                streams.add(stream);
+                for (Mesh mesh : meshes) stream.put(mesh.vertices.stream(binding));
+            }
+            ByteBuffer indices = MemoryUtil.memAlloc(indexCount * indexType.size);
+            streams.add(indices);
+            for (Mesh mesh : meshes) {
+                ByteBuffer source = mesh.indices().order(ByteOrder.nativeOrder());
+                if (mesh.indexType == indexType) {
+                    indices.put(source);
+                } else { // widen to the file's index type
+                    for (int i = 0; i < mesh.indexCount; i++) indices.putInt(Short.toUnsignedInt(source.getShort(i * Short.BYTES)));
+                }
+            }
+
+            for (ByteBuffer stream : streams) stream.flip();
+
+            List<byte[]> names = new ArrayList<>(meshes.size());
+            int tableSize = format.bindingCount() * 2 * Integer.BYTES;
+            for (VertexFormat.Attribute attribute : format.attributes) {
+                tableSize += 3 * Integer.BYTES + Short.BYTES + attribute.encoding().name().length();
+            }
+            for (Mesh mesh : meshes) {
+                byte[] name = mesh.name.getBytes(StandardCharsets.UTF_8);
+                if (name.length > 0xffff) throw new IllegalArgumentException("Mesh name too long: " + mesh.name);
+                names.add(name);
+                tableSize += 4 * Integer.BYTES + 6 * Float.BYTES + Short.BYTES + name.length;
+            }
+
+            ByteBuffer header = MemoryUtil.memAlloc(HEADER_SIZE + tableSize).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                header.putInt(MAGIC).putInt(FORMAT_VERSION)
+                        .putInt(vertexCount).putInt(indexCount).putInt(indexType.size)
+                        .putInt(format.bindingCount()).putInt(format.attributes.size()).putInt(meshes.size()).putInt(ChunkedFile.chunkCount(streams));
+                putBounds(header, bounds);
+                for (int binding = 0; binding < format.bindingCount(); binding++) {
+                    header.putInt(format.stride(binding)).putInt(format.inputRate(binding));
+                }
+                for (VertexFormat.Attribute attribute : format.attributes) {
+                    header.putInt(attribute.location()).putInt(attribute.binding()).putInt(attribute.offset());
+                    putString(header, attribute.encoding().name().getBytes(StandardCharsets.UTF_8));
+                }
+                int firstIndex = 0, vertexOffset = 0;
+                for (int i = 0; i < meshes.size(); i++) {
+                    Mesh mesh = meshes.get(i);
+                    header.putInt(firstIndex).putInt(mesh.indexCount).putInt(vertexOffset).putInt(mesh.vertexCount());
+                    putBounds(header, mesh.bounds);
+                    putString(header, names.get(i));
+                    firstIndex += mesh.indexCount;
+                    vertexOffset += mesh.vertexCount();
+                }
+                ChunkedFile.write(path, header.flip(), streams, level, "mesh");
+            } finally {
+                MemoryUtil.memFree(header);
+            }
+        } finally {
+            streams.forEach(MemoryUtil::memFree);
+        }
+    }
+
+    private static Bounds readBounds(ByteBuffer buffer) {
+        return new Bounds(buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+    }
+
+    private static void putBounds(ByteBuffer buffer, Bounds bounds) {
+        buffer.putFloat(bounds.minX()).putFloat(bounds.minY()).putFloat(bounds.minZ())
+                .putFloat(bounds.maxX()).putFloat(bounds.maxY()).putFloat(bounds.maxZ());
+    }
+}
@@ -0,0 +1,249 @@
+package com.aivech.atomikvk.mesh;
+
+import com.aivech.atomikvk.AtomikVk;
+import com.aivech.atomikvk.vulkan.IndexType;
+import com.aivech.atomikvk.vulkan.VertexBuilder;
+import com.aivech.atomikvk.vulkan.VertexFormat;
+import com.google.common.collect.ImmutableList;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIFace;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.lwjgl.assimp.Assimp.*;
+import static org.lwjgl.util.tootle.Tootle.*;
+
+/**
+ * Loads triangle meshes with assimp straight from its native buffers into {@link VertexBuilder}s, without a Java
+ * object per vertex. Assimp joins identical vertices; Tootle then reorders the triangles for the post-transform vertex
+ * cache and for overdraw, and the vertices into the order the triangles first use them.
+ */
+public final class MeshImporter {
+    // AIVector3D and AIColor4D are plain arrays of 3 and 4 floats
+    public enum Semantic {
+        POSITION(3),
+        NORMAL(3),
+        TEXCOORD(3),
+        COLOR(4);
+
+        final int sourceComponents;
+
+        Semantic(int sourceComponents) {
+            this.sourceComponents = sourceComponents;
+        }
+    }
+
+    // Tootle keeps global state: initialized on first use, torn down by shutdown(), calls are serialized on the class
+    private static boolean tootleInitialized;
+
+    private final VertexFormat format;
+    private final Map<Integer, Semantic> semantics = new LinkedHashMap<>();
+    private boolean optimize = true;
+
+    public MeshImporter(VertexFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Fills the attribute at {@code location} from the mesh data of the given semantic.
+     */
+    public MeshImporter bind(int location, Semantic semantic) {
+        int components = format.attribute(location).encoding().components;
+        if (components > semantic.sourceComponents) {
+            throw new IllegalArgumentException(semantic + " has " + semantic.sourceComponents + " components, location " + location + " takes " + components);
+        }
+        semantics.put(location, semantic);
+        return this;
+    }
+
+    /**
+     * @param optimize whether to run Tootle, on by default
+     */
+    public MeshImporter optimize(boolean optimize) {
+        this.optimize = optimize;
+        return this;
+    }
+
+    public VertexFormat format() {
+        return format;
+    }
+
+    /**
+     * @return everything about this importer that changes what it produces, for cache keys
+     */
+    String settings() {
+        StringBuilder settings = new StringBuilder();
+        for (int i = 0; i < format.bindingCount(); i++) {
+            settings.append("binding ").append(format.stride(i)).append(' ').append(format.inputRate(i)).append('\n');
+        }
+        for (VertexFormat.Attribute attribute : format.attributes) {
+            settings.append(attribute).append(' ').append(semantics.get(attribute.location())).append('\n');
+        }
+        return settings.append("optimize ").append(optimize).toString();
+    }
+
+    /**
+     * @return every triangle mesh in the file, to be closed by the caller
+     */
+    public ImmutableList<Mesh> load(Path path) {
+        if (!semantics.containsValue(Semantic.POSITION)) throw new IllegalStateException("No attribute is bound to POSITION");
+        int flags = aiProcess_Triangulate | aiProcess_JoinIdenticalVertices | aiProcess_SortByPType | aiProcess_GenBoundingBoxes;
+        if (semantics.containsValue(Semantic.NORMAL)) flags |= aiProcess_GenSmoothNormals;
+        AIScene scene = aiImportFile(path.toString(), flags);
+        if (scene == null) throw new RuntimeException("Failed to import " + path + ": " + aiGetErrorString());
+
+        ImmutableList.Builder<Mesh> meshes = ImmutableList.builder();
+        try {
+            PointerBuffer p_meshes = scene.mMeshes();
+            for (int i = 0; i < scene.mNumMeshes(); i++) {
+                AIMesh mesh = AIMesh.create(p_meshes.get(i));
+                // points and lines, split off by SortByPType
+                if ((mesh.mPrimitiveTypes() & aiPrimitiveType_TRIANGLE) == 0) continue;
+                meshes.add(convert(mesh));
+            }
+        } catch (RuntimeException e) {
+            meshes.build().forEach(Mesh::close);
+            throw e;
+        } finally {
+            aiReleaseImport(scene);
+        }
+        return meshes.build();
+    }
+
+    private Mesh convert(AIMesh mesh) {
+        String name = mesh.mName().dataString();
+        int vertexCount = mesh.mNumVertices();
+        int indexCount = mesh.mNumFaces() * 3;
+        FloatBuffer positions = MemoryUtil.memFloatBuffer(mesh.mVertices().address(), vertexCount * 3);
+        IntBuffer indices = MemoryUtil.memAllocInt(indexCount);
+        IntBuffer remap = null;
+        VertexBuilder vertices = null;
+        try {
+            long face = mesh.mFaces().address();
+            for (int i = 0; i < mesh.mNumFaces(); i++, face += AIFace.SIZEOF) {
+                long faceIndices = MemoryUtil.memGetAddress(face + AIFace.MINDICES);
+                MemoryUtil.memCopy(faceIndices, MemoryUtil.memAddress(indices) + (long) i * 3 * Integer.BYTES, 3 * Integer.BYTES);
+            }
+
+            float acmrBefore = Float.NaN, acmrAfter = Float.NaN;
+            if (optimize && vertexCount <= TOOTLE_MAX_VERTICES && indexCount / 3 <= TOOTLE_MAX_FACES) {
+                remap = MemoryUtil.memAllocInt(vertexCount);
+                float[] acmr = optimize(name, positions, indices, remap);
+                if (acmr != null) {
+                    acmrBefore = acmr[0];
+                    acmrAfter = acmr[1];
+                } else {
+                    MemoryUtil.memFree(remap);
+                    remap = null;
+                }
+            }
+
+            vertices = new VertexBuilder(format, vertexCount);
+            for (Map.Entry<Integer, Semantic> entry : semantics.entrySet()) {
+                fill(vertices, entry.getKey(), entry.getValue(), mesh);
+            }
+            if (remap != null) vertices.reorder(remap);
+
+            IndexType indexType = IndexType.forVertexCount(vertexCount);
+            ByteBuffer packed = MemoryUtil.memAlloc(indexCount * indexType.size);
+            if (indexType == IndexType.UINT16) {
+                for (int i = 0; i < indexCount; i++) packed.putShort(i * Short.BYTES, (short) indices.get(i));
+            } else {
+                MemoryUtil.memCopy(MemoryUtil.memAddress(indices), MemoryUtil.memAddress(packed), (long) indexCount * Integer.BYTES);
+            }
+            AtomikVk.LOGGER.info(String.format("Imported mesh '%s': %d vertices, %d triangles, %s indices, ACMR %.3f -> %.3f",
+                    name, vertexCount, indexCount / 3, indexType, acmrBefore, acmrAfter));
+            var aabb = mesh.mAABB();
+            Bounds bounds = new Bounds(aabb.mMin().x(), aabb.mMin().y(), aabb.mMin().z(), aabb.mMax().x(), aabb.mMax().y(), aabb.mMax().z());
+            return new Mesh(name, vertices, indexType, packed, indexCount, bounds, acmrBefore, acmrAfter);
+        } catch (RuntimeException e) {
+            if (vertices != null) vertices.close();
+            throw e;
+        } finally {
+            MemoryUtil.memFree(indices);
+            MemoryUtil.memFree(remap);
+        }
+    }
+
+    /**
+     * Releases Tootle's global state. Importing again afterwards initializes it again.
+     */
+    public static synchronized void shutdown() {
+        if (tootleInitialized) {
+            TootleCleanup();
+            tootleInitialized = false;
+        }
+    }
+
+    /**
+     * Reorders the triangles in place and fills in where every vertex moves to.
+     * @return the ACMR before and after, or null if Tootle failed and the indices are unchanged
+     */
+    private static synchronized float[] optimize(String name, FloatBuffer positions, IntBuffer indices, IntBuffer remap) {
+        if (!tootleInitialized) {
+            int result = TootleInit();
+            if (result != TOOTLE_OK) {
+                AtomikVk.LOGGER.warn("Failed to initialize Tootle (" + result + "), keeping the original order of mesh '" + name + "'");
+                return null;
+            }
+            tootleInitialized = true;
+        }
+        int stride = 3 * Float.BYTES;
+        IntBuffer reordered = MemoryUtil.memAllocInt(indices.remaining());
+        IntBuffer renumbered = MemoryUtil.memAllocInt(indices.remaining());
+        FloatBuffer positionsOut = MemoryUtil.memAllocFloat(positions.remaining());
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            FloatBuffer acmr = stack.mallocFloat(2);
+            int result = TootleMeasureCacheEfficiency(indices, TOOTLE_DEFAULT_VCACHE_SIZE, acmr);
+            if (result == TOOTLE_OK) {
+                result = TootleFastOptimize(positions, indices, stride, TOOTLE_DEFAULT_VCACHE_SIZE, TOOTLE_CCW, reordered, null, TOOTLE_DEFAULT_ALPHA);
+            }
+            if (result == TOOTLE_OK) {
+                // renumbers the vertices by first use, so vertex fetches walk memory front to back too
+                result = TootleOptimizeVertexMemory(positions, reordered, stride, positionsOut, renumbered, remap);
+            }
+            if (result == TOOTLE_OK) {
+                result = TootleMeasureCacheEfficiency(renumbered, TOOTLE_DEFAULT_VCACHE_SIZE, acmr.position(1));
+            }
+            if (result != TOOTLE_OK) {
+                AtomikVk.LOGGER.warn("Tootle failed on mesh '" + name + "' (" + result + "), keeping its original order");
+                return null;
+            }
+            indices.put(0, renumbered, 0, renumbered.remaining());
+            return new float[]{acmr.get(0), acmr.get(1)};
+        } finally {
+            MemoryUtil.memFree(reordered);
+            MemoryUtil.memFree(renumbered);
+            MemoryUtil.memFree(positionsOut);
+        }
+    }
+
+    private static void fill(VertexBuilder vertices, int location, Semantic semantic, AIMesh mesh) {
+        int count = vertices.vertexCount();
+        long address = switch (semantic) {
+            case POSITION -> mesh.mVertices().address();
+            case NORMAL -> mesh.mNormals() != null ? mesh.mNormals().address() : MemoryUtil.NULL;
+            case TEXCOORD -> mesh.mTextureCoords(0) != null ? mesh.mTextureCoords(0).address() : MemoryUtil.NULL;
+            case COLOR -> mesh.mColors(0) != null ? mesh.mColors(0).address() : MemoryUtil.NULL;
+        };
+        if (address != MemoryUtil.NULL) {
+            vertices.put(location, MemoryUtil.memFloatBuffer(address, count * semantic.sourceComponents), semantic.sourceComponents);
+        } else if (semantic == Semantic.COLOR) {
+            // uncoloured meshes show their shading rather than black
+            float[] white = new float[count * vertices.format().attribute(location).encoding().components];
+            Arrays.fill(white, 1f);
+            vertices.put(location, white);
+        }
+        // anything else missing stays zero
+    }
+}
@@ -3,45 +3,261 @@ package com.aivech.atomikvk.shaderc;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.util.shaderc.*;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
 
-public class IncludeResolver implements ShadercIncludeResolveI {
-    private final File[] includeDirectories;
+import static org.lwjgl.util.shaderc.Shaderc.shaderc_include_type_relative;
 
-    public IncludeResolver(File... directories) {
-        includeDirectories = directories;
+/**
+ * Resolves {@code #include} directives for shaderc. Long lived and shared by every compile thread.
+ * <p>
+ * Each include directory is indexed once into a map from relative path to file. File contents are kept off-heap and
+ * handed to shaderc without copying; a file is only reread when its modification time or size changes. Replaced
+ * contents may still be in use by a running compile, so they are only freed in {@link #close()}.
+ * <p>
+ * The resolver also records which files every compiled file included, which the SPIR-V cache and hot reload use to
+ * find everything affected by an edit.
+ */
+public class IncludeResolver implements AutoCloseable {
+    private final ConcurrentHashMap<Path, Map<String, Path>> indexes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, CachedFile> contents = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> retired = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Path, Set<Path>> includeGraph = new ConcurrentHashMap<>();
+
+    /**
+     * @param root        the file being compiled, relative includes in it are resolved against its directory
+     * @param directories searched in order for standard includes
+     * @return a callback for a single compile
+     */
+    public Session session(Path root, List<Path> directories) {
+        List<Path> normalized = new ArrayList<>(directories.size());
+        for (Path dir : directories) normalized.add(dir.toAbsolutePath().normalize());
+        return new Session(root.toAbsolutePath().normalize(), List.copyOf(normalized));
+    }
+
+    /**
+     * Resolves an include the way the compiler would: {@code "file"} includes look next to the including file first,
+     * {@code <file>} includes and misses fall back to the include directories.
+     * @return the absolute file an include refers to, or null if nothing matches
+     */
+    public Path resolve(Path requester, String request, boolean relative, List<Path> directories) {
+        if (relative && requester != null && requester.getParent() != null) {
+            Path candidate = requester.getParent().resolve(request).normalize();
+            if (Files.isRegularFile(candidate)) return candidate;
+        }
+        String key = indexKey(request);
+        for (Path dir : directories) {
+            Path file = index(dir).get(key);
+            if (file != null && Files.isRegularFile(file)) return file;
+        }
+        // the file may have been created after we indexed, rescan once before giving up
+        for (Path dir : directories) {
+            Path file = reindex(dir).get(key);
+            if (file != null) return file;
+        }
+        return null;
+    }
+
+    /**
+     * @return the current contents of a file, shared and read-only. Valid until this resolver is closed.
+     */
+    public ByteBuffer contents(Path file) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        CachedFile cached = contents.get(path);
+        if (cached != null && cached.matches(attributes)) return cached.content.duplicate();
+        try {
+            return contents.compute(path, (p, old) -> {
+                if (old != null && old.matches(attributes)) return old;
+                if (old != null) retired.add(old.content);
+                return read(p, attributes);
+            }).content.duplicate();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Replaces what the graph knows about a compile of {@code root}.
+     */
+    void record(Path root, List<Include> includes) {
+        Map<Path, Set<Path>> edges = new HashMap<>();
+        edges.put(root, new LinkedHashSet<>());
+        for (Include include : includes) {
+            edges.computeIfAbsent(include.requester(), k -> new LinkedHashSet<>()).add(include.resolved());
+            edges.computeIfAbsent(include.resolved(), k -> new LinkedHashSet<>());
+        }
+        for (var edge : edges.entrySet()) {
+            includeGraph.put(edge.getKey(), Collections.unmodifiableSet(edge.getValue()));
+        }
     }
 
+    /**
+     * @return the files {@code file} directly included the last time it was compiled
+     */
+    public Set<Path> getIncludes(Path file) {
+        return includeGraph.getOrDefault(file.toAbsolutePath().normalize(), Set.of());
+    }
+
+    /**
+     * @return every known file that includes {@code file}, directly or transitively
+     */
+    public Set<Path> getDependents(Path file) {
+        Path target = file.toAbsolutePath().normalize();
+        Set<Path> dependents = new LinkedHashSet<>();
+        Deque<Path> pending = new ArrayDeque<>();
+        pending.add(target);
+        while (!pending.isEmpty()) {
+            Path current = pending.poll();
+            for (var edge : includeGraph.entrySet()) {
+                if (edge.getValue().contains(current) && dependents.add(edge.getKey())) pending.add(edge.getKey());
+            }
+        }
+        dependents.remove(target);
+        return dependents;
+    }
 
     @Override
-    public long invoke(long user_data, long requested_source, int type, long requesting_source, long include_depth) {
-        ShadercIncludeResult include = ShadercIncludeResult.calloc();
-        String request = MemoryUtil.memUTF8(requested_source);
-        for (File dir : includeDirectories) {
-            for (File file : dir.listFiles()) {
-                if (file.getName().equals(request)) {
-                    try {
-                        ByteBuffer glsl = MemoryUtil.memUTF8(Files.readString(file.toPath()));
-                        include.content(glsl);
-                        include.source_name(MemoryUtil.memByteBufferNT1(requested_source));
-                    } catch (IOException e) {
-                        throw new ShaderException("Exception while loading include file \"" + request + "\" for \"" + MemoryUtil.memUTF8(requesting_source) + "\"", e);
-                    }
-                }
+    public void close() {
+        for (CachedFile cached : contents.values()) MemoryUtil.memFree(cached.content);
+        contents.clear();
+        ByteBuffer buffer;
+        while ((buffer = retired.poll()) != null) MemoryUtil.memFree(buffer);
+        indexes.clear();
+        includeGraph.clear();
+    }
+
+    private Map<String, Path> index(Path dir) {
+        Map<String, Path> index = indexes.get(dir);
+        return index != null ? index : reindex(dir);
+    }
+
+    private Map<String, Path> reindex(Path dir) {
+        Map<String, Path> index = new HashMap<>();
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.filter(Files::isRegularFile).forEach(file -> index.put(indexKey(dir.relativize(file).toString()), file));
+            } catch (IOException e) {
+                throw new ShaderException("Failed to index include directory " + dir, e);
+            }
+        }
+        Map<String, Path> immutable = Map.copyOf(index);
+        indexes.put(dir, immutable);
+        return immutable;
+    }
+
+    private static String indexKey(String relativePath) {
+        return relativePath.replace('\\', '/');
+    }
+
+    private static CachedFile read(Path file, BasicFileAttributes attributes) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int size = (int) channel.size();
+            ByteBuffer content = MemoryUtil.memAlloc(Math.max(size, 1)).limit(size);
+            while (content.hasRemaining() && channel.read(content) >= 0) ;
+            content.flip();
+            return new CachedFile(content.asReadOnlyBuffer(), attributes.lastModifiedTime(), attributes.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private record CachedFile(ByteBuffer content, FileTime modified, long size) {
+        boolean matches(BasicFileAttributes attributes) {
+            return modified.equals(attributes.lastModifiedTime()) && size == attributes.size();
+        }
+    }
+
+    /**
+     * One {@code #include} served during a compile.
+     */
+    public record Include(Path requester, String name, boolean relative, Path resolved) {
+    }
+
+    /**
+     * The shaderc callback for a single compile. Source names handed to shaderc, including the root's, must be absolute
+     * paths, so nested relative includes know where they came from.
+     */
+    public final class Session implements ShadercIncludeResolveI {
+        private final Path root;
+        private final List<Path> directories;
+        private final List<Include> includes = Collections.synchronizedList(new ArrayList<>());
+
+        private Session(Path root, List<Path> directories) {
+            this.root = root;
+            this.directories = directories;
+        }
+
+        @Override
+        public long invoke(long user_data, long requested_source, int type, long requesting_source, long include_depth) {
+            ShadercIncludeResult include = ShadercIncludeResult.calloc();
+            String request = MemoryUtil.memUTF8(requested_source);
+            Path requester = Path.of(MemoryUtil.memUTF8(requesting_source));
+            boolean relative = type == shaderc_include_type_relative;
+
+            Path file = resolve(requester, request, relative, directories);
+            if (file == null) {
+                // an empty source name tells shaderc the include failed, the content is the error message
+                include.content(MemoryUtil.memUTF8("Cannot find include \"" + request + "\"", false));
+                return include.address();
             }
+            try {
+                include.content(contents(file));
+            } catch (IOException e) {
+                include.content(MemoryUtil.memUTF8("Failed to read \"" + file + "\": " + e.getMessage(), false));
+                return include.address();
+            }
+            include.source_name(MemoryUtil.memUTF8(file.toString(), false));
+            includes.add(new Include(requester, request, relative, file));
+            return include.address();
+        }
+
+        public Path getRoot() {
+            return root;
+        }
+
+        public List<Path> getDirectories() {
+            return directories;
+        }
+
+        /**
+         * @return every include served so far, in the order they were requested
+         */
+        public List<Include> getIncludes() {
+            synchronized (includes) {
+                return List.copyOf(includes);
+            }
+        }
+
+        /**
+         * Publishes this compile's includes to the dependency graph.
+         */
+        public void commit() {
+            record(root, getIncludes());
         }
-        return include.address();
     }
 
+    /**
+     * Frees what {@link Session} allocated per include. File contents are shared and stay with the resolver.
+     */
     public static class Releaser implements ShadercIncludeResultReleaseI {
         @Override
         public void invoke(long user_data, long include_result) {
             ShadercIncludeResult result = ShadercIncludeResult.create(include_result);
-            ByteBuffer glsl = result.content();
-            MemoryUtil.memFree(glsl);
+            if (result.source_name_length() == 0) {
+                MemoryUtil.memFree(result.content());
+            } else {
+                MemoryUtil.memFree(result.source_name());
+            }
             result.free();
         }
     }
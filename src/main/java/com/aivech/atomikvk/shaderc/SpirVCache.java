@@ -0,0 +1,143 @@
+package com.aivech.atomikvk.shaderc;
+
+import com.aivech.atomikvk.AtomikVk;
+import com.aivech.atomikvk.common.resource.ShaderType;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.xxhash.XXH64State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.util.xxhash.XXHash.*;
+
+/**
+ * On-disk cache of compiled SPIR-V, addressed by content.
+ * <p>
+ * A shader's source key hashes its GLSL, stage and compile options. Under that key we keep a manifest of every include
+ * the last compile resolved. The binary itself is stored under a second key that also covers the requester, name,
+ * resolved path and contents of each of those includes, so editing any file in the include closure, or shadowing an
+ * include with a different file, produces a different key and a miss.
+ */
+public class SpirVCache {
+    private static final int FORMAT_VERSION = 2;
+    private static final String MANIFEST_SUFFIX = ".deps";
+    private static final String BINARY_SUFFIX = ".spv";
+
+    private final Path directory;
+
+    public SpirVCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return a key for everything that affects the compile except the includes
+     */
+    long sourceKey(ByteBuffer glsl, ShaderType type, String options) {
+        XXH64State state = XXH64_createState();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            XXH64_reset(state, FORMAT_VERSION);
+            XXH64_update(state, stack.UTF8(options, false));
+            XXH64_update(state, stack.malloc(Integer.BYTES).putInt(0, type.shadercGlslType));
+            if (glsl.hasRemaining()) XXH64_update(state, glsl);
+            return XXH64_digest(state);
+        } finally {
+            XXH64_freeState(state);
+        }
+    }
+
+    /**
+     * Looks up a previous compile. Never invokes shaderc. On a hit the recorded includes are published to the
+     * resolver's dependency graph, as if the shader had been compiled.
+     * @param session re-resolves the includes recorded in the manifest, to detect shadowing
+     * @return the mapped SPIR-V, or null on a miss
+     */
+    ByteBuffer lookup(long sourceKey, IncludeResolver resolver, IncludeResolver.Session session) {
+        Path manifest = directory.resolve(hex(sourceKey) + MANIFEST_SUFFIX);
+        if (!Files.isRegularFile(manifest)) return null;
+        try {
+            List<IncludeResolver.Include> includes = new ArrayList<>();
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 4) continue;
+                // the root is stored as an empty requester, the same source may live in several places
+                Path requester = fields[0].isEmpty() ? session.getRoot() : Path.of(fields[0]);
+                boolean relative = fields[1].equals("1");
+                Path recorded = Path.of(fields[3]);
+                Path current = resolver.resolve(requester, fields[2], relative, session.getDirectories());
+                if (current == null || !current.equals(recorded)) return null; // the include now means another file
+                includes.add(new IncludeResolver.Include(requester, fields[2], relative, recorded));
+            }
+
+            Path binary = directory.resolve(hex(fullKey(sourceKey, resolver, session.getRoot(), includes)) + BINARY_SUFFIX);
+            if (!Files.isRegularFile(binary)) return null;
+            try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.READ)) {
+                MappedByteBuffer spirV = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                AtomikVk.LOGGER.debug("SPIR-V cache hit: " + binary.getFileName());
+                resolver.record(session.getRoot(), includes);
+                return spirV;
+            }
+        } catch (IOException | InvalidPathException e) {
+            AtomikVk.LOGGER.warn("Ignoring unreadable SPIR-V cache entry " + manifest, e);
+            return null;
+        }
+    }
+
+    /**
+     * Records a fresh compile and the includes it used.
+     */
+    void store(long sourceKey, IncludeResolver resolver, IncludeResolver.Session session, ByteBuffer spirV) {
+        try {
+            List<IncludeResolver.Include> includes = session.getIncludes();
+            Files.createDirectories(directory);
+            Path binary = directory.resolve(hex(fullKey(sourceKey, resolver, session.getRoot(), includes)) + BINARY_SUFFIX);
+            writeAtomically(binary, spirV.duplicate());
+
+            List<String> lines = new ArrayList<>(includes.size());
+            for (IncludeResolver.Include include : includes) {
+                String requester = include.requester().equals(session.getRoot()) ? "" : include.requester().toString();
+                lines.add(requester + '\t' + (include.relative() ? 1 : 0) + '\t' + include.name() + '\t' + include.resolved());
+            }
+            ByteBuffer manifest = StandardCharsets.UTF_8.encode(String.join("\n", lines));
+            writeAtomically(directory.resolve(hex(sourceKey) + MANIFEST_SUFFIX), manifest);
+        } catch (IOException e) {
+            AtomikVk.LOGGER.warn("Failed to store SPIR-V cache entry", e);
+        }
+    }
+
+    private static long fullKey(long sourceKey, IncludeResolver resolver, Path root, List<IncludeResolver.Include> includes) throws IOException {
+        XXH64State state = XXH64_createState();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            XXH64_reset(state, sourceKey);
+            for (IncludeResolver.Include include : includes) {
+                String requester = include.requester().equals(root) ? "" : include.requester().toString();
+                XXH64_update(state, stack.UTF8(requester, true));
+                XXH64_update(state, stack.UTF8(include.name(), true));
+                XXH64_update(state, stack.UTF8(include.resolved().toString(), true));
+                // hashed from the resolver's shared copy, so a hit usually costs no file reads at all
+                ByteBuffer contents = resolver.contents(include.resolved());
+                if (contents.hasRemaining()) XXH64_update(state, contents);
+            }
+            return XXH64_digest(state);
+        } finally {
+            XXH64_freeState(state);
+        }
+    }
+
+    private static void writeAtomically(Path target, ByteBuffer contents) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            while (contents.hasRemaining()) channel.write(contents);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String hex(long key) {
+        return String.format("%016x", key);
+    }
+}
@@ -1,20 +1,43 @@
 package com.aivech.atomikvk.shaderc;
 
+import com.aivech.atomikvk.common.config.AtomikVkConfig;
+import com.aivech.atomikvk.common.jfr.ShaderCompileEvent;
 import com.aivech.atomikvk.common.resource.ShaderType;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.shaderc.ShadercIncludeResolve;
+import org.lwjgl.util.shaderc.ShadercIncludeResultRelease;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.lwjgl.util.shaderc.Shaderc.*;
 
+/**
+ * Compiles GLSL to SPIR-V. The shaderc compiler itself is thread safe, compile options are not, so every thread
+ * compiles with its own clone of the base options and its own include callbacks. Include lookups and file contents
+ * are shared between threads through one long-lived {@link IncludeResolver}.
+ */
 public class SpirVCompiler {
     public static final String GLSL_ENTRY_POINT = "main";
+    // everything set on the compile options below, part of the SPIR-V cache key
+    private static final String OPTIONS_SIGNATURE = "opt=performance;env=vulkan1.0;entry=" + GLSL_ENTRY_POINT;
     private static SpirVCompiler instance;
 
     private final long shaderc_compiler;
     private final long shaderc_compile_options;
+    private final SpirVCache cache;
+    private final IncludeResolver includes = new IncludeResolver();
+    private final ShadercIncludeResultRelease includeReleaser;
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<Long> threadOptions = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Long> localOptions;
 
     public static void init() {
         if (instance != null) destroy();
@@ -22,8 +45,19 @@ public class SpirVCompiler {
     }
 
     public static void destroy() {
+        instance.workers.shutdown();
+        try {
+            if (!instance.workers.awaitTermination(30, TimeUnit.SECONDS)) instance.workers.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (long options : instance.threadOptions) {
+            shaderc_compile_options_release(options);
+        }
         shaderc_compile_options_release(instance.shaderc_compile_options);
         shaderc_compiler_release(instance.shaderc_compiler);
+        instance.includeReleaser.free();
+        instance.includes.close();
         instance = null;
     }
 
@@ -32,20 +66,102 @@ public class SpirVCompiler {
         shaderc_compile_options = shaderc_compile_options_initialize();
         shaderc_compile_options_set_optimization_level(shaderc_compile_options, shaderc_optimization_level_performance);
         shaderc_compile_options_set_target_env(shaderc_compile_options, shaderc_target_env_vulkan, shaderc_env_version_vulkan_1_0);
+        cache = AtomikVkConfig.CACHE_SPIRV ? new SpirVCache(Path.of(AtomikVkConfig.CACHE_DIRECTORY, "spirv")) : null;
+        includeReleaser = ShadercIncludeResultRelease.create(new IncludeResolver.Releaser());
+        localOptions = ThreadLocal.withInitial(() -> {
+            long options = shaderc_compile_options_clone(shaderc_compile_options);
+            threadOptions.add(options);
+            return options;
+        });
+
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "shaderc-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
+    /**
+     * Compiles on the calling thread.
+     */
     public static Result compile(File inputFile, ShaderType type) throws IOException {
         if (instance == null) throw new RuntimeException("SPIR-V Compiler must be initialized!");
+        ShaderCompileEvent event = new ShaderCompileEvent();
+        event.begin();
+        Result result = lookupOrCompile(inputFile, type);
+        if (event.shouldCommit()) {
+            event.source = inputFile.getPath();
+            event.stage = type.name();
+            event.cacheHit = result.result == 0L;
+            event.spirVSize = result.bytes().remaining();
+            event.commit();
+        }
+        return result;
+    }
+
+    private static Result lookupOrCompile(File inputFile, ShaderType type) throws IOException {
+        Path root = inputFile.toPath().toAbsolutePath().normalize();
+        ByteBuffer glsl = instance.includes.contents(root);
+        IncludeResolver.Session session = instance.includes.session(root, List.of(root.getParent()));
 
-        String glsl = Files.readString(inputFile.toPath());
-        File parentDir = inputFile.getParentFile();
-        IncludeResolver includeResolver = new IncludeResolver(parentDir);
-        shaderc_compile_options_set_include_callbacks(instance.shaderc_compile_options, includeResolver, new IncludeResolver.Releaser(), 0);
+        long sourceKey = 0;
+        if (instance.cache != null) {
+            sourceKey = instance.cache.sourceKey(glsl, type, OPTIONS_SIGNATURE);
+            ByteBuffer cached = instance.cache.lookup(sourceKey, instance.includes, session);
+            if (cached != null) return new Result(cached);
+        }
 
-        long spirV = shaderc_compile_into_spv(instance.shaderc_compiler, glsl, type.shadercGlslType, inputFile.getName(), GLSL_ENTRY_POINT, instance.shaderc_compile_options);
+        long options = instance.localOptions.get();
+        long spirV;
+        try (MemoryStack stack = MemoryStack.stackPush();
+             ShadercIncludeResolve resolveCallback = ShadercIncludeResolve.create(session)) {
+            shaderc_compile_options_set_include_callbacks(options, resolveCallback, instance.includeReleaser, 0);
+            // the absolute path is the source name, relative includes are resolved against it
+            spirV = shaderc_compile_into_spv(instance.shaderc_compiler, glsl, type.shadercGlslType,
+                    stack.UTF8(root.toString()), stack.UTF8(GLSL_ENTRY_POINT), options);
+        }
         checkResult(spirV, shaderc_result_get_compilation_status(spirV));
+        session.commit();
 
-        return new Result(spirV, type);
+        if (instance.cache != null) {
+            instance.cache.store(sourceKey, instance.includes, session, shaderc_result_get_bytes(spirV));
+        }
+        return new Result(spirV);
+    }
+
+    /**
+     * Compiles on the worker pool.
+     */
+    public static CompletableFuture<Result> compileAsync(File inputFile, ShaderType type) {
+        if (instance == null) throw new RuntimeException("SPIR-V Compiler must be initialized!");
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return compile(inputFile, type);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, instance.workers);
+    }
+
+    /**
+     * Compiles a batch of shaders across all cores.
+     * @return one future per source, in the same order
+     */
+    public static List<CompletableFuture<Result>> compileAll(List<Source> sources) {
+        List<CompletableFuture<Result>> results = new ArrayList<>(sources.size());
+        for (Source source : sources) {
+            results.add(compileAsync(source.file(), source.type()));
+        }
+        return results;
+    }
+
+    /**
+     * @return the shared include resolver, which knows the include graph of everything compiled so far
+     */
+    public static IncludeResolver getIncludeResolver() {
+        if (instance == null) throw new RuntimeException("SPIR-V Compiler must be initialized!");
+        return instance.includes;
     }
 
     private static void checkResult(long compile_result, int status_code) {
@@ -55,20 +171,34 @@ public class SpirVCompiler {
         throw new ShaderException("ShaderC compile failed: error " + status_code + " - " + msg);
     }
 
+    public record Source(File file, ShaderType type) {
+    }
+
+    /**
+     * Compiled SPIR-V, either owned by shaderc or mapped from the cache.
+     */
     public static class Result implements AutoCloseable {
         private final long result;
+        private final ByteBuffer bytes;
 
-        private Result(long result, ShaderType type) {
+        private Result(long result) {
             this.result = result;
+            this.bytes = shaderc_result_get_bytes(result);
+        }
+
+        private Result(ByteBuffer cached) {
+            this.result = 0L;
+            this.bytes = cached;
         }
 
         public ByteBuffer bytes() {
-            return shaderc_result_get_bytes(result);
+            return bytes;
         }
 
         @Override
         public void close() {
-            shaderc_result_release(result);
+            // mapped cache files are unmapped by the GC
+            if (result != 0L) shaderc_result_release(result);
         }
     }
 }
@@ -0,0 +1,67 @@
+package com.aivech.atomikvk.texture;
+
+import com.aivech.atomikvk.AtomikVk;
+import com.aivech.atomikvk.common.config.AtomikVkConfig;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.util.xxhash.XXH64State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.lwjgl.util.xxhash.XXHash.*;
+
+/**
+ * Converted textures stored as {@link TextureFile}s, addressed by the contents of the source image and the
+ * conversion settings. A device without BC support gets its own RGBA8 entries rather than a failed load.
+ */
+public class TextureCache {
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".avt";
+
+    private final Path directory;
+
+    public TextureCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the converted texture, converted and stored first on a miss
+     * @param blockCompression whether the device samples BC formats
+     */
+    public TextureFile load(Path source, boolean srgb, boolean blockCompression) throws IOException {
+        String settings = "srgb=" + srgb + ",bc=" + blockCompression;
+        Path cached = directory.resolve(String.format("%016x", key(source, settings)) + SUFFIX);
+        if (Files.isRegularFile(cached)) {
+            try {
+                TextureFile file = TextureFile.open(cached);
+                AtomikVk.LOGGER.debug("Texture cache hit: " + cached.getFileName());
+                return file;
+            } catch (IOException e) {
+                AtomikVk.LOGGER.warn("Ignoring unreadable texture cache entry " + cached, e);
+            }
+        }
+        Files.createDirectories(directory);
+        TextureConverter.convert(source, cached, srgb, blockCompression, AtomikVkConfig.TEXTURE_CACHE_COMPRESSION_LEVEL);
+        return TextureFile.open(cached);
+    }
+
+    private static long key(Path source, String settings) throws IOException {
+        XXH64State state = XXH64_createState();
+        try (MemoryStack stack = MemoryStack.stackPush();
+             FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            XXH64_reset(state, FORMAT_VERSION);
+            XXH64_update(state, stack.UTF8(settings, true));
+            if (channel.size() > 0) {
+                ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                XXH64_update(state, contents);
+            }
+            return XXH64_digest(state);
+        } finally {
+            XXH64_freeState(state);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.aivech.atomikvk.texture;
+
+import com.aivech.atomikvk.common.config.AtomikVkConfig;
+import com.aivech.atomikvk.common.resource.ChunkedFile;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.lwjgl.stb.STBDXT.STB_DXT_HIGHQUAL;
+import static org.lwjgl.stb.STBDXT.nstb_compress_dxt_block;
+import static org.lwjgl.stb.STBImage.*;
+
+/**
+ * Turns anything stb_image reads into a {@link TextureFile}. The mip chain is box filtered on the CPU, colors in
+ * linear space, and encoded with stb_dxt: BC1 for opaque images, BC3 where any texel is translucent. Without block
+ * compression the levels stay RGBA8 and only zstd shrinks them.
+ * <p>
+ * Runs offline from the command line, or on a texture cache miss.
+ */
+public final class TextureConverter {
+    // block rows encoded per task
+    private static final int ROWS_PER_TASK = 16;
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            float c = i / 255f;
+            SRGB_TO_LINEAR[i] = c <= 0.04045f ? c / 12.92f : (float) Math.pow((c + 0.055f) / 1.055f, 2.4f);
+        }
+    }
+
+    private TextureConverter() {
+    }
+
+    /**
+     * Usage: {@code TextureConverter <source> <target> [--linear] [--uncompressed]}
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> flags = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) (arg.startsWith("--") ? flags : paths).add(arg);
+        if (paths.size() != 2) {
+            System.err.println("Usage: TextureConverter <source> <target> [--linear] [--uncompressed]");
+            System.exit(1);
+        }
+        convert(Path.of(paths.get(0)), Path.of(paths.get(1)), !flags.contains("--linear"), !flags.contains("--uncompressed"),
+                AtomikVkConfig.TEXTURE_CACHE_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * @param srgb whether the image holds colors rather than data such as normals, colors are filtered in linear space
+     * @param blockCompression whether to encode BC1 or BC3 rather than keep RGBA8, only for devices that sample BC
+     */
+    public static void convert(Path source, Path target, boolean srgb, boolean blockCompression, int compressionLevel) throws IOException {
+        ByteBuffer pixels;
+        int width, height;
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ); MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer w = stack.mallocInt(1), h = stack.mallocInt(1), channels = stack.mallocInt(1);
+            pixels = stbi_load_from_memory(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), w, h, channels, 4);
+            if (pixels == null) throw new IOException("Failed to decode " + source + ": " + stbi_failure_reason());
+            width = w.get(0);
+            height = h.get(0);
+        }
+
+        List<ByteBuffer> rgba = new ArrayList<>();
+        List<ByteBuffer> encoded = new ArrayList<>();
+        try {
+            TextureEncoding encoding = !blockCompression ? TextureEncoding.RGBA8 : isOpaque(pixels) ? TextureEncoding.BC1 : TextureEncoding.BC3;
+            int levelCount = TextureFile.fullMipChain(width, height);
+            for (int level = 1; level < levelCount; level++) {
+                ByteBuffer above = level == 1 ? pixels : rgba.get(level - 2);
+                rgba.add(downsample(above, Math.max(1, width >> (level - 1)), Math.max(1, height >> (level - 1)), srgb));
+            }
+            if (encoding.isBlockCompressed()) {
+                for (int level = 0; level < levelCount; level++) {
+                    ByteBuffer texels = level == 0 ? pixels : rgba.get(level - 1);
+                    encoded.add(encodeBlocks(texels, Math.max(1, width >> level), Math.max(1, height >> level), encoding));
+                }
+            } else {
+                encoded.add(pixels);
+                encoded.addAll(rgba);
+            }
+            TextureFile.write(target, encoding, srgb, width, height, encoded, compressionLevel);
+        } finally {
+            stbi_image_free(pixels);
+            rgba.forEach(MemoryUtil::memFree);
+            // the RGBA8 levels are the same buffers as above
+            if (!encoded.isEmpty() && encoded.get(0) != pixels) encoded.forEach(MemoryUtil::memFree);
+        }
+    }
+
+    private static boolean isOpaque(ByteBuffer rgba) {
+        for (int i = 3; i < rgba.limit(); i += 4) {
+            if (rgba.get(i) != (byte) 0xff) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Averages each 2x2 square into a texel of the next level. Odd edges repeat their last row or column.
+     */
+    private static ByteBuffer downsample(ByteBuffer src, int width, int height, boolean srgb) {
+        int dstWidth = Math.max(1, width >> 1), dstHeight = Math.max(1, height >> 1);
+        ByteBuffer dst = MemoryUtil.memAlloc(dstWidth * dstHeight * 4);
+        for (int y = 0; y < dstHeight; y++) {
+            int y0 = Math.min(y * 2, height - 1), y1 = Math.min(y * 2 + 1, height - 1);
+            for (int x = 0; x < dstWidth; x++) {
+                int x0 = Math.min(x * 2, width - 1), x1 = Math.min(x * 2 + 1, width - 1);
+                int a = (y0 * width + x0) * 4, b = (y0 * width + x1) * 4, c = (y1 * width + x0) * 4, d = (y1 * width + x1) * 4;
+                int out = (y * dstWidth + x) * 4;
+                for (int channel = 0; channel < 4; channel++) {
+                    int sa = Byte.toUnsignedInt(src.get(a + channel)), sb = Byte.toUnsignedInt(src.get(b + channel));
+                    int sc = Byte.toUnsignedInt(src.get(c + channel)), sd = Byte.toUnsignedInt(src.get(d + channel));
+                    int value;
+                    if (srgb && channel < 3) {
+                        float linear = (SRGB_TO_LINEAR[sa] + SRGB_TO_LINEAR[sb] + SRGB_TO_LINEAR[sc] + SRGB_TO_LINEAR[sd]) * 0.25f;
+                        value = linearToSrgb(linear);
+                    } else {
+                        value = (sa + sb + sc + sd + 2) >> 2;
+                    }
+                    dst.put(out + channel, (byte) value);
+                }
+            }
+        }
+        return dst;
+    }
+
+    private static int linearToSrgb(float linear) {
+        float c = linear <= 0.0031308f ? linear * 12.92f : 1.055f * (float) Math.pow(linear, 1 / 2.4f) - 0.055f;
+        return Math.round(Math.min(1f, Math.max(0f, c)) * 255f);
+    }
+
+    /**
+     * Encodes bands of block rows in parallel. Blocks hanging over the edge repeat the last row or column.
+     */
+    private static ByteBuffer encodeBlocks(ByteBuffer rgba, int width, int height, TextureEncoding encoding) {
+        int blocksX = (width + 3) / 4, blocksY = (height + 3) / 4;
+        ByteBuffer dst = MemoryUtil.memAlloc((int) encoding.levelSize(width, height));
+        long src = MemoryUtil.memAddress(rgba), out = MemoryUtil.memAddress(dst);
+        boolean alpha = encoding == TextureEncoding.BC3;
+
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (int first = 0; first < blocksY; first += ROWS_PER_TASK) {
+            int firstRow = first, lastRow = Math.min(blocksY, first + ROWS_PER_TASK);
+            pending.add(CompletableFuture.runAsync(() -> {
+                try (MemoryStack stack = MemoryStack.stackPush()) {
+                    long block = MemoryUtil.memAddress(stack.malloc(16 * 4));
+                    for (int by = firstRow; by < lastRow; by++) {
+                        for (int bx = 0; bx < blocksX; bx++) {
+                            for (int y = 0; y < 4; y++) {
+                                int sy = Math.min(by * 4 + y, height - 1);
+                                for (int x = 0; x < 4; x++) {
+                                    int sx = Math.min(bx * 4 + x, width - 1);
+                                    MemoryUtil.memPutInt(block + (y * 4 + x) * 4, MemoryUtil.memGetInt(src + ((long) sy * width + sx) * 4));
+                                }
+                            }
+                            nstb_compress_dxt_block(out + ((long) by * blocksX + bx) * encoding.blockBytes, block, alpha ? 1 : 0, STB_DXT_HIGHQUAL);
+                        }
+                    }
+                }
+            }, ChunkedFile.WORKERS));
+        }
+        try {
+            CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            MemoryUtil.memFree(dst);
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+        return dst;
+    }
+}
@@ -0,0 +1,46 @@
+package com.aivech.atomikvk.texture;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * How the texels of a {@link TextureFile} level are laid out, either plain RGBA8 or blocks of 4x4 texels.
+ */
+public enum TextureEncoding {
+    RGBA8(1, 4, VK_FORMAT_R8G8B8A8_UNORM, VK_FORMAT_R8G8B8A8_SRGB),
+    // opaque colors, 4 bits per texel
+    BC1(4, 8, VK_FORMAT_BC1_RGB_UNORM_BLOCK, VK_FORMAT_BC1_RGB_SRGB_BLOCK),
+    // BC1 colors with interpolated alpha, 8 bits per texel
+    BC3(4, 16, VK_FORMAT_BC3_UNORM_BLOCK, VK_FORMAT_BC3_SRGB_BLOCK);
+
+    public final int blockSize;
+    public final int blockBytes;
+    private final int unormFormat;
+    private final int srgbFormat;
+
+    TextureEncoding(int blockSize, int blockBytes, int unormFormat, int srgbFormat) {
+        this.blockSize = blockSize;
+        this.blockBytes = blockBytes;
+        this.unormFormat = unormFormat;
+        this.srgbFormat = srgbFormat;
+    }
+
+    public boolean isBlockCompressed() {
+        return blockSize > 1;
+    }
+
+    /**
+     * @return the {@code VK_FORMAT_*} the texels are sampled as
+     */
+    public int vkFormat(boolean srgb) {
+        return srgb ? srgbFormat : unormFormat;
+    }
+
+    /**
+     * @return the bytes a level of the given size takes, partial blocks at the edges count as whole ones
+     */
+    public long levelSize(int width, int height) {
+        long blocksX = (width + blockSize - 1) / blockSize;
+        long blocksY = (height + blockSize - 1) / blockSize;
+        return blocksX * blocksY * blockBytes;
+    }
+}
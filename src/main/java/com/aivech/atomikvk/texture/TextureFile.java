@@ -0,0 +1,136 @@
+package com.aivech.atomikvk.texture;
+
+import com.aivech.atomikvk.common.resource.ChunkedFile;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static com.aivech.atomikvk.common.resource.ChunkedFile.putString;
+import static com.aivech.atomikvk.common.resource.ChunkedFile.readString;
+
+/**
+ * The texture cache container: a full mip chain already in the layout the GPU samples, block compressed where the
+ * device supports it. The levels are the streams of a {@link ChunkedFile}, zstd on top of the block compression, so
+ * they decompress in parallel and straight into staging memory.
+ * <p>
+ * The header ahead of the chunk table, little endian:
+ * <pre>
+ * header   magic, version, width, height, level count, chunk count, flags, encoding name
+ * </pre>
+ * Level sizes follow from the encoding and the dimensions, halved per level down to 1x1. Flag 1 marks sRGB colors.
+ */
+public final class TextureFile {
+    private static final int MAGIC = 0x58545641; // "AVTX"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 7 * Integer.BYTES;
+    private static final int FLAG_SRGB = 1;
+
+    public final TextureEncoding encoding;
+    public final boolean srgb;
+    public final int width;
+    public final int height;
+    public final int levelCount;
+    private final ChunkedFile levels;
+
+    private TextureFile(ByteBuffer contents) throws IOException {
+        if (contents.getInt() != MAGIC) throw new IOException("Not a texture file");
+        int version = contents.getInt();
+        if (version != FORMAT_VERSION) throw new IOException("Unsupported texture file version " + version);
+        width = contents.getInt();
+        height = contents.getInt();
+        levelCount = contents.getInt();
+        int chunkCount = contents.getInt();
+        srgb = (contents.getInt() & FLAG_SRGB) != 0;
+        encoding = TextureEncoding.valueOf(readString(contents));
+        if (width <= 0 || height <= 0 || levelCount <= 0 || levelCount > fullMipChain(width, height)) {
+            throw new IOException("Invalid size " + width + "x" + height + " with " + levelCount + " levels");
+        }
+
+        long[] levelSizes = new long[levelCount];
+        for (int level = 0; level < levelCount; level++) levelSizes[level] = encoding.levelSize(width(level), height(level));
+        levels = new ChunkedFile(contents, chunkCount, levelSizes, "texture");
+    }
+
+    /**
+     * Maps the file and reads its tables. The levels stay compressed until {@link #decompress} is called.
+     */
+    public static TextureFile open(Path path) throws IOException {
+        ByteBuffer contents = ChunkedFile.map(path, HEADER_SIZE, "texture");
+        try {
+            return new TextureFile(contents);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed texture file " + path, e);
+        }
+    }
+
+    /**
+     * @return the number of levels in a full chain down to 1x1
+     */
+    public static int fullMipChain(int width, int height) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+    }
+
+    public int vkFormat() {
+        return encoding.vkFormat(srgb);
+    }
+
+    public int width(int level) {
+        return Math.max(1, width >> level);
+    }
+
+    public int height(int level) {
+        return Math.max(1, height >> level);
+    }
+
+    public long levelSize(int level) {
+        return levels.streamSize(level);
+    }
+
+    /**
+     * Decompresses one level to the target's position and advances the position.
+     */
+    public void decompress(int level, ByteBuffer target) {
+        decompress(new int[]{level}, new ByteBuffer[]{target});
+    }
+
+    /**
+     * Decompresses several levels, each to the position of its target, on the chunk workers and advances the
+     * positions. Every chunk of every level runs in parallel, this blocks until all are done.
+     */
+    public void decompress(int[] levels, ByteBuffer[] targets) {
+        this.levels.decompress(levels, targets);
+    }
+
+    /**
+     * Writes a mip chain, level 0 first, each level from its buffer's position to its limit.
+     */
+    public static void write(Path path, TextureEncoding encoding, boolean srgb, int width, int height, List<ByteBuffer> levels, int compressionLevel) throws IOException {
+        if (levels.isEmpty() || levels.size() > fullMipChain(width, height)) {
+            throw new IllegalArgumentException(levels.size() + " levels for a " + width + "x" + height + " texture");
+        }
+        for (int level = 0; level < levels.size(); level++) {
+            long expected = encoding.levelSize(Math.max(1, width >> level), Math.max(1, height >> level));
+            if (levels.get(level).remaining() != expected) {
+                throw new IllegalArgumentException("Level " + level + " holds " + levels.get(level).remaining() + " bytes instead of " + expected);
+            }
+        }
+
+        byte[] name = encoding.name().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = MemoryUtil.memAlloc(HEADER_SIZE + Short.BYTES + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            header.putInt(MAGIC).putInt(FORMAT_VERSION)
+                    .putInt(width).putInt(height).putInt(levels.size()).putInt(ChunkedFile.chunkCount(levels))
+                    .putInt(srgb ? FLAG_SRGB : 0);
+            putString(header, name);
+            ChunkedFile.write(path, header.flip(), levels, compressionLevel, "texture");
+        } finally {
+            MemoryUtil.memFree(header);
+        }
+    }
+}
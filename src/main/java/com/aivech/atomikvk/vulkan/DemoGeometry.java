@@ -0,0 +1,106 @@
+package com.aivech.atomikvk.vulkan;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.vulkan.VK10.VK_VERTEX_INPUT_RATE_INSTANCE;
+
+/**
+ * The built-in quads and triangles, as flat attribute arrays the way a mesh loader hands them over.
+ */
+final class DemoGeometry {
+    // half positions and 8 bit colors, 8 bytes a vertex where full floats took 20
+    static final VertexFormat FORMAT = VertexFormat.interleaved(VertexFormat.Encoding.HALF2, VertexFormat.Encoding.UNORM8X3);
+    // per instance: x and y offset and a scale, then a tint
+    static final VertexFormat INSTANCE_FORMAT = VertexFormat.builder()
+            .binding(VK_VERTEX_INPUT_RATE_INSTANCE)
+            .attribute(2, VertexFormat.Encoding.FLOAT3)
+            .attribute(3, VertexFormat.Encoding.UNORM8X3)
+            .build();
+    static final VertexFormat PIPELINE_FORMAT = FORMAT.with(INSTANCE_FORMAT);
+
+    static final float[] POSITIONS = {
+            -.25f, -.25f - .625f,
+            .25f, -.25f - .625f,
+            .25f, .25f - .625f,
+            -.25f, .25f - .625f,
+
+            // bottom center
+            0.0f, -0.25f + .625f,
+            0.25f, 0.25f + .625f,
+            -0.25f, 0.25f + .625f,
+
+            // bottom left
+            0.0f - .625f, -0.25f + .5f,
+            0.25f - .625f, 0.25f + .5f,
+            -0.25f - .625f, 0.25f + .5f,
+
+            // bottom right
+            0.0f + .625f, -0.25f + .5f,
+            0.25f + .625f, 0.25f + .5f,
+            -0.25f + .625f, 0.25f + .5f,
+
+            // top left
+            0.0f - .625f, -0.25f - .5f,
+            0.25f - .625f, 0.25f - .5f,
+            -0.25f - .625f, 0.25f - .5f,
+
+            // top right
+            0.0f + .625f, -0.25f - .5f,
+            0.25f + .625f, 0.25f - .5f,
+            -0.25f + .625f, 0.25f - .5f,
+    };
+
+    static final float[] COLORS = {
+            1f, 0f, 0f,
+            0f, 1f, 0f,
+            0f, 0f, 1f,
+            1f, 1f, 1f,
+
+            1.0f, 1.0f, 1.0f,
+            0.5f, .5f, .5f,
+            0f, 0.0f, 0f,
+
+            1.0f, 0f, 0.0f,
+            1.0f, 1f, 0f,
+            1f, 0f, 1.0f,
+
+            0f, 1f, 0.0f,
+            1.0f, 1f, 0f,
+            0.0f, 1.0f, 1.0f,
+
+            0f, 0f, 1f,
+            1.0f, 0.0f, 1.0f,
+            0.0f, 1.0f, 1.0f,
+
+            1f, .5f, 0.0f,
+            1f, 1f, 0f,
+            1f, 0f, 0f,
+    };
+
+    static final short[] INDICES = {
+            0,1,2,2,3,0,
+            4,5,6,7,8,9,
+            10,11,12,13,14,15,
+            16,17,18
+    };
+
+    static final int VERTEX_COUNT = POSITIONS.length / 2;
+    static final IndexType INDEX_TYPE = IndexType.UINT16;
+
+    private DemoGeometry() {
+    }
+
+    /**
+     * @return the packed vertices, to be closed by the caller
+     */
+    static VertexBuilder vertices() {
+        return new VertexBuilder(FORMAT, VERTEX_COUNT)
+                .put(0, POSITIONS)
+                .put(1, COLORS);
+    }
+
+    static void indexCopy(ByteBuffer buffer) {
+        buffer.asShortBuffer().put(INDICES);
+        buffer.position(buffer.position() + INDICES.length * Short.BYTES);
+    }
+}
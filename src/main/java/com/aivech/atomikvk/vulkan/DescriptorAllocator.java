@@ -0,0 +1,108 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDescriptorPoolCreateInfo;
+import org.lwjgl.vulkan.VkDescriptorPoolSize;
+import org.lwjgl.vulkan.VkDescriptorSetAllocateInfo;
+import org.lwjgl.vulkan.VkDevice;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+import static org.lwjgl.vulkan.VK11.VK_ERROR_OUT_OF_POOL_MEMORY;
+
+/**
+ * Descriptor sets that only live for one frame. Sets are never freed one by one: the pools they come from are reset
+ * wholesale when the frame comes around again, and a new, larger pool is added whenever the current one runs out.
+ */
+final class DescriptorAllocator {
+    // descriptors of each type per set in a pool, a rough guess at what a set holds
+    private static final int[][] POOL_RATIOS = {
+            {VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, 2},
+            {VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC, 1},
+            {VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, 2},
+            {VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, 4},
+            {VK_DESCRIPTOR_TYPE_SAMPLED_IMAGE, 2},
+            {VK_DESCRIPTOR_TYPE_SAMPLER, 1},
+    };
+    private static final int MAX_SETS_PER_POOL = 4096;
+
+    private final VkDevice device;
+    private final List<Long> usedPools = new ArrayList<>();
+    private final ArrayDeque<Long> freePools = new ArrayDeque<>();
+    private long current = VK_NULL_HANDLE;
+    private int setsPerPool;
+
+    DescriptorAllocator(VkDevice device, int setsPerPool) {
+        this.device = device;
+        this.setsPerPool = setsPerPool;
+    }
+
+    /**
+     * Called from the recording workers too, so allocations are serialized.
+     */
+    synchronized long allocate(long layout) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var allocInfo = VkDescriptorSetAllocateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
+                    .pSetLayouts(stack.longs(layout));
+            var pointer = stack.mallocLong(1);
+            if (current != VK_NULL_HANDLE) {
+                int result = vkAllocateDescriptorSets(device, allocInfo.descriptorPool(current), pointer);
+                if (result == VK_SUCCESS) return pointer.get(0);
+                if (result != VK_ERROR_OUT_OF_POOL_MEMORY && result != VK_ERROR_FRAGMENTED_POOL) {
+                    _CHECK_(result, "Failed to allocate descriptor set");
+                }
+            }
+            current = nextPool();
+            _CHECK_(vkAllocateDescriptorSets(device, allocInfo.descriptorPool(current), pointer), "Failed to allocate descriptor set from a fresh pool");
+            return pointer.get(0);
+        }
+    }
+
+    private long nextPool() {
+        long pool;
+        if (!freePools.isEmpty()) {
+            pool = freePools.poll();
+        } else {
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                var sizes = VkDescriptorPoolSize.calloc(POOL_RATIOS.length, stack);
+                for (int i = 0; i < POOL_RATIOS.length; i++) {
+                    sizes.get(i).type(POOL_RATIOS[i][0]).descriptorCount(POOL_RATIOS[i][1] * setsPerPool);
+                }
+                var createInfo = VkDescriptorPoolCreateInfo.calloc(stack)
+                        .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO)
+                        .maxSets(setsPerPool)
+                        .pPoolSizes(sizes);
+                var pointer = stack.mallocLong(1);
+                _CHECK_(vkCreateDescriptorPool(device, createInfo, null, pointer), "Failed to create descriptor pool");
+                pool = pointer.get(0);
+            }
+            // a frame that outgrew its pools will likely do so again
+            setsPerPool = Math.min(setsPerPool * 2, MAX_SETS_PER_POOL);
+        }
+        usedPools.add(pool);
+        return pool;
+    }
+
+    /**
+     * Frees every set handed out since the last reset. The GPU must be done with all of them.
+     */
+    synchronized void reset() {
+        for (long pool : usedPools) {
+            _CHECK_(vkResetDescriptorPool(device, pool, 0), "Failed to reset descriptor pool");
+            freePools.add(pool);
+        }
+        usedPools.clear();
+        current = VK_NULL_HANDLE;
+    }
+
+    synchronized void destroy() {
+        reset();
+        for (long pool : freePools) vkDestroyDescriptorPool(device, pool, null);
+        freePools.clear();
+    }
+}
@@ -0,0 +1,65 @@
+package com.aivech.atomikvk.vulkan;
+
+import com.google.common.collect.ImmutableList;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDescriptorSetLayoutBinding;
+import org.lwjgl.vulkan.VkDescriptorSetLayoutCreateInfo;
+import org.lwjgl.vulkan.VkDevice;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Descriptor set layouts by binding signature, so pipelines that declare the same bindings share one layout and
+ * their sets stay compatible.
+ */
+final class DescriptorLayoutCache {
+    private final VkDevice device;
+    private final ConcurrentHashMap<ImmutableList<Binding>, Long> layouts = new ConcurrentHashMap<>();
+
+    /**
+     * @param type a {@code VK_DESCRIPTOR_TYPE_*}
+     * @param stages the {@code VK_SHADER_STAGE_*} bits that read it
+     */
+    record Binding(int binding, int type, int count, int stages) {
+    }
+
+    DescriptorLayoutCache(VkDevice device) {
+        this.device = device;
+    }
+
+    long get(Binding... bindings) {
+        Binding[] sorted = bindings.clone();
+        Arrays.sort(sorted, Comparator.comparingInt(Binding::binding));
+        return layouts.computeIfAbsent(ImmutableList.copyOf(sorted), this::create);
+    }
+
+    private long create(ImmutableList<Binding> bindings) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var p_bindings = VkDescriptorSetLayoutBinding.calloc(bindings.size(), stack);
+            for (int i = 0; i < bindings.size(); i++) {
+                Binding binding = bindings.get(i);
+                p_bindings.get(i)
+                        .binding(binding.binding)
+                        .descriptorType(binding.type)
+                        .descriptorCount(binding.count)
+                        .stageFlags(binding.stages);
+            }
+            var createInfo = VkDescriptorSetLayoutCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO)
+                    .pBindings(p_bindings);
+            var pointer = stack.mallocLong(1);
+            _CHECK_(vkCreateDescriptorSetLayout(device, createInfo, null, pointer), "Failed to create descriptor set layout");
+            return pointer.get(0);
+        }
+    }
+
+    void destroy() {
+        for (long layout : layouts.values()) vkDestroyDescriptorSetLayout(device, layout, null);
+        layouts.clear();
+    }
+}
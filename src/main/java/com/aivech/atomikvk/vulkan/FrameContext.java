@@ -0,0 +1,229 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Everything one frame in flight owns: a command pool that is reset wholesale when the frame comes around again, the
+ * command buffer recorded from it, one pool of secondary command buffers per recording worker, the acquire semaphore
+ * and submit fence, a host visible buffer for data that only lives for the frame, and descriptor sets that are
+ * reset along with it. None of it depends on the swapchain, so the number of contexts is independent of the image
+ * count the presentation engine picks.
+ */
+final class FrameContext {
+    // the least maxUniformBufferRange every device supports
+    static final int UNIFORM_RANGE = 16 * 1024;
+    static final DescriptorLayoutCache.Binding UNIFORM_BINDING = new DescriptorLayoutCache.Binding(0,
+            VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC, 1, VK_SHADER_STAGE_VERTEX_BIT | VK_SHADER_STAGE_FRAGMENT_BIT);
+
+    final int index;
+    final long commandPool;
+    final VkCommandBuffer commandBuffer;
+    final long imageAvailable;
+    final long fence;
+    final GraphicsBuffer transientBuffer;
+    private final long transientAddress;
+    // bumped by the recording workers too
+    private final AtomicLong transientOffset = new AtomicLong();
+    final DescriptorAllocator descriptors;
+    // one dynamic uniform buffer descriptor over the transient buffer, written once. Draws pick their slice with a
+    // dynamic offset, so per-draw uniforms never touch a descriptor.
+    final long uniformSet;
+    private final long uniformPool;
+    private final long uniformAlignment;
+    // command pools are externally synchronized, so every recording worker gets its own
+    private final long[] workerPools;
+    private final List<List<VkCommandBuffer>> workerBuffers;
+    private final int[] workerBuffersUsed;
+
+    FrameContext(VkDevice device, MemoryAllocator allocator, DescriptorLayoutCache layouts, long uniformAlignment,
+                 int queueFamily, int index, long transientSize, int workerCount) {
+        this.index = index;
+        this.uniformAlignment = uniformAlignment;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var poolInfo = VkCommandPoolCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+                    .flags(VK_COMMAND_POOL_CREATE_TRANSIENT_BIT)
+                    .queueFamilyIndex(queueFamily);
+            var pointer = stack.mallocLong(1);
+            _CHECK_(vkCreateCommandPool(device, poolInfo, null, pointer), "Failed to create frame command pool.");
+            commandPool = pointer.get(0);
+
+            workerPools = new long[workerCount];
+            workerBuffers = new ArrayList<>(workerCount);
+            workerBuffersUsed = new int[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                _CHECK_(vkCreateCommandPool(device, poolInfo, null, pointer), "Failed to create worker command pool.");
+                workerPools[i] = pointer.get(0);
+                workerBuffers.add(new ArrayList<>());
+            }
+
+            var allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+                    .commandPool(commandPool)
+                    .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
+                    .commandBufferCount(1);
+            var p_buffer = stack.mallocPointer(1);
+            _CHECK_(vkAllocateCommandBuffers(device, allocInfo, p_buffer), "Failed to allocate frame command buffer.");
+            commandBuffer = new VkCommandBuffer(p_buffer.get(0), device);
+
+            var semaphoreInfo = VkSemaphoreCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+            _CHECK_(vkCreateSemaphore(device, semaphoreInfo, null, pointer), "Failed to create semaphores.");
+            imageAvailable = pointer.get(0);
+
+            var fenceInfo = VkFenceCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO)
+                    .flags(VK_FENCE_CREATE_SIGNALED_BIT);
+            _CHECK_(vkCreateFence(device, fenceInfo, null, pointer), "Failed to create fence.");
+            fence = pointer.get(0);
+        }
+        // device local if the device has host visible VRAM, plain host memory otherwise. Lives as long as the renderer,
+        // in a linear block it would keep the staging overflow buffers sharing that block from ever being recycled
+        transientBuffer = new GraphicsBuffer(allocator, device, transientSize,
+                VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_INDEX_BUFFER_BIT | VK_BUFFER_USAGE_UNIFORM_BUFFER_BIT
+                        | VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT,
+                VK_SHARING_MODE_EXCLUSIVE, MemoryAllocator.Strategy.FREE_LIST,
+                VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT | VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+        transientAddress = MemoryUtil.memAddress(transientBuffer.mapped());
+
+        descriptors = new DescriptorAllocator(device, 64);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var poolSize = VkDescriptorPoolSize.calloc(1, stack)
+                    .type(UNIFORM_BINDING.type())
+                    .descriptorCount(1);
+            var poolInfo = VkDescriptorPoolCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO)
+                    .maxSets(1)
+                    .pPoolSizes(poolSize);
+            var pointer = stack.mallocLong(1);
+            _CHECK_(vkCreateDescriptorPool(device, poolInfo, null, pointer), "Failed to create frame uniform descriptor pool.");
+            uniformPool = pointer.get(0);
+
+            var allocInfo = VkDescriptorSetAllocateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO)
+                    .descriptorPool(uniformPool)
+                    .pSetLayouts(stack.longs(layouts.get(UNIFORM_BINDING)));
+            _CHECK_(vkAllocateDescriptorSets(device, allocInfo, pointer), "Failed to allocate frame uniform descriptor set.");
+            uniformSet = pointer.get(0);
+
+            var bufferInfo = VkDescriptorBufferInfo.calloc(1, stack)
+                    .buffer(transientBuffer.buffer)
+                    .offset(0)
+                    .range(UNIFORM_RANGE);
+            var write = VkWriteDescriptorSet.calloc(1, stack)
+                    .sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+                    .dstSet(uniformSet)
+                    .dstBinding(UNIFORM_BINDING.binding())
+                    .descriptorType(UNIFORM_BINDING.type())
+                    .descriptorCount(1)
+                    .pBufferInfo(bufferInfo);
+            vkUpdateDescriptorSets(device, write, null);
+        }
+    }
+
+    /**
+     * Waits until the GPU is done with the last frame recorded here, then recycles the command pool, transient
+     * buffer and descriptor sets. The fence is left signaled and only reset right before the next submit, so a
+     * frame abandoned after this call never leaves it unsignaled.
+     */
+    void begin(VkDevice device) {
+        vkWaitForFences(device, fence, true, -1);
+        _CHECK_(vkResetCommandPool(device, commandPool, 0), "Failed to reset frame command pool.");
+        for (int i = 0; i < workerPools.length; i++) {
+            _CHECK_(vkResetCommandPool(device, workerPools[i], 0), "Failed to reset worker command pool.");
+            workerBuffersUsed[i] = 0;
+        }
+        transientOffset.set(0);
+        descriptors.reset();
+    }
+
+    /**
+     * Hands out a secondary command buffer from a worker's pool, reusing the ones allocated in earlier frames.
+     * Must only be called from that worker's thread.
+     */
+    VkCommandBuffer secondaryCommandBuffer(VkDevice device, int worker) {
+        List<VkCommandBuffer> buffers = workerBuffers.get(worker);
+        int used = workerBuffersUsed[worker]++;
+        if (used < buffers.size()) return buffers.get(used);
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+                    .commandPool(workerPools[worker])
+                    .level(VK_COMMAND_BUFFER_LEVEL_SECONDARY)
+                    .commandBufferCount(1);
+            var p_buffer = stack.mallocPointer(1);
+            _CHECK_(vkAllocateCommandBuffers(device, allocInfo, p_buffer), "Failed to allocate secondary command buffer.");
+            VkCommandBuffer buffer = new VkCommandBuffer(p_buffer.get(0), device);
+            buffers.add(buffer);
+            return buffer;
+        }
+    }
+
+    /**
+     * Bump allocates from this frame's transient buffer. The memory is valid until the context comes around again.
+     * @return the offset into {@link #transientBuffer}
+     */
+    long allocateTransient(long size, long alignment) {
+        while (true) {
+            long current = transientOffset.get();
+            long offset = RangeAllocator.alignUp(current, alignment);
+            if (offset + size > transientBuffer.size) {
+                throw new RuntimeException("Frame transient buffer exhausted: " + (offset + size) + " > " + transientBuffer.size);
+            }
+            if (transientOffset.compareAndSet(current, offset + size)) return offset;
+        }
+    }
+
+    /**
+     * Hands out a slice of transient memory for uniforms read through {@link #uniformSet}. Fill it at
+     * {@link #transientAddress} and bind the set with the offset as its dynamic offset.
+     * @return the offset into {@link #transientBuffer}, aligned for uniform buffers
+     */
+    long allocateUniform(long size) {
+        if (size > UNIFORM_RANGE) throw new IllegalArgumentException("Uniform slice of " + size + " bytes is larger than " + UNIFORM_RANGE);
+        long offset = allocateTransient(size, uniformAlignment);
+        // the descriptor always covers UNIFORM_RANGE bytes past the dynamic offset
+        if (offset + UNIFORM_RANGE > transientBuffer.size) {
+            throw new RuntimeException("Frame transient buffer exhausted by uniforms at " + offset);
+        }
+        return offset;
+    }
+
+    /**
+     * @return the mapped address of transient memory at {@code offset}
+     */
+    long transientAddress(long offset) {
+        return transientAddress + offset;
+    }
+
+    /**
+     * @return a view of {@code size} bytes of transient memory at {@code offset}
+     */
+    ByteBuffer transientMemory(long offset, long size) {
+        return transientBuffer.mapped().slice((int) offset, (int) size);
+    }
+
+    void destroy(VkDevice device) {
+        descriptors.destroy();
+        vkDestroyDescriptorPool(device, uniformPool, null);
+        transientBuffer.free(device);
+        vkDestroyFence(device, fence, null);
+        vkDestroySemaphore(device, imageAvailable, null);
+        for (long pool : workerPools) {
+            vkDestroyCommandPool(device, pool, null);
+        }
+        vkDestroyCommandPool(device, commandPool, null);
+    }
+}
@@ -0,0 +1,237 @@
+package com.aivech.atomikvk.vulkan;
+
+import com.aivech.atomikvk.AtomikVk;
+import com.aivech.atomikvk.common.capture.CapturedFrame;
+import com.aivech.atomikvk.common.capture.FrameConsumer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Copies finished frames into a ring of persistently mapped host buffers. Every slot has its own command buffer and
+ * fence; its copy is submitted right behind the frame and polled without blocking. Finished slots are handed to the
+ * consumer on worker threads as views of the mapped memory and come back to the ring when the consumer closes them.
+ * <p>
+ * Neither the GPU nor the render thread ever waits on a consumer: when every slot is still held, the frame simply isn't
+ * captured and is counted as dropped.
+ */
+final class FrameReadback {
+    // how long shutdown waits for the consumers to return and close their frames
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final MemoryAllocator allocator;
+    private final int width;
+    private final int height;
+    private final long commandPool;
+    private final Slot[] slots;
+    private final ConcurrentLinkedQueue<Slot> free = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Slot> inFlight = new ArrayDeque<>();
+    private final ExecutorService workers;
+    private FrameConsumer consumer;
+    private long captured;
+    private long dropped;
+
+    FrameReadback(VkDevice device, MemoryAllocator allocator, int queueFamily, int width, int height, int slotCount, int workerCount) {
+        this.allocator = allocator;
+        this.width = width;
+        this.height = height;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var poolInfo = VkCommandPoolCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+                    .flags(VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT)
+                    .queueFamilyIndex(queueFamily);
+            var pointer = stack.mallocLong(1);
+            _CHECK_(vkCreateCommandPool(device, poolInfo, null, pointer), "Failed to create readback command pool.");
+            commandPool = pointer.get(0);
+        }
+        slots = new Slot[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new Slot(device, (long) width * height * CapturedFrame.CHANNELS);
+            free.add(slots[i]);
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "readback-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param consumer receives every captured frame, or null to stop capturing
+     */
+    void setConsumer(FrameConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    boolean isCapturing() {
+        return consumer != null;
+    }
+
+    /**
+     * Submits a copy of the image, which the frame just submitted to the same queue renders into and leaves in
+     * {@code TRANSFER_SRC_OPTIMAL}.
+     * @return the fence that signals once the copy, and with it the frame, has finished, or {@code VK_NULL_HANDLE} if
+     * the frame was dropped
+     */
+    long capture(VkDevice device, VkQueue queue, long image, long frameNumber) {
+        Slot slot = free.poll();
+        if (slot == null) {
+            dropped++;
+            return VK_NULL_HANDLE;
+        }
+        slot.frameNumber = frameNumber;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var beginInfo = VkCommandBufferBeginInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+                    .flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+            _CHECK_(vkBeginCommandBuffer(slot.commandBuffer, beginInfo), "Failed to begin readback command buffer.");
+            var region = VkBufferImageCopy.calloc(1, stack)
+                    .bufferOffset(0)
+                    .bufferRowLength(0) // tightly packed
+                    .bufferImageHeight(0);
+            region.imageSubresource().set(VK_IMAGE_ASPECT_COLOR_BIT, 0, 0, 1);
+            region.imageExtent().set(width, height, 1);
+            vkCmdCopyImageToBuffer(slot.commandBuffer, image, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, slot.buffer.buffer, region);
+            // make the transfer writes visible to the host once the fence signals
+            var barrier = VkBufferMemoryBarrier.calloc(1, stack)
+                    .sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER)
+                    .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+                    .dstAccessMask(VK_ACCESS_HOST_READ_BIT)
+                    .srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                    .dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                    .buffer(slot.buffer.buffer)
+                    .offset(0)
+                    .size(VK_WHOLE_SIZE);
+            vkCmdPipelineBarrier(slot.commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_HOST_BIT, 0,
+                    null, barrier, null);
+            _CHECK_(vkEndCommandBuffer(slot.commandBuffer), "Failed to record readback command buffer.");
+
+            var submitInfo = VkSubmitInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                    .pCommandBuffers(stack.pointers(slot.commandBuffer));
+            vkResetFences(device, slot.fence);
+            synchronized (queue) {
+                _CHECK_(vkQueueSubmit(queue, submitInfo, slot.fence), "Failed to submit readback.");
+            }
+        }
+        inFlight.add(slot);
+        captured++;
+        return slot.fence;
+    }
+
+    /**
+     * Hands every finished copy to the consumer, in submission order. Never blocks.
+     */
+    void poll(VkDevice device) {
+        while (!inFlight.isEmpty() && vkGetFenceStatus(device, inFlight.peek().fence) == VK_SUCCESS) {
+            deliver(inFlight.poll());
+        }
+    }
+
+    private void deliver(Slot slot) {
+        allocator.invalidate(slot.buffer.allocation, 0, slot.buffer.size);
+        FrameConsumer target = consumer;
+        CapturedFrame frame = new CapturedFrame(slot.frameNumber, width, height, slot.buffer.mapped(), () -> release(slot));
+        if (target == null) {
+            frame.close();
+            return;
+        }
+        workers.execute(() -> {
+            try {
+                target.accept(frame);
+            } catch (RuntimeException e) {
+                frame.close();
+                AtomikVk.LOGGER.error("Frame consumer failed on frame " + frame.frameNumber(), e);
+            }
+        });
+    }
+
+    private void release(Slot slot) {
+        free.add(slot);
+        synchronized (free) {
+            free.notifyAll();
+        }
+    }
+
+    /**
+     * Delivers what is still in flight and waits for the consumers to close every frame, which they may do after
+     * {@code accept} returned. Only call with the device idle.
+     */
+    void destroy(VkDevice device) {
+        poll(device);
+        workers.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_TIMEOUT_SECONDS);
+        try {
+            if (!workers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) workers.shutdownNow();
+            synchronized (free) {
+                long remaining;
+                while (free.size() < slots.length && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(free, remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (captured > 0 || dropped > 0) {
+            AtomikVk.LOGGER.info("Frame readback: " + captured + " frames captured, " + dropped + " dropped");
+        }
+        for (Slot slot : slots) {
+            if (free.contains(slot)) {
+                slot.destroy(device);
+            } else {
+                // a consumer still reads it, leaving the mapping alone is all we can do
+                AtomikVk.LOGGER.warn("Frame " + slot.frameNumber + " was never closed by its consumer, leaking its readback buffer");
+                vkDestroyFence(device, slot.fence, null);
+            }
+        }
+        vkDestroyCommandPool(device, commandPool, null);
+    }
+
+    private final class Slot {
+        final GraphicsBuffer buffer;
+        final VkCommandBuffer commandBuffer;
+        final long fence;
+        long frameNumber;
+
+        private Slot(VkDevice device, long size) {
+            // cached memory makes host reads fast, coherent memory is the fallback every device has
+            buffer = new GraphicsBuffer(allocator, device, size,
+                    VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                    VK_SHARING_MODE_EXCLUSIVE,
+                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_CACHED_BIT,
+                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                var allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
+                        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+                        .commandPool(commandPool)
+                        .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
+                        .commandBufferCount(1);
+                var p_buffer = stack.mallocPointer(1);
+                _CHECK_(vkAllocateCommandBuffers(device, allocInfo, p_buffer), "Failed to allocate readback command buffer.");
+                commandBuffer = new VkCommandBuffer(p_buffer.get(0), device);
+
+                var fenceInfo = VkFenceCreateInfo.calloc(stack)
+                        .sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO)
+                        .flags(VK_FENCE_CREATE_SIGNALED_BIT);
+                var pointer = stack.mallocLong(1);
+                _CHECK_(vkCreateFence(device, fenceInfo, null, pointer), "Failed to create readback fence.");
+                fence = pointer.get(0);
+            }
+        }
+
+        private void destroy(VkDevice device) {
+            vkDestroyFence(device, fence, null);
+            buffer.free(device);
+        }
+    }
+}
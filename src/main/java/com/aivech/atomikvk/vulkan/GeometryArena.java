@@ -0,0 +1,288 @@
+package com.aivech.atomikvk.vulkan;
+
+import com.aivech.atomikvk.mesh.MeshFile;
+import com.google.common.collect.ImmutableList;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkDrawIndexedIndirectCommand;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Vertex and index buffers shared by every mesh of one {@link VertexFormat}, handing out ranges of them, plus the
+ * draws made from those ranges. The draws are kept as {@code VkDrawIndexedIndirectCommand}s in native memory; each
+ * frame copies them to its transient buffer in one go and draws them all with a single bind and indirect call, so the
+ * CPU cost of a frame doesn't grow with the number of meshes. Used from the render thread only.
+ * <p>
+ * Meshes are added while frames draw from the same buffers, so they upload through the graphics queue. A transfer
+ * queue service would move ownership of the whole buffers and leave the ranges frames are using undefined.
+ */
+final class GeometryArena {
+    static final int COMMAND_SIZE = VkDrawIndexedIndirectCommand.SIZEOF;
+
+    final VertexFormat format;
+    final IndexType indexType;
+    private final GraphicsBuffer[] vertexBuffers;
+    private final GraphicsBuffer indexBuffer;
+    // in vertices and indices rather than bytes
+    private final RangeAllocator vertexSpace;
+    private final RangeAllocator indexSpace;
+    // draws per vkCmdDrawIndexedIndirect, 1 without the multiDrawIndirect feature
+    private final int drawsPerCall;
+    private final boolean firstInstance;
+
+    private ByteBuffer commands = MemoryUtil.memAlloc(64 * COMMAND_SIZE);
+    private int drawCount;
+    // draws are swap-removed to keep the commands dense, handles stay put
+    private int[] slotOf = new int[64];
+    private int[] handleAt = new int[64];
+    private int[] freeHandles = new int[64];
+    private int freeHandleCount;
+    private int nextHandle;
+
+    /**
+     * A mesh's place in the arena. Its parts' offsets are already absolute, ready for {@link #addDraw}.
+     */
+    record Range(int firstVertex, int vertexCount, int firstIndex, int indexCount, ImmutableList<Part> parts) {
+    }
+
+    record Part(int firstIndex, int indexCount, int vertexOffset) {
+    }
+
+    /**
+     * The frame's copy of the draw list, in its transient buffer. Recording is split by draws, so a pass can spread
+     * them over workers whether or not the device draws them all in one call.
+     */
+    record Commands(long buffer, long offset, int drawCount, int drawsPerCall) {
+        /**
+         * Records draws {@code [firstDraw, firstDraw + count)} with as few indirect calls as the device allows.
+         */
+        void record(VkCommandBuffer commandBuffer, int firstDraw, int count) {
+            if (firstDraw < 0 || count < 0 || firstDraw + count > drawCount) {
+                throw new IndexOutOfBoundsException("Draws " + firstDraw + " to " + (firstDraw + count) + " out of " + drawCount);
+            }
+            int end = firstDraw + count;
+            for (int draw = firstDraw; draw < end; ) {
+                int draws = Math.min(drawsPerCall, end - draw);
+                vkCmdDrawIndexedIndirect(commandBuffer, buffer, offset + (long) draw * COMMAND_SIZE, draws, COMMAND_SIZE);
+                draw += draws;
+            }
+        }
+    }
+
+    GeometryArena(VkDevice device, MemoryAllocator allocator, PhysicalDevice gpu, VertexFormat format, IndexType indexType, int maxVertices, int maxIndices) {
+        this.format = format;
+        this.indexType = indexType;
+        vertexBuffers = new GraphicsBuffer[format.bindingCount()];
+        for (int binding = 0; binding < vertexBuffers.length; binding++) {
+            vertexBuffers[binding] = new GraphicsBuffer(allocator, device, (long) maxVertices * format.stride(binding),
+                    VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                    VK_SHARING_MODE_EXCLUSIVE,
+                    VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+        }
+        indexBuffer = new GraphicsBuffer(allocator, device, (long) maxIndices * indexType.size,
+                VK_BUFFER_USAGE_INDEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
+                VK_SHARING_MODE_EXCLUSIVE,
+                VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+        vertexSpace = new RangeAllocator(maxVertices);
+        indexSpace = new RangeAllocator(maxIndices);
+        // an unsigned limit, most drivers report UINT32_MAX which reads as -1
+        int maxDrawIndirectCount = gpu.properties.limits().maxDrawIndirectCount();
+        int limit = Integer.compareUnsigned(maxDrawIndirectCount, Integer.MAX_VALUE) > 0 ? Integer.MAX_VALUE : Math.max(1, maxDrawIndirectCount);
+        drawsPerCall = gpu.features.multiDrawIndirect() ? limit : 1;
+        firstInstance = gpu.features.drawIndirectFirstInstance();
+    }
+
+    /**
+     * Decompresses a cached mesh straight into the arena's part of the staging memory. Decompressing runs without the
+     * upload service's lock, so the render thread can keep polling and flushing it meanwhile.
+     */
+    Range add(UploadService uploads, MeshFile file) {
+        checkUploads(uploads);
+        checkFormat(file.format);
+        int firstVertex = allocate(vertexSpace, file.vertexCount, "vertex");
+        int firstIndex = allocate(indexSpace, file.indexCount, "index");
+        for (int binding = 0; binding < vertexBuffers.length; binding++) {
+            int stream = binding;
+            stage(uploads, vertexBuffers[binding], (long) firstVertex * format.stride(binding), file.streamSize(stream),
+                    staging -> file.decompress(stream, staging));
+        }
+        stage(uploads, indexBuffer, (long) firstIndex * indexType.size, (long) file.indexCount * indexType.size, staging -> {
+            if (file.indexType == indexType) {
+                file.decompress(file.indexStream(), staging);
+                return;
+            }
+            ByteBuffer narrow = MemoryUtil.memAlloc((int) file.streamSize(file.indexStream()));
+            try {
+                file.decompress(file.indexStream(), narrow);
+                writeIndices(narrow.flip(), file.indexType, file.indexCount, staging);
+            } finally {
+                MemoryUtil.memFree(narrow);
+            }
+        });
+        ImmutableList.Builder<Part> parts = ImmutableList.builder();
+        for (MeshFile.Submesh submesh : file.submeshes) {
+            parts.add(new Part(firstIndex + submesh.firstIndex(), submesh.indexCount(), firstVertex + submesh.vertexOffset()));
+        }
+        return new Range(firstVertex, file.vertexCount, firstIndex, file.indexCount, parts.build());
+    }
+
+    /**
+     * Uploads packed vertices and indices as a mesh of one part.
+     * @param indices {@code indexCount} indices of {@code sourceType} from the buffer's position
+     */
+    Range add(UploadService uploads, VertexBuilder vertices, ByteBuffer indices, IndexType sourceType, int indexCount) {
+        checkUploads(uploads);
+        checkFormat(vertices.format());
+        int vertexCount = vertices.vertexCount();
+        int firstVertex = allocate(vertexSpace, vertexCount, "vertex");
+        int firstIndex = allocate(indexSpace, indexCount, "index");
+        for (int binding = 0; binding < vertexBuffers.length; binding++) {
+            ByteBuffer stream = vertices.stream(binding);
+            uploads.upload(vertexBuffers[binding], (long) firstVertex * format.stride(binding), stream.remaining(), staging -> staging.put(stream));
+        }
+        ByteBuffer source = indices.duplicate();
+        uploads.upload(indexBuffer, (long) firstIndex * indexType.size, (long) indexCount * indexType.size,
+                staging -> writeIndices(source, sourceType, indexCount, staging));
+        return new Range(firstVertex, vertexCount, firstIndex, indexCount, ImmutableList.of(new Part(firstIndex, indexCount, firstVertex)));
+    }
+
+    private static void stage(UploadService uploads, GraphicsBuffer dst, long dstOffset, long size, Consumer<ByteBuffer> writer) {
+        var region = uploads.reserve(size);
+        try {
+            writer.accept(region.buffer());
+        } catch (RuntimeException e) {
+            uploads.release(region);
+            throw e;
+        }
+        uploads.copy(region, dst, dstOffset);
+    }
+
+    private static void checkUploads(UploadService uploads) {
+        if (uploads.transfersOwnership()) throw new IllegalArgumentException("Geometry arena uploads must run on the graphics queue");
+    }
+
+    private void checkFormat(VertexFormat format) {
+        if (!format.equals(this.format)) throw new IllegalArgumentException("Mesh vertex format doesn't match the arena's");
+    }
+
+    private static int allocate(RangeAllocator space, int count, String what) {
+        long first = space.allocate(count, 1);
+        if (first == RangeAllocator.INVALID) {
+            throw new RuntimeException("Geometry arena out of " + what + " space: " + count + " wanted, largest free range " + space.largestFreeRange());
+        }
+        return (int) first;
+    }
+
+    private void writeIndices(ByteBuffer source, IndexType sourceType, int count, ByteBuffer target) {
+        if (sourceType == indexType) {
+            target.put(source.slice(source.position(), count * indexType.size));
+        } else if (sourceType == IndexType.UINT16) {
+            // widen, indices are unsigned
+            for (int i = 0; i < count; i++) target.putInt(Short.toUnsignedInt(source.getShort(source.position() + i * Short.BYTES)));
+        } else {
+            throw new IllegalArgumentException("32 bit indices don't fit a 16 bit geometry arena");
+        }
+    }
+
+    /**
+     * Gives a mesh's space back. Its draws must be removed first, and no frame still in flight may draw it.
+     */
+    void free(Range range) {
+        vertexSpace.free(range.firstVertex, range.vertexCount);
+        indexSpace.free(range.firstIndex, range.indexCount);
+    }
+
+    /**
+     * @param firstInstance non-zero only where the device supports {@code drawIndirectFirstInstance}
+     * @return a handle to the draw, for {@link #removeDraw}
+     */
+    int addDraw(Part part, int instanceCount, int firstInstance) {
+        if (firstInstance != 0 && !this.firstInstance) {
+            throw new UnsupportedOperationException("Device can't start indirect draws at an instance other than 0");
+        }
+        if ((drawCount + 1) * COMMAND_SIZE > commands.capacity()) {
+            commands = MemoryUtil.memRealloc(commands, commands.capacity() * 2);
+        }
+        int handle;
+        if (freeHandleCount > 0) {
+            handle = freeHandles[--freeHandleCount];
+        } else {
+            handle = nextHandle++;
+            if (handle == slotOf.length) slotOf = Arrays.copyOf(slotOf, handle * 2);
+        }
+        if (drawCount == handleAt.length) handleAt = Arrays.copyOf(handleAt, drawCount * 2);
+        int slot = drawCount++;
+        slotOf[handle] = slot;
+        handleAt[slot] = handle;
+        VkDrawIndexedIndirectCommand.create(MemoryUtil.memAddress(commands) + (long) slot * COMMAND_SIZE)
+                .indexCount(part.indexCount())
+                .instanceCount(instanceCount)
+                .firstIndex(part.firstIndex())
+                .vertexOffset(part.vertexOffset())
+                .firstInstance(firstInstance);
+        return handle;
+    }
+
+    /**
+     * Changes which instances a draw covers, as its instance list grows and shrinks.
+     */
+    void setInstances(int handle, int instanceCount, int firstInstance) {
+        if (firstInstance != 0 && !this.firstInstance) {
+            throw new UnsupportedOperationException("Device can't start indirect draws at an instance other than 0");
+        }
+        VkDrawIndexedIndirectCommand.create(MemoryUtil.memAddress(commands) + (long) slotOf[handle] * COMMAND_SIZE)
+                .instanceCount(instanceCount)
+                .firstInstance(firstInstance);
+    }
+
+    void removeDraw(int handle) {
+        int slot = slotOf[handle];
+        int last = --drawCount;
+        if (slot != last) {
+            long base = MemoryUtil.memAddress(commands);
+            MemoryUtil.memCopy(base + (long) last * COMMAND_SIZE, base + (long) slot * COMMAND_SIZE, COMMAND_SIZE);
+            handleAt[slot] = handleAt[last];
+            slotOf[handleAt[slot]] = slot;
+        }
+        if (freeHandleCount == freeHandles.length) freeHandles = Arrays.copyOf(freeHandles, freeHandleCount * 2);
+        freeHandles[freeHandleCount++] = handle;
+    }
+
+    int drawCount() {
+        return drawCount;
+    }
+
+    /**
+     * Copies the draw list into the frame's transient buffer, which the GPU reads the commands from.
+     */
+    Commands writeCommands(FrameContext frame) {
+        long size = (long) drawCount * COMMAND_SIZE;
+        long offset = frame.allocateTransient(size, Integer.BYTES);
+        if (size > 0) {
+            MemoryUtil.memCopy(MemoryUtil.memAddress(commands), frame.transientAddress(offset), size);
+        }
+        return new Commands(frame.transientBuffer.buffer, offset, drawCount, drawsPerCall);
+    }
+
+    void bind(VkCommandBuffer commandBuffer) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var buffers = stack.mallocLong(vertexBuffers.length);
+            for (GraphicsBuffer buffer : vertexBuffers) buffers.put(buffer.buffer);
+            vkCmdBindVertexBuffers(commandBuffer, 0, buffers.flip(), stack.callocLong(vertexBuffers.length));
+        }
+        vkCmdBindIndexBuffer(commandBuffer, indexBuffer.buffer, 0, indexType.vkIndexType);
+    }
+
+    void destroy(VkDevice device) {
+        for (GraphicsBuffer buffer : vertexBuffers) buffer.free(device);
+        indexBuffer.free(device);
+        MemoryUtil.memFree(commands);
+    }
+}
@@ -0,0 +1,195 @@
+package com.aivech.atomikvk.vulkan;
+
+import com.aivech.atomikvk.AtomikVk;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Measures GPU time of named scopes with timestamp queries. Every frame in flight has its own query pool; a frame's
+ * timestamps are read back when its context comes around again, after its fence has already been waited on, so reading
+ * never stalls. Results therefore arrive {@code FRAMES_IN_FLIGHT} frames late.
+ * <p>
+ * Timestamps may only be written outside a render pass that executes secondary command buffers, so scopes wrap whole
+ * passes rather than individual draws.
+ */
+public final class GpuProfiler {
+    public static final int HISTORY = 256;
+    private static final int MAX_SCOPES_PER_FRAME = 64;
+
+    private final boolean enabled;
+    private final double nanosPerTick;
+    private final long validMask;
+    private final long[] queryPools;
+    private final List<List<String>> frameScopes = new ArrayList<>();
+    private final boolean[] pending;
+    private final Map<String, History> history = new LinkedHashMap<>();
+
+    GpuProfiler(VkDevice device, PhysicalDevice gpu, int queueFamily, int frames, boolean enabled) {
+        int validBits = gpu.timestampValidBits(queueFamily);
+        this.enabled = enabled && validBits != 0;
+        if (enabled && validBits == 0) AtomikVk.LOGGER.info("GPU profiling unavailable, the graphics queue has no timestamps");
+        this.nanosPerTick = gpu.limits().timestampPeriod();
+        this.validMask = validBits >= 64 ? -1L : (1L << validBits) - 1;
+        this.queryPools = new long[this.enabled ? frames : 0];
+        this.pending = new boolean[frames];
+        for (int i = 0; i < frames; i++) frameScopes.add(new ArrayList<>());
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var createInfo = VkQueryPoolCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO)
+                    .queryType(VK_QUERY_TYPE_TIMESTAMP)
+                    .queryCount(MAX_SCOPES_PER_FRAME * 2);
+            var pp_pool = stack.mallocLong(1);
+            for (int i = 0; i < queryPools.length; i++) {
+                _CHECK_(vkCreateQueryPool(device, createInfo, null, pp_pool), "Failed to create timestamp query pool.");
+                queryPools[i] = pp_pool.get(0);
+            }
+        }
+    }
+
+    /**
+     * Reads back the timestamps the frame context wrote the last time it was used. Only call once its fence has been
+     * waited on.
+     */
+    void collect(VkDevice device, int frame) {
+        if (!enabled || !pending[frame]) return;
+        pending[frame] = false;
+        List<String> scopes = frameScopes.get(frame);
+        if (scopes.isEmpty()) return;
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            LongBuffer timestamps = stack.mallocLong(scopes.size() * 2);
+            int result = vkGetQueryPoolResults(device, queryPools[frame], 0, scopes.size() * 2, timestamps, Long.BYTES,
+                    VK_QUERY_RESULT_64_BIT);
+            if (result == VK_NOT_READY) return; // shouldn't happen behind the fence, drop the frame rather than wait
+            _CHECK_(result, "Failed to read timestamp queries.");
+
+            synchronized (history) {
+                for (int i = 0; i < scopes.size(); i++) {
+                    long begin = timestamps.get(2 * i) & validMask;
+                    long end = timestamps.get(2 * i + 1) & validMask;
+                    long ticks = (end - begin) & validMask; // the counter may wrap inside the valid bits
+                    history.computeIfAbsent(scopes.get(i), History::new).add(ticks * nanosPerTick / 1e6);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a frame's queries. Must be recorded at the top of the frame's command buffer, outside any render pass.
+     */
+    void beginFrame(VkCommandBuffer commandBuffer, int frame) {
+        if (!enabled) return;
+        vkCmdResetQueryPool(commandBuffer, queryPools[frame], 0, MAX_SCOPES_PER_FRAME * 2);
+        frameScopes.get(frame).clear();
+        pending[frame] = true;
+    }
+
+    /**
+     * @return a handle for {@link #end}, or -1 if profiling is off or the frame is out of queries
+     */
+    int begin(VkCommandBuffer commandBuffer, int frame, String scope) {
+        if (!enabled) return -1;
+        List<String> scopes = frameScopes.get(frame);
+        if (scopes.size() == MAX_SCOPES_PER_FRAME) return -1;
+        scopes.add(scope);
+        int id = scopes.size() - 1;
+        vkCmdWriteTimestamp(commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, queryPools[frame], 2 * id);
+        return id;
+    }
+
+    void end(VkCommandBuffer commandBuffer, int frame, int scope) {
+        if (scope < 0) return;
+        vkCmdWriteTimestamp(commandBuffer, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, queryPools[frame], 2 * scope + 1);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return statistics over the last {@link #HISTORY} frames, or null if the scope has never been measured
+     */
+    public Stats getStats(String scope) {
+        synchronized (history) {
+            History samples = history.get(scope);
+            return samples != null ? samples.stats() : null;
+        }
+    }
+
+    public List<Stats> getAllStats() {
+        synchronized (history) {
+            List<Stats> stats = new ArrayList<>(history.size());
+            for (History samples : history.values()) stats.add(samples.stats());
+            return stats;
+        }
+    }
+
+    public void log() {
+        for (Stats stats : getAllStats()) {
+            AtomikVk.LOGGER.info("GPU " + stats);
+        }
+    }
+
+    /**
+     * Writes the current statistics as tab separated values.
+     */
+    public void dump(Path file) throws IOException {
+        StringBuilder out = new StringBuilder("scope\tsamples\tmin_ms\tavg_ms\tp99_ms\n");
+        for (Stats stats : getAllStats()) {
+            out.append(String.format(Locale.ROOT, "%s\t%d\t%.4f\t%.4f\t%.4f%n",
+                    stats.scope(), stats.samples(), stats.minMillis(), stats.avgMillis(), stats.p99Millis()));
+        }
+        Files.writeString(file, out, StandardCharsets.UTF_8);
+    }
+
+    void destroy(VkDevice device) {
+        for (long pool : queryPools) {
+            vkDestroyQueryPool(device, pool, null);
+        }
+    }
+
+    public record Stats(String scope, int samples, double minMillis, double avgMillis, double p99Millis) {
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: min %.3f ms, avg %.3f ms, p99 %.3f ms over %d frames",
+                    scope, minMillis, avgMillis, p99Millis, samples);
+        }
+    }
+
+    private static final class History {
+        private final String scope;
+        private final double[] millis = new double[HISTORY];
+        private int count;
+        private int next;
+
+        private History(String scope) {
+            this.scope = scope;
+        }
+
+        private void add(double value) {
+            millis[next] = value;
+            next = (next + 1) % millis.length;
+            if (count < millis.length) count++;
+        }
+
+        private Stats stats() {
+            double[] sorted = Arrays.copyOf(millis, count);
+            Arrays.sort(sorted);
+            double sum = 0;
+            for (double value : sorted) sum += value;
+            int p99 = Math.min(count - 1, (int) Math.ceil(count * 0.99) - 1);
+            return new Stats(scope, count, sorted[0], sum / count, sorted[p99]);
+        }
+    }
+}
@@ -1,17 +1,28 @@
 package com.aivech.atomikvk.vulkan;
 
+import com.aivech.atomikvk.common.jfr.BufferCreateEvent;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
 
-import java.nio.LongBuffer;
+import java.nio.ByteBuffer;
 
 import static org.lwjgl.vulkan.VK10.*;
 
 class GraphicsBuffer {
-    final long backingMemory;
     final long buffer;
+    final long size;
+    final MemoryAllocator.Allocation allocation;
+    private final MemoryAllocator allocator;
 
-    GraphicsBuffer(PhysicalDevice gpu, VkDevice device, long size, int vkUsageFlags, int vkShareMode, int propertyFlags) {
+    GraphicsBuffer(MemoryAllocator allocator, VkDevice device, long size, int vkUsageFlags, int vkShareMode, int... propertyFlags) {
+        this(allocator, device, size, vkUsageFlags, vkShareMode, MemoryAllocator.Strategy.FREE_LIST, propertyFlags);
+    }
+
+    GraphicsBuffer(MemoryAllocator allocator, VkDevice device, long size, int vkUsageFlags, int vkShareMode, MemoryAllocator.Strategy strategy, int... propertyFlags) {
+        BufferCreateEvent event = new BufferCreateEvent();
+        event.begin();
+        this.allocator = allocator;
+        this.size = size;
         try (MemoryStack stack = MemoryStack.stackPush()) {
             var bufferInfo = VkBufferCreateInfo.calloc(stack)
                     .sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
@@ -21,35 +32,25 @@ class GraphicsBuffer {
             var p_buffer = stack.mallocLong(1);
             Vulkan._CHECK_(vkCreateBuffer(device, bufferInfo, null, p_buffer), "Failed to create vertex buffer.");
             buffer = p_buffer.get(0);
-
-            var bufMemRequirements = VkMemoryRequirements.malloc(stack);
-            vkGetBufferMemoryRequirements(device, buffer, bufMemRequirements);
-
-            var bufAllocInfo = VkMemoryAllocateInfo.calloc(stack)
-                    .sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
-                    .allocationSize(bufMemRequirements.size())
-                    .memoryTypeIndex(findMemoryType(gpu, bufMemRequirements.memoryTypeBits(), propertyFlags));
-            LongBuffer p_vertexBufMem = stack.mallocLong(1);
-            Vulkan._CHECK_(vkAllocateMemory(device, bufAllocInfo, null, p_vertexBufMem), "Failed to allocate memory for vertex buffer.");
-            backingMemory = p_vertexBufMem.get(0);
-            vkBindBufferMemory(device, buffer, backingMemory, 0);
+        }
+        allocation = allocator.allocateBuffer(buffer, strategy, propertyFlags);
+        if (event.shouldCommit()) {
+            event.size = size;
+            event.usage = vkUsageFlags;
+            event.memoryType = allocation.memoryType;
+            event.commit();
         }
     }
 
-    public void free(VkDevice device) {
-        if (buffer != VK_NULL_HANDLE) vkDestroyBuffer(device, buffer, null);
-        if (backingMemory != VK_NULL_HANDLE) vkFreeMemory(device, backingMemory, null);
+    /**
+     * @return a view of the persistently mapped contents, only valid for host visible buffers
+     */
+    ByteBuffer mapped() {
+        return allocation.mapped().limit((int) size);
     }
 
-    private static int findMemoryType(PhysicalDevice gpu, int filter, int propertyFlags) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            var memProperties = VkPhysicalDeviceMemoryProperties.malloc(stack);
-            vkGetPhysicalDeviceMemoryProperties(gpu.device, memProperties);
-            for (int i = 0; i < memProperties.memoryTypeCount(); i++) {
-                if ((filter & (1 << i)) != 0 && (memProperties.memoryTypes(i).propertyFlags() & propertyFlags) != 0)
-                    return i;
-            }
-        }
-        throw new RuntimeException("Failed to find suitable memory type!");
+    public void free(VkDevice device) {
+        if (buffer != VK_NULL_HANDLE) vkDestroyBuffer(device, buffer, null);
+        allocator.free(allocation);
     }
 }
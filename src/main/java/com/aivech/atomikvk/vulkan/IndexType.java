@@ -0,0 +1,25 @@
+package com.aivech.atomikvk.vulkan;
+
+import static org.lwjgl.vulkan.VK10.VK_INDEX_TYPE_UINT16;
+import static org.lwjgl.vulkan.VK10.VK_INDEX_TYPE_UINT32;
+
+public enum IndexType {
+    UINT16(Short.BYTES, VK_INDEX_TYPE_UINT16),
+    UINT32(Integer.BYTES, VK_INDEX_TYPE_UINT32);
+
+    public final int size;
+    public final int vkIndexType;
+
+    IndexType(int size, int vkIndexType) {
+        this.size = size;
+        this.vkIndexType = vkIndexType;
+    }
+
+    /**
+     * @return the smallest type that can address every vertex; primitive restart is never enabled, so 16 bit indices
+     * cover all 65536 vertices
+     */
+    public static IndexType forVertexCount(int vertexCount) {
+        return vertexCount <= 1 << 16 ? UINT16 : UINT32;
+    }
+}
@@ -0,0 +1,118 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.vulkan.VK10.VK_VERTEX_INPUT_RATE_INSTANCE;
+
+/**
+ * A growable off-heap array of per-instance records in the layout of a single instance-rate binding, such as
+ * transforms and tints. Instances are removed by moving the last one into their place, so the array stays dense and
+ * is copied to the GPU each frame in one piece.
+ */
+public final class InstanceList implements AutoCloseable {
+    private final VertexFormat format;
+    private final int stride;
+    private ByteBuffer data;
+    private int size;
+
+    /**
+     * @param format one binding with {@code VK_VERTEX_INPUT_RATE_INSTANCE}
+     */
+    public InstanceList(VertexFormat format, int initialCapacity) {
+        if (format.bindingCount() != 1 || format.inputRate(0) != VK_VERTEX_INPUT_RATE_INSTANCE) {
+            throw new IllegalArgumentException("Instance lists take a single per-instance binding");
+        }
+        this.format = format;
+        stride = format.stride(0);
+        data = MemoryUtil.memAlloc(Math.max(1, initialCapacity) * stride);
+    }
+
+    public VertexFormat format() {
+        return format;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends {@code count} zeroed instances.
+     * @return the index of the first
+     */
+    public int add(int count) {
+        int first = size;
+        if ((long) (size + count) * stride > data.capacity()) {
+            data = MemoryUtil.memRealloc(data, Math.max(data.capacity() * 2, (size + count) * stride));
+        }
+        MemoryUtil.memSet(MemoryUtil.memAddress(data) + (long) first * stride, 0, (long) count * stride);
+        size += count;
+        return first;
+    }
+
+    /**
+     * Sets one attribute of one instance.
+     */
+    public InstanceList set(int instance, int location, float... values) {
+        return put(location, instance, values, 0, 1);
+    }
+
+    /**
+     * Fills an attribute for {@code count} instances starting at {@code firstInstance}, reading from
+     * {@code values[offset]} on.
+     */
+    public InstanceList put(int location, int firstInstance, float[] values, int offset, int count) {
+        VertexFormat.Attribute attribute = format.attribute(location);
+        VertexFormat.Encoding encoding = attribute.encoding();
+        if (firstInstance < 0 || count < 0 || firstInstance + count > size) {
+            throw new IndexOutOfBoundsException("Instances " + firstInstance + " to " + (firstInstance + count) + " out of " + size);
+        }
+        if (values.length - offset < count * encoding.components) {
+            throw new IllegalArgumentException(count + " instances need " + count * encoding.components + " floats, got " + (values.length - offset));
+        }
+        encoding.encode(values, offset, MemoryUtil.memAddress(data) + (long) firstInstance * stride + attribute.offset(), stride, count);
+        return this;
+    }
+
+    /**
+     * Removes an instance by moving the last one into its place.
+     * @return the index the moved instance had, which now lives at {@code instance}
+     */
+    public int remove(int instance) {
+        if (instance < 0 || instance >= size) throw new IndexOutOfBoundsException("Instance " + instance + " out of " + size);
+        int last = --size;
+        if (instance != last) {
+            long base = MemoryUtil.memAddress(data);
+            MemoryUtil.memCopy(base + (long) last * stride, base + (long) instance * stride, stride);
+        }
+        return last;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the address of an instance's record, for writing it directly
+     */
+    public long address(int instance) {
+        return MemoryUtil.memAddress(data) + (long) instance * stride;
+    }
+
+    /**
+     * Copies every instance into the frame's transient buffer, which stays mapped, to be bound as a vertex buffer.
+     * @return the offset into {@link FrameContext#transientBuffer}
+     */
+    long write(FrameContext frame) {
+        long bytes = (long) size * stride;
+        long offset = frame.allocateTransient(bytes, Float.BYTES);
+        if (bytes > 0) MemoryUtil.memCopy(MemoryUtil.memAddress(data), frame.transientAddress(offset), bytes);
+        return offset;
+    }
+
+    @Override
+    public void close() {
+        MemoryUtil.memFree(data);
+    }
+}
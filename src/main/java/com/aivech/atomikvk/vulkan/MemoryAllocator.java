@@ -0,0 +1,328 @@
+package com.aivech.atomikvk.vulkan;
+
+import com.aivech.atomikvk.AtomikVk;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Sub-allocates device memory out of large per-memory-type blocks, so the number of vkAllocateMemory calls
+ * stays far below maxMemoryAllocationCount no matter how many buffers exist.
+ */
+final class MemoryAllocator {
+    static final long DEFAULT_BLOCK_SIZE = 64L * 1024 * 1024;
+
+    enum Strategy {
+        /** Bump allocation, the whole block is recycled once every allocation in it is freed. For short-lived data. */
+        LINEAR,
+        /** Best-fit free-list with coalescing. For long-lived data with arbitrary lifetimes. */
+        FREE_LIST
+    }
+
+    private final PhysicalDevice gpu;
+    private final VkDevice device;
+    private final List<Block> blocks = new ArrayList<>();
+
+    MemoryAllocator(PhysicalDevice gpu, VkDevice device) {
+        this.gpu = gpu;
+        this.device = device;
+    }
+
+    /**
+     * Creates memory for a resource and binds nothing.
+     * @param propertyFlags acceptable memory property combinations, most preferred first
+     */
+    Allocation allocate(VkMemoryRequirements requirements, Strategy strategy, int... propertyFlags) {
+        return allocate(requirements.memoryTypeBits(), requirements.size(), requirements.alignment(), strategy, propertyFlags);
+    }
+
+    /**
+     * Creates memory for resources that are bound by the caller, such as several images sharing one range.
+     */
+    synchronized Allocation allocate(int memoryTypeBits, long size, long alignment, Strategy strategy, int... propertyFlags) {
+        int memoryType = findMemoryType(memoryTypeBits, propertyFlags);
+
+        long blockSize = preferredBlockSize(memoryType);
+        if (size > blockSize / 2) {
+            // too big to share a block with anything, give it its own memory
+            Block block = createBlock(memoryType, size, strategy, true);
+            return block.allocate(size, alignment);
+        }
+
+        for (Block block : blocks) {
+            if (block.memoryType != memoryType || block.strategy != strategy || block.dedicated) continue;
+            Allocation allocation = block.allocate(size, alignment);
+            if (allocation != null) return allocation;
+        }
+        return createBlock(memoryType, blockSize, strategy, false).allocate(size, alignment);
+    }
+
+    /**
+     * Allocates and binds memory for a buffer.
+     */
+    Allocation allocateBuffer(long buffer, Strategy strategy, int... propertyFlags) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var requirements = VkMemoryRequirements.malloc(stack);
+            vkGetBufferMemoryRequirements(device, buffer, requirements);
+            Allocation allocation = allocate(requirements, strategy, propertyFlags);
+            _CHECK_(vkBindBufferMemory(device, buffer, allocation.memory, allocation.offset), "Failed to bind buffer memory.");
+            return allocation;
+        }
+    }
+
+    /**
+     * Allocates and binds memory for an optimally tiled image. Blocks are shared with buffers, so the image is padded
+     * to bufferImageGranularity on both ends to keep linear resources off its pages.
+     */
+    Allocation allocateImage(long image, Strategy strategy, int... propertyFlags) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var requirements = VkMemoryRequirements.malloc(stack);
+            vkGetImageMemoryRequirements(device, image, requirements);
+            long granularity = gpu.limits().bufferImageGranularity();
+            Allocation allocation = allocate(requirements.memoryTypeBits(),
+                    RangeAllocator.alignUp(requirements.size(), granularity),
+                    Math.max(requirements.alignment(), granularity), strategy, propertyFlags);
+            _CHECK_(vkBindImageMemory(device, image, allocation.memory, allocation.offset), "Failed to bind image memory.");
+            return allocation;
+        }
+    }
+
+    synchronized void free(Allocation allocation) {
+        Block block = allocation.block;
+        block.release(allocation);
+        if (!block.isEmpty()) return;
+
+        // keep one empty block per type around to avoid thrashing vkAllocateMemory, drop the rest
+        boolean spare = block.dedicated;
+        for (Block other : blocks) {
+            if (other != block && other.memoryType == block.memoryType && other.strategy == block.strategy && other.isEmpty()) {
+                spare = true;
+                break;
+            }
+        }
+        if (spare) {
+            blocks.remove(block);
+            block.destroy();
+        }
+    }
+
+    /**
+     * Finds a memory type allowed by the filter. Each entry of the fallback order first tries an exact property
+     * match, then any type that has at least the requested properties.
+     */
+    int findMemoryType(int filter, int... propertyFlags) {
+        var memProperties = gpu.memoryProperties;
+        for (int flags : propertyFlags) {
+            for (int i = 0; i < memProperties.memoryTypeCount(); i++) {
+                if ((filter & (1 << i)) != 0 && memProperties.memoryTypes(i).propertyFlags() == flags) return i;
+            }
+            for (int i = 0; i < memProperties.memoryTypeCount(); i++) {
+                if ((filter & (1 << i)) != 0 && (memProperties.memoryTypes(i).propertyFlags() & flags) == flags) return i;
+            }
+        }
+        throw new RuntimeException("Failed to find suitable memory type!");
+    }
+
+    boolean isHostCoherent(Allocation allocation) {
+        return (gpu.memoryProperties.memoryTypes(allocation.memoryType).propertyFlags() & VK_MEMORY_PROPERTY_HOST_COHERENT_BIT) != 0;
+    }
+
+    /**
+     * Makes host writes to a mapped allocation visible to the device. No-op for coherent memory.
+     */
+    void flush(Allocation allocation, long offset, long size) {
+        if (isHostCoherent(allocation)) return;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            _CHECK_(vkFlushMappedMemoryRanges(device, mappedRange(stack, allocation, offset, size)), "Failed to flush mapped memory.");
+        }
+    }
+
+    /**
+     * Makes device writes to a mapped allocation visible to the host. No-op for coherent memory.
+     */
+    void invalidate(Allocation allocation, long offset, long size) {
+        if (isHostCoherent(allocation)) return;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            _CHECK_(vkInvalidateMappedMemoryRanges(device, mappedRange(stack, allocation, offset, size)), "Failed to invalidate mapped memory.");
+        }
+    }
+
+    private VkMappedMemoryRange mappedRange(MemoryStack stack, Allocation allocation, long offset, long size) {
+        // ranges must be multiples of nonCoherentAtomSize, relative to the whole block
+        long atom = gpu.limits().nonCoherentAtomSize();
+        long start = (allocation.offset + offset) / atom * atom;
+        long end = RangeAllocator.alignUp(allocation.offset + offset + size, atom);
+        return VkMappedMemoryRange.calloc(stack)
+                .sType(VK_STRUCTURE_TYPE_MAPPED_MEMORY_RANGE)
+                .memory(allocation.memory)
+                .offset(start)
+                .size(end >= allocation.block.size ? VK_WHOLE_SIZE : end - start);
+    }
+
+    synchronized Stats getStats() {
+        int allocations = 0;
+        long reserved = 0;
+        long used = 0;
+        double weightedFragmentation = 0;
+        for (Block block : blocks) {
+            allocations += block.liveAllocations;
+            reserved += block.size;
+            used += block.usedBytes();
+            weightedFragmentation += block.fragmentation() * block.size;
+        }
+        return new Stats(blocks.size(), allocations, reserved, used, reserved == 0 ? 0 : weightedFragmentation / reserved);
+    }
+
+    synchronized void destroy() {
+        AtomikVk.LOGGER.debug("Destroying device memory: " + getStats());
+        for (Block block : blocks) {
+            block.destroy();
+        }
+        blocks.clear();
+    }
+
+    private long preferredBlockSize(int memoryType) {
+        var memProperties = gpu.memoryProperties;
+        long heapSize = memProperties.memoryHeaps(memProperties.memoryTypes(memoryType).heapIndex()).size();
+        return Math.min(DEFAULT_BLOCK_SIZE, heapSize / 8);
+    }
+
+    private Block createBlock(int memoryType, long size, Strategy strategy, boolean dedicated) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var allocInfo = VkMemoryAllocateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+                    .allocationSize(size)
+                    .memoryTypeIndex(memoryType);
+            LongBuffer p_memory = stack.mallocLong(1);
+            _CHECK_(vkAllocateMemory(device, allocInfo, null, p_memory), "Failed to allocate device memory block.");
+            long memory = p_memory.get(0);
+
+            long mapped = MemoryUtil.NULL;
+            if ((gpu.memoryProperties.memoryTypes(memoryType).propertyFlags() & VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT) != 0) {
+                // host visible blocks stay mapped for their whole lifetime
+                PointerBuffer pp_data = stack.mallocPointer(1);
+                _CHECK_(vkMapMemory(device, memory, 0, VK_WHOLE_SIZE, 0, pp_data), "Failed to map device memory block.");
+                mapped = pp_data.get(0);
+            }
+
+            Block block = new Block(memory, memoryType, size, mapped, strategy, dedicated);
+            blocks.add(block);
+            return block;
+        }
+    }
+
+    record Stats(int blockCount, int allocationCount, long reservedBytes, long usedBytes, double fragmentation) {
+        @Override
+        public String toString() {
+            return String.format("%d blocks, %d allocations, %d/%d KiB used, %.1f%% fragmented",
+                    blockCount, allocationCount, usedBytes / 1024, reservedBytes / 1024, fragmentation * 100);
+        }
+    }
+
+    static final class Allocation {
+        final long memory;
+        final long offset;
+        final long size;
+        final int memoryType;
+        /** Host address of the first byte, or NULL if the memory is not host visible. */
+        final long mappedAddress;
+        private final Block block;
+
+        private Allocation(Block block, long offset, long size) {
+            this.block = block;
+            this.memory = block.memory;
+            this.offset = offset;
+            this.size = size;
+            this.memoryType = block.memoryType;
+            this.mappedAddress = block.mapped == MemoryUtil.NULL ? MemoryUtil.NULL : block.mapped + offset;
+        }
+
+        boolean isMapped() {
+            return mappedAddress != MemoryUtil.NULL;
+        }
+
+        /**
+         * @return a view of the mapped memory, valid until the allocation is freed
+         */
+        ByteBuffer mapped() {
+            if (!isMapped()) throw new IllegalStateException("Allocation is not host visible.");
+            return MemoryUtil.memByteBuffer(mappedAddress, (int) size);
+        }
+    }
+
+    private final class Block {
+        final long memory;
+        final int memoryType;
+        final long size;
+        final long mapped;
+        final Strategy strategy;
+        final boolean dedicated;
+        private final RangeAllocator freeList;
+        private long linearOffset = 0;
+        private long linearUsed = 0;
+        private int liveAllocations = 0;
+
+        private Block(long memory, int memoryType, long size, long mapped, Strategy strategy, boolean dedicated) {
+            this.memory = memory;
+            this.memoryType = memoryType;
+            this.size = size;
+            this.mapped = mapped;
+            this.strategy = strategy;
+            this.dedicated = dedicated;
+            this.freeList = strategy == Strategy.FREE_LIST ? new RangeAllocator(size) : null;
+        }
+
+        private Allocation allocate(long allocSize, long alignment) {
+            long offset;
+            if (strategy == Strategy.LINEAR) {
+                offset = RangeAllocator.alignUp(linearOffset, alignment);
+                if (offset + allocSize > size) return null;
+                linearOffset = offset + allocSize;
+                linearUsed += allocSize;
+            } else {
+                offset = freeList.allocate(allocSize, alignment);
+                if (offset == RangeAllocator.INVALID) return null;
+            }
+            liveAllocations++;
+            return new Allocation(this, offset, allocSize);
+        }
+
+        private void release(Allocation allocation) {
+            liveAllocations--;
+            if (strategy == Strategy.LINEAR) {
+                linearUsed -= allocation.size;
+                if (liveAllocations == 0) linearOffset = 0;
+            } else {
+                freeList.free(allocation.offset, allocation.size);
+            }
+        }
+
+        private boolean isEmpty() {
+            return liveAllocations == 0;
+        }
+
+        private long usedBytes() {
+            return strategy == Strategy.LINEAR ? linearUsed : size - freeList.freeBytes();
+        }
+
+        private double fragmentation() {
+            // space behind the bump pointer of a linear block can't be reused until the block drains
+            if (strategy == Strategy.LINEAR) return linearOffset == 0 ? 0 : 1.0 - (double) linearUsed / linearOffset;
+            return freeList.fragmentation();
+        }
+
+        private void destroy() {
+            if (mapped != MemoryUtil.NULL) vkUnmapMemory(device, memory);
+            vkFreeMemory(device, memory, null);
+        }
+    }
+}
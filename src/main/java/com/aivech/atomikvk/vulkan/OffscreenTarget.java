@@ -0,0 +1,104 @@
+package com.aivech.atomikvk.vulkan;
+
+import com.google.common.collect.ImmutableList;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.LongBuffer;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Device local color images for rendering without a surface. Each frame in flight renders into its own image, so the
+ * frame's fence is all the synchronization the images need. The render pass leaves them ready to be copied out.
+ */
+class OffscreenTarget implements RenderTarget {
+    // RGBA rather than the swapchain's usual BGRA, so copied out pixels can go straight to an encoder
+    static final int FORMAT = VK_FORMAT_R8G8B8A8_SRGB;
+
+    private final MemoryAllocator allocator;
+    private final VkExtent2D extent;
+    private final ImmutableList<Long> images;
+    private final ImmutableList<Long> imageViews;
+    private final ImmutableList<MemoryAllocator.Allocation> allocations;
+
+    OffscreenTarget(VkDevice device, MemoryAllocator allocator, int width, int height, int imageCount) {
+        this.allocator = allocator;
+        this.extent = VkExtent2D.calloc().set(width, height);
+        ImmutableList.Builder<Long> images = ImmutableList.builder();
+        ImmutableList.Builder<Long> views = ImmutableList.builder();
+        ImmutableList.Builder<MemoryAllocator.Allocation> allocations = ImmutableList.builder();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var imageInfo = VkImageCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO)
+                    .imageType(VK_IMAGE_TYPE_2D)
+                    .format(FORMAT)
+                    .mipLevels(1)
+                    .arrayLayers(1)
+                    .samples(VK_SAMPLE_COUNT_1_BIT)
+                    .tiling(VK_IMAGE_TILING_OPTIMAL)
+                    .usage(VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT | VK_IMAGE_USAGE_TRANSFER_SRC_BIT)
+                    .sharingMode(VK_SHARING_MODE_EXCLUSIVE)
+                    .initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+            imageInfo.extent().set(width, height, 1);
+            LongBuffer pointer = stack.mallocLong(1);
+            for (int i = 0; i < imageCount; i++) {
+                _CHECK_(vkCreateImage(device, imageInfo, null, pointer), "Failed to create offscreen image.");
+                long image = pointer.get(0);
+                images.add(image);
+                allocations.add(allocator.allocateImage(image, MemoryAllocator.Strategy.FREE_LIST, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT));
+
+                var viewInfo = VkImageViewCreateInfo.calloc(stack)
+                        .sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO)
+                        .image(image)
+                        .viewType(VK_IMAGE_VIEW_TYPE_2D)
+                        .format(FORMAT);
+                viewInfo.subresourceRange().set(VK_IMAGE_ASPECT_COLOR_BIT, 0, 1, 0, 1);
+                _CHECK_(vkCreateImageView(device, viewInfo, null, pointer), "Failed to create offscreen image view.");
+                views.add(pointer.get(0));
+            }
+        }
+        this.images = images.build();
+        this.imageViews = views.build();
+        this.allocations = allocations.build();
+    }
+
+    @Override
+    public int imageCount() {
+        return images.size();
+    }
+
+    @Override
+    public long image(int index) {
+        return images.get(index);
+    }
+
+    @Override
+    public long imageView(int index) {
+        return imageViews.get(index);
+    }
+
+    @Override
+    public int getImageFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public int finalLayout() {
+        return VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL;
+    }
+
+    @Override
+    public VkExtent2D getExtent() {
+        return extent;
+    }
+
+    @Override
+    public void destroy(VkDevice device) {
+        for (long view : imageViews) vkDestroyImageView(device, view, null);
+        for (long image : images) vkDestroyImage(device, image, null);
+        for (MemoryAllocator.Allocation allocation : allocations) allocator.free(allocation);
+        extent.free();
+    }
+}
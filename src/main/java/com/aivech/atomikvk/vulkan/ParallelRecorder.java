@@ -0,0 +1,127 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Records a subpass worth of draws across a pool of worker threads. The draws are split into contiguous chunks,
+ * each chunk goes into a secondary command buffer from the recording worker's own pool in the {@link FrameContext},
+ * and the primary executes them in order. Small passes aren't worth the hand-off and are recorded inline.
+ */
+final class ParallelRecorder {
+    // below this many draws per chunk the fork costs more than the recording
+    static final int MIN_DRAWS_PER_CHUNK = 512;
+    // a few chunks per worker so an expensive chunk doesn't hold up the whole pass
+    private static final int CHUNKS_PER_WORKER = 4;
+    private static final ThreadLocal<Integer> WORKER_INDEX = new ThreadLocal<>();
+
+    final int workerCount;
+    private final VkDevice device;
+    private final ExecutorService workers;
+
+    /**
+     * Records draws {@code [first, first + count)} of the frame. Called concurrently, with a command buffer that is
+     * already inside the render pass, and must set all state it relies on.
+     */
+    @FunctionalInterface
+    interface DrawTask {
+        void record(VkCommandBuffer commandBuffer, int first, int count);
+    }
+
+    ParallelRecorder(VkDevice device, int workerCount) {
+        this.device = device;
+        this.workerCount = workerCount;
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            int index = threadCount.getAndIncrement();
+            Thread thread = new Thread(() -> {
+                WORKER_INDEX.set(index);
+                runnable.run();
+            }, "record-" + index);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Records {@code drawCount} draws into a subpass of the frame's primary command buffer. {@code enter} is called
+     * exactly once, before anything is recorded into the subpass, with the {@code VK_SUBPASS_CONTENTS_*} the recording
+     * needs, and begins the render pass or moves on to the subpass.
+     */
+    void recordSubpass(FrameContext frame, long renderPass, int subpass, long framebuffer, int drawCount, DrawTask task, IntConsumer enter) {
+        VkCommandBuffer primary = frame.commandBuffer;
+        if (drawCount < 2 * MIN_DRAWS_PER_CHUNK) {
+            enter.accept(VK_SUBPASS_CONTENTS_INLINE);
+            task.record(primary, 0, drawCount);
+            return;
+        }
+
+        int chunks = Math.min(drawCount / MIN_DRAWS_PER_CHUNK, workerCount * CHUNKS_PER_WORKER);
+        List<Callable<VkCommandBuffer>> jobs = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            int first = (int) ((long) drawCount * i / chunks);
+            int last = (int) ((long) drawCount * (i + 1) / chunks);
+            jobs.add(() -> recordChunk(frame, renderPass, subpass, framebuffer, first, last - first, task));
+        }
+
+        List<Future<VkCommandBuffer>> results;
+        try {
+            results = workers.invokeAll(jobs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while recording frame " + frame.index, e);
+        }
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            PointerBuffer secondaries = stack.mallocPointer(chunks);
+            for (Future<VkCommandBuffer> result : results) {
+                secondaries.put(result.get());
+            }
+            enter.accept(VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS);
+            vkCmdExecuteCommands(primary, secondaries.flip());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while recording frame " + frame.index, e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to record frame " + frame.index, e.getCause());
+        }
+    }
+
+    private VkCommandBuffer recordChunk(FrameContext frame, long renderPass, int subpass, long framebuffer, int first, int count, DrawTask task) {
+        VkCommandBuffer secondary = frame.secondaryCommandBuffer(device, WORKER_INDEX.get());
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var inheritance = VkCommandBufferInheritanceInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_INFO)
+                    .renderPass(renderPass)
+                    .subpass(subpass)
+                    .framebuffer(framebuffer);
+            var beginInfo = VkCommandBufferBeginInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+                    .flags(VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT | VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT)
+                    .pInheritanceInfo(inheritance);
+            _CHECK_(vkBeginCommandBuffer(secondary, beginInfo), "Failed to begin secondary command buffer.");
+            task.record(secondary, first, count);
+            _CHECK_(vkEndCommandBuffer(secondary), "Failed to record secondary command buffer.");
+        }
+        return secondary;
+    }
+
+    void destroy() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(5, TimeUnit.SECONDS)) workers.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.aivech.atomikvk.vulkan;
 
 import com.aivech.atomikvk.AtomikVk;
+import com.google.common.collect.ImmutableSet;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.*;
@@ -20,16 +21,34 @@ final class PhysicalDevice {
     final int presentIndex;
     final int computeIndex;
     final int transferIndex;
+    final VkPhysicalDeviceProperties properties;
+    final VkPhysicalDeviceMemoryProperties memoryProperties;
+    final VkPhysicalDeviceFeatures features;
+    final ImmutableSet<String> extensions;
+    private final int[] timestampValidBits;
 
     private PhysicalDevice(VkPhysicalDevice device, long khrSurface) {
         this.device = device;
 
+        // properties never change for the lifetime of the device, so query them once
+        properties = VkPhysicalDeviceProperties.calloc();
+        vkGetPhysicalDeviceProperties(device, properties);
+        memoryProperties = VkPhysicalDeviceMemoryProperties.calloc();
+        vkGetPhysicalDeviceMemoryProperties(device, memoryProperties);
+        features = VkPhysicalDeviceFeatures.calloc();
+        vkGetPhysicalDeviceFeatures(device, features);
+        extensions = queryExtensions(device);
+
         // get queue families
         try (MemoryStack stack = stackPush()) {
             IntBuffer pQueueFamilyCount = stack.mallocInt(1);
             vkGetPhysicalDeviceQueueFamilyProperties(device, pQueueFamilyCount, null);
             var queueFamilyProperties = VkQueueFamilyProperties.calloc(pQueueFamilyCount.get(0), stack);
             vkGetPhysicalDeviceQueueFamilyProperties(device, pQueueFamilyCount, queueFamilyProperties);
+            timestampValidBits = new int[queueFamilyProperties.capacity()];
+            for (int i = 0; i < timestampValidBits.length; i++) {
+                timestampValidBits[i] = queueFamilyProperties.get(i).timestampValidBits();
+            }
 
             int graphicsIndex = -1;
             int presentIndex = -1;
@@ -46,9 +65,7 @@ final class PhysicalDevice {
                 }
 
                 // presentation queue
-                var presentSupport = stack.mallocInt(1);
-                vkGetPhysicalDeviceSurfaceSupportKHR(device, i, khrSurface, presentSupport);
-                if (presentSupport.get(0) == VK_TRUE && presentIndex == -1) {
+                if (supportsPresent(stack, device, i, khrSurface) && presentIndex == -1) {
                     presentIndex = i;
                     continue;
                 }
@@ -60,10 +77,10 @@ final class PhysicalDevice {
                     transferIndex = i;
             }
             // no dedicated present queue, use the graphics queue or the transfer queue
+            // without a surface nothing presents, keep it on the graphics queue so no extra queue is created
             if (presentIndex == -1) {
-                var presentSupport = stack.mallocInt(1);
-                vkGetPhysicalDeviceSurfaceSupportKHR(device, graphicsIndex, khrSurface, presentSupport);
-                presentIndex = presentSupport.get(0) == VK_TRUE ? graphicsIndex : transferIndex;
+                presentIndex = khrSurface == VK_NULL_HANDLE || supportsPresent(stack, device, graphicsIndex, khrSurface)
+                        ? graphicsIndex : transferIndex;
             }
             // no dedicated transfer queue, use the graphics queue
             if (transferIndex == -1) transferIndex = graphicsIndex;
@@ -74,13 +91,58 @@ final class PhysicalDevice {
         }
     }
 
+    private static boolean supportsPresent(MemoryStack stack, VkPhysicalDevice device, int queueFamily, long khrSurface) {
+        if (khrSurface == VK_NULL_HANDLE) return false;
+        var presentSupport = stack.mallocInt(1);
+        vkGetPhysicalDeviceSurfaceSupportKHR(device, queueFamily, khrSurface, presentSupport);
+        return presentSupport.get(0) == VK_TRUE;
+    }
+
     int getQueueCount() {
         int count = 1;
         if (presentIndex != graphicsIndex) count++;
-        if (transferIndex != graphicsIndex) count++;
+        if (transferIndex != graphicsIndex && transferIndex != presentIndex) count++;
         return count;
     }
 
+    boolean supportsExtension(String name) {
+        return extensions.contains(name);
+    }
+
+    private static ImmutableSet<String> queryExtensions(VkPhysicalDevice device) {
+        try (MemoryStack stack = stackPush()) {
+            var extensionCount = stack.mallocInt(1);
+            vkEnumerateDeviceExtensionProperties(device, (ByteBuffer) null, extensionCount, null);
+            var extensions = VkExtensionProperties.calloc(extensionCount.get(0), stack);
+            vkEnumerateDeviceExtensionProperties(device, (ByteBuffer) null, extensionCount, extensions);
+            ImmutableSet.Builder<String> names = ImmutableSet.builder();
+            for (var extension : extensions) {
+                names.add(extension.extensionNameString());
+            }
+            return names.build();
+        }
+    }
+
+    /**
+     * @return how many low bits of a timestamp written on this queue family are meaningful, 0 if it can't write them
+     */
+    int timestampValidBits(int queueFamily) {
+        return timestampValidBits[queueFamily];
+    }
+
+    VkPhysicalDeviceLimits limits() {
+        return properties.limits();
+    }
+
+    void free() {
+        properties.free();
+        memoryProperties.free();
+        features.free();
+    }
+
+    /**
+     * @param khrSurface the surface to present to, or {@code VK_NULL_HANDLE} to select a device for offscreen work
+     */
     static PhysicalDevice selectVkPhysDevice(VkInstance instance, long khrSurface, CharSequence[] requiredExtensionNames) {
         try (MemoryStack stack = stackPush()) {
             // count all compatible devices
@@ -103,7 +165,10 @@ final class PhysicalDevice {
             while (pDevices.hasRemaining()) {
                 VkPhysicalDevice candidate = new VkPhysicalDevice(pDevices.get(), instance);
                 int candidateScore = scoreDevice(candidate, khrSurface, requiredExtensionNames);
-                if (candidateScore > score) selection = candidate;
+                if (candidateScore > score) {
+                    selection = candidate;
+                    score = candidateScore;
+                }
                 AtomikVk.LOGGER.debug("Received score " + candidateScore);
             }
 
@@ -139,15 +204,14 @@ final class PhysicalDevice {
                 var family = queueFamilyProperties.get();
                 if ((family.queueFlags() & VK_QUEUE_GRAPHICS_BIT) != 0) graphicsFlag = true;
 
-                var presentSupport = stack.mallocInt(1);
-                vkGetPhysicalDeviceSurfaceSupportKHR(device, i, khrSurface, presentSupport);
-                if (presentSupport.get(0) == VK_TRUE) presentFlag = true;
+                boolean presentSupport = supportsPresent(stack, device, i, khrSurface);
+                if (presentSupport) presentFlag = true;
 
                 // TODO: move to debug
                 AtomikVk.LOGGER.error("Queue Family: " + i + " graphics: " + ((family.queueFlags() & VK_QUEUE_GRAPHICS_BIT) != 0) +
                         " compute: " + ((family.queueFlags() & VK_QUEUE_COMPUTE_BIT) != 0) +
                         " transfer: " + ((family.queueFlags() & VK_QUEUE_TRANSFER_BIT) != 0) +
-                        " present: " + (presentSupport.get(0) == 1));
+                        " present: " + presentSupport);
             }
             if (!graphicsFlag && !presentFlag) return Integer.MIN_VALUE; // missing required queues
 
@@ -164,6 +228,7 @@ final class PhysicalDevice {
             if (!requiredExtensions.isEmpty()) return Integer.MIN_VALUE; // missing required extensions
 
             // check for required surface formats and present modes
+            if (khrSurface == VK_NULL_HANDLE) return score + deviceTypeScore(properties);
             IntBuffer pFormatCount = stack.mallocInt(1);
             vkGetPhysicalDeviceSurfaceFormatsKHR(device, khrSurface, pFormatCount, null);
             IntBuffer pPresentModeCount = stack.mallocInt(1);
@@ -171,11 +236,14 @@ final class PhysicalDevice {
             if (pFormatCount.get(0) == 0 || pPresentModeCount.get(0) == 0)
                 return Integer.MIN_VALUE; // missing required formats or modes
 
-            // score based on optional features
-            if (properties.deviceType() == VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU) score += 100;
-            return score;
+            return score + deviceTypeScore(properties);
         }
     }
 
+    // score based on optional features
+    private static int deviceTypeScore(VkPhysicalDeviceProperties properties) {
+        return properties.deviceType() == VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU ? 100 : 0;
+    }
+
 
 }
@@ -2,24 +2,34 @@ package com.aivech.atomikvk.vulkan;
 
 import com.aivech.atomikvk.common.resource.ShaderResource;
 import com.aivech.atomikvk.shaderc.SpirVCompiler;
+import com.google.common.collect.ImmutableSet;
 import org.lwjgl.system.MemoryStack;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.*;
 
 import java.nio.LongBuffer;
+import java.nio.file.Path;
+import java.util.Set;
 
 import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
 import static org.lwjgl.system.MemoryStack.*;
 import static org.lwjgl.vulkan.VK10.*;
 
 public class Pipeline {
-    private final RenderPass renderPass;
-    private final long p_pipelineLayout;
+    final long p_pipelineLayout;
     final long p_pipeline;
+    // the GLSL files this pipeline was built from, so a shader reload knows which pipelines to rebuild
+    final ImmutableSet<Path> sources;
 
-    Pipeline(VkDevice device, Swapchain swapchain, ShaderResource... shaderResources) {
+    Pipeline(VkDevice device, PipelineCache cache, long renderPass, int subpass, VertexFormat vertexFormat, long[] setLayouts, ShaderResource... shaderResources) {
+        ImmutableSet.Builder<Path> sourceFiles = ImmutableSet.builder();
+        for (ShaderResource shader : shaderResources) {
+            sourceFiles.add(shader.source.toPath().toAbsolutePath().normalize());
+        }
+        sources = sourceFiles.build();
+
+        Shader[] shaders = new Shader[shaderResources.length];
         try (MemoryStack stack = stackPush()) {
-            Shader[] shaders = new Shader[shaderResources.length];
             var p_stages = VkPipelineShaderStageCreateInfo.calloc(shaderResources.length, stack);
             for (int i = 0; i < shaders.length; i++) {
                 shaders[i] = new Shader(device, shaderResources[i]);
@@ -29,31 +39,23 @@ public class Pipeline {
 
             var vertexInputState = VkPipelineVertexInputStateCreateInfo.calloc(stack)
                     .sType(VK_STRUCTURE_TYPE_PIPELINE_VERTEX_INPUT_STATE_CREATE_INFO)
-                    .pVertexBindingDescriptions(VkVertex.getBindDesc(stack))
-                    .pVertexAttributeDescriptions(VkVertex.getAttrDesc(stack));
+                    .pVertexBindingDescriptions(vertexFormat.getBindDesc(stack))
+                    .pVertexAttributeDescriptions(vertexFormat.getAttrDesc(stack));
 
             var inputAssyState = VkPipelineInputAssemblyStateCreateInfo.calloc(stack)
                     .sType(VK_STRUCTURE_TYPE_PIPELINE_INPUT_ASSEMBLY_STATE_CREATE_INFO)
                     .topology(VK_PRIMITIVE_TOPOLOGY_TRIANGLE_LIST)
                     .primitiveRestartEnable(false);
 
-            var p_viewport = VkViewport.calloc(1, stack)
-                    .x(0.0f).y(0.0f)
-                    .width((float) swapchain.width())
-                    .height((float) swapchain.height())
-                    .minDepth(0.0f).maxDepth(1.0f);
-
-            var scissorOffset = VkOffset2D.calloc(stack).set(0, 0);
-            var p_scissor = VkRect2D.calloc(1, stack)
-                    .offset(scissorOffset)
-                    .extent(swapchain.getExtent());
-
+            // viewport and scissor are set when recording, so the pipeline survives window resizes
             var viewportState = VkPipelineViewportStateCreateInfo.calloc(stack)
                     .sType(VK_STRUCTURE_TYPE_PIPELINE_VIEWPORT_STATE_CREATE_INFO)
                     .viewportCount(1)
-                    .pViewports(p_viewport)
-                    .scissorCount(1)
-                    .pScissors(p_scissor);
+                    .scissorCount(1);
+
+            var dynamicState = VkPipelineDynamicStateCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_PIPELINE_DYNAMIC_STATE_CREATE_INFO)
+                    .pDynamicStates(stack.ints(VK_DYNAMIC_STATE_VIEWPORT, VK_DYNAMIC_STATE_SCISSOR));
 
             var rasterizer = VkPipelineRasterizationStateCreateInfo.calloc(stack)
                     .sType(VK_STRUCTURE_TYPE_PIPELINE_RASTERIZATION_STATE_CREATE_INFO)
@@ -79,10 +81,9 @@ public class Pipeline {
                     .logicOpEnable(false)
                     .pAttachments(p_colorBlendAttachment);
 
-            renderPass = new RenderPass(device, swapchain);
-
             var pipelineLayoutCreateInfo = VkPipelineLayoutCreateInfo.calloc(stack)
-                    .sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO);
+                    .sType(VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO)
+                    .pSetLayouts(stack.longs(setLayouts));
 
             var pp_pipelineLayout = stack.mallocLong(1);
             _CHECK_(vkCreatePipelineLayout(device, pipelineLayoutCreateInfo, null, pp_pipelineLayout), "Failed to create pipeline layout");
@@ -97,28 +98,38 @@ public class Pipeline {
                     .pRasterizationState(rasterizer)
                     .pMultisampleState(multisampling)
                     .pColorBlendState(colorBlend)
+                    .pDynamicState(dynamicState)
                     .layout(p_pipelineLayout)
-                    .renderPass(renderPass.vkRenderPass)
-                    .subpass(0);
-
-            LongBuffer pp_pipeline = stack.mallocLong(1);
-            _CHECK_(vkCreateGraphicsPipelines(device, VK_NULL_HANDLE, p_createInfo, null, pp_pipeline), "Failed to create graphics pipeline.");
-            p_pipeline = pp_pipeline.get(0);
-
+                    .renderPass(renderPass)
+                    .subpass(subpass);
+
+            try {
+                p_pipeline = cache.createGraphicsPipeline(device, p_createInfo);
+            } catch (RuntimeException e) {
+                vkDestroyPipelineLayout(device, p_pipelineLayout, null);
+                throw e;
+            }
+        } finally {
+            // modules are only needed until the pipeline exists
             for (Shader shader : shaders) {
-                shader.free(device);
+                if (shader != null) shader.free(device);
             }
         }
     }
 
-    long getRenderPass() {
-        return renderPass.vkRenderPass;
+    /**
+     * @return true if any of the given GLSL files went into this pipeline
+     */
+    boolean usesAny(Set<Path> files) {
+        for (Path file : files) {
+            if (sources.contains(file)) return true;
+        }
+        return false;
     }
 
     void destroy(VkDevice device) {
         vkDestroyPipeline(device, p_pipeline, null);
         vkDestroyPipelineLayout(device, p_pipelineLayout, null);
-        renderPass.free(device);
     }
 
     private static class Shader {
@@ -148,55 +159,4 @@ public class Pipeline {
             vkDestroyShaderModule(device, pVkShaderModule, null);
         }
     }
-
-    private static class RenderPass {
-        private final long vkRenderPass;
-
-        RenderPass(VkDevice device, Swapchain swapchain) {
-            try (MemoryStack stack = stackPush()) {
-                var p_colorAttach = VkAttachmentDescription.calloc(1, stack)
-                        .format(swapchain.getImageFormat())
-                        .samples(VK_SAMPLE_COUNT_1_BIT)
-                        .loadOp(VK_ATTACHMENT_LOAD_OP_CLEAR)
-                        .storeOp(VK_ATTACHMENT_STORE_OP_STORE)
-                        .stencilLoadOp(VK_ATTACHMENT_LOAD_OP_DONT_CARE)
-                        .stencilStoreOp(VK_ATTACHMENT_STORE_OP_DONT_CARE)
-                        .initialLayout(VK_IMAGE_LAYOUT_UNDEFINED)
-                        .finalLayout(KHRSwapchain.VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
-
-                var p_colorAttachRef = VkAttachmentReference.calloc(1, stack)
-                        .attachment(0)
-                        .layout(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL);
-
-                var p_subpass = VkSubpassDescription.calloc(1, stack)
-                        .pipelineBindPoint(VK_PIPELINE_BIND_POINT_GRAPHICS)
-                        .colorAttachmentCount(1)
-                        .pColorAttachments(p_colorAttachRef);
-
-                var dependency = VkSubpassDependency.calloc(1, stack)
-                        .srcSubpass(VK_SUBPASS_EXTERNAL)
-                        .dstSubpass(0)
-                        .srcStageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)
-                        .srcAccessMask(0)
-                        .dstStageMask(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT)
-                        .dstAccessMask(VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT);
-
-
-                var createInfo = VkRenderPassCreateInfo.calloc(stack)
-                        .sType(VK_STRUCTURE_TYPE_RENDER_PASS_CREATE_INFO)
-                        .pAttachments(p_colorAttach)
-                        .pSubpasses(p_subpass)
-                        .pDependencies(dependency);
-
-                var p_renderPass = stack.mallocLong(1);
-                _CHECK_(vkCreateRenderPass(device, createInfo, null, p_renderPass), "Failed to create render pass.");
-                vkRenderPass = p_renderPass.get(0);
-            }
-        }
-
-        private void free(VkDevice device) {
-            vkDestroyRenderPass(device, vkRenderPass, null);
-        }
-    }
-
 }
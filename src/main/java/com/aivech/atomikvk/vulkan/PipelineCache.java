@@ -0,0 +1,231 @@
+package com.aivech.atomikvk.vulkan;
+
+import com.aivech.atomikvk.AtomikVk;
+import com.aivech.atomikvk.common.config.AtomikVkConfig;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.util.zstd.Zstd.*;
+import static org.lwjgl.vulkan.EXTPipelineCreationFeedback.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A VkPipelineCache that survives restarts. The file starts with our own header identifying the device and driver
+ * that produced it, followed by the (optionally zstd compressed) cache data. A mismatching file is ignored and
+ * replaced on the next save.
+ */
+final class PipelineCache {
+    private static final int MAGIC = 0x43505641; // "AVPC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 6 + VK_UUID_SIZE + 8;
+    private static final int COMPRESSION_LEVEL = 3;
+    // driver caches stay in the tens of megabytes, anything past this is a corrupt header rather than real data
+    private static final long MAX_DATA_SIZE = 256L * 1024 * 1024;
+
+    final long handle;
+    private final Path file;
+    private final boolean creationFeedback;
+    private final int vendorID;
+    private final int deviceID;
+    private final int driverVersion;
+    private final ByteBuffer uuid;
+
+    private final AtomicLong pipelinesCreated = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong creationNanos = new AtomicLong();
+
+    PipelineCache(VkDevice device, PhysicalDevice gpu, Path file, boolean creationFeedback) {
+        this.file = file;
+        this.creationFeedback = creationFeedback;
+        this.vendorID = gpu.properties.vendorID();
+        this.deviceID = gpu.properties.deviceID();
+        this.driverVersion = gpu.properties.driverVersion();
+        this.uuid = gpu.properties.pipelineCacheUUID();
+
+        ByteBuffer initialData = load();
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var createInfo = VkPipelineCacheCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_PIPELINE_CACHE_CREATE_INFO)
+                    .pInitialData(initialData);
+            var pp_cache = stack.mallocLong(1);
+            int result = vkCreatePipelineCache(device, createInfo, null, pp_cache);
+            if (result != VK_SUCCESS && initialData != null) {
+                // the driver is allowed to reject data it doesn't like, start over empty
+                AtomikVk.LOGGER.warn("Driver rejected pipeline cache data: " + Vulkan.translateVulkanResult(result));
+                createInfo.pInitialData(null);
+                result = vkCreatePipelineCache(device, createInfo, null, pp_cache);
+            }
+            _CHECK_(result, "Failed to create pipeline cache.");
+            handle = pp_cache.get(0);
+        } finally {
+            MemoryUtil.memFree(initialData);
+        }
+    }
+
+    /**
+     * Creates one graphics pipeline through the cache and records how long it took and whether the cache hit.
+     */
+    long createGraphicsPipeline(VkDevice device, VkGraphicsPipelineCreateInfo.Buffer createInfo) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            VkPipelineCreationFeedbackEXT feedback = null;
+            if (creationFeedback) {
+                feedback = VkPipelineCreationFeedbackEXT.calloc(stack);
+                var feedbackInfo = VkPipelineCreationFeedbackCreateInfoEXT.calloc(stack)
+                        .sType(VK_STRUCTURE_TYPE_PIPELINE_CREATION_FEEDBACK_CREATE_INFO_EXT)
+                        .pNext(createInfo.pNext())
+                        .pPipelineCreationFeedback(feedback);
+                createInfo.pNext(feedbackInfo.address());
+            }
+
+            var pp_pipeline = stack.mallocLong(1);
+            long start = System.nanoTime();
+            _CHECK_(vkCreateGraphicsPipelines(device, handle, createInfo, null, pp_pipeline), "Failed to create graphics pipeline.");
+            creationNanos.addAndGet(System.nanoTime() - start);
+            pipelinesCreated.incrementAndGet();
+
+            if (feedback != null && (feedback.flags() & VK_PIPELINE_CREATION_FEEDBACK_VALID_BIT_EXT) != 0
+                    && (feedback.flags() & VK_PIPELINE_CREATION_FEEDBACK_APPLICATION_PIPELINE_CACHE_HIT_BIT_EXT) != 0) {
+                cacheHits.incrementAndGet();
+            }
+            return pp_pipeline.get(0);
+        }
+    }
+
+    Metrics getMetrics() {
+        return new Metrics(pipelinesCreated.get(), creationFeedback ? cacheHits.get() : -1, creationNanos.get());
+    }
+
+    /**
+     * Writes the cache to a temporary file and moves it over the old one, so a crash never leaves a torn file.
+     */
+    void save(VkDevice device) {
+        ByteBuffer data = null;
+        ByteBuffer compressed = null;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            PointerBuffer pDataSize = stack.mallocPointer(1);
+            _CHECK_(vkGetPipelineCacheData(device, handle, pDataSize, null), "Failed to query pipeline cache size.");
+            data = MemoryUtil.memAlloc((int) pDataSize.get(0));
+            _CHECK_(vkGetPipelineCacheData(device, handle, pDataSize, data), "Failed to read pipeline cache.");
+            data.limit((int) pDataSize.get(0));
+
+            ByteBuffer payload = data;
+            if (AtomikVkConfig.COMPRESS_PIPELINE_CACHE) {
+                compressed = MemoryUtil.memAlloc((int) ZSTD_compressBound(data.remaining()));
+                long compressedSize = ZSTD_compress(compressed, data, COMPRESSION_LEVEL);
+                if (ZSTD_isError(compressedSize)) throw new IOException("zstd: " + ZSTD_getErrorName(compressedSize));
+                payload = compressed.limit((int) compressedSize);
+            }
+
+            ByteBuffer header = stack.malloc(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC)
+                    .putInt(FORMAT_VERSION)
+                    .putInt(vendorID)
+                    .putInt(deviceID)
+                    .putInt(driverVersion)
+                    .putInt(AtomikVkConfig.COMPRESS_PIPELINE_CACHE ? 1 : 0)
+                    .put(uuid.duplicate())
+                    .putLong(data.remaining())
+                    .flip();
+
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) channel.write(header);
+                while (payload.hasRemaining()) channel.write(payload);
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            AtomikVk.LOGGER.debug("Saved pipeline cache (" + pDataSize.get(0) + " bytes): " + getMetrics());
+        } catch (IOException e) {
+            AtomikVk.LOGGER.warn("Failed to save pipeline cache to " + file, e);
+        } finally {
+            MemoryUtil.memFree(data);
+            MemoryUtil.memFree(compressed);
+        }
+    }
+
+    void destroy(VkDevice device) {
+        vkDestroyPipelineCache(device, handle, null);
+    }
+
+    /**
+     * @return the raw cache data if the file exists and was written for this device and driver, otherwise null
+     */
+    private ByteBuffer load() {
+        if (!Files.isRegularFile(file)) return null;
+        ByteBuffer contents = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) return reject("truncated header");
+            contents = MemoryUtil.memAlloc((int) fileSize);
+            while (contents.hasRemaining() && channel.read(contents) >= 0) ;
+            contents.flip().order(ByteOrder.LITTLE_ENDIAN);
+
+            if (contents.getInt() != MAGIC || contents.getInt() != FORMAT_VERSION) return reject("unknown format");
+            if (contents.getInt() != vendorID || contents.getInt() != deviceID) return reject("different device");
+            if (contents.getInt() != driverVersion) return reject("different driver version");
+            boolean compressed = contents.getInt() != 0;
+            ByteBuffer fileUUID = contents.slice(contents.position(), VK_UUID_SIZE);
+            if (!fileUUID.equals(uuid)) return reject("different pipeline cache UUID");
+            contents.position(contents.position() + VK_UUID_SIZE);
+            long dataSize = contents.getLong();
+            ByteBuffer payload = contents.slice();
+            long declaredSize = compressed ? ZSTD_getFrameContentSize(payload) : payload.remaining();
+            if (dataSize <= 0 || dataSize > MAX_DATA_SIZE || declaredSize != dataSize) {
+                AtomikVk.LOGGER.warn("Pipeline cache " + file + " declares an invalid data size: " + dataSize);
+                return null;
+            }
+
+            ByteBuffer data = MemoryUtil.memAlloc((int) dataSize);
+            if (compressed) {
+                long size = ZSTD_decompress(data, payload);
+                if (ZSTD_isError(size) || size != dataSize) {
+                    MemoryUtil.memFree(data);
+                    return reject("corrupt payload");
+                }
+            } else {
+                if (payload.remaining() != dataSize) {
+                    MemoryUtil.memFree(data);
+                    return reject("corrupt payload");
+                }
+                data.put(payload).flip();
+            }
+            AtomikVk.LOGGER.debug("Loaded pipeline cache (" + dataSize + " bytes) from " + file);
+            return data;
+        } catch (IOException e) {
+            AtomikVk.LOGGER.warn("Failed to read pipeline cache " + file, e);
+            return null;
+        } finally {
+            MemoryUtil.memFree(contents);
+        }
+    }
+
+    private ByteBuffer reject(String reason) {
+        AtomikVk.LOGGER.info("Ignoring pipeline cache " + file + ": " + reason);
+        return null;
+    }
+
+    /**
+     * @param cacheHits pipelines the driver reported as served from the cache, or -1 if the driver can't tell us
+     */
+    record Metrics(long pipelinesCreated, long cacheHits, long creationNanos) {
+        @Override
+        public String toString() {
+            return String.format("%d pipelines in %.2f ms, %s cache hits", pipelinesCreated, creationNanos / 1e6,
+                    cacheHits < 0 ? "unknown" : Long.toString(cacheHits));
+        }
+    }
+}
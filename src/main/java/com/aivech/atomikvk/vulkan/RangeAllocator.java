@@ -0,0 +1,99 @@
+package com.aivech.atomikvk.vulkan;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Best-fit free-list over an abstract range of bytes. Does no locking, callers synchronize.
+ */
+final class RangeAllocator {
+    static final long INVALID = -1L;
+
+    private final long capacity;
+    private final TreeMap<Long, Long> freeRanges = new TreeMap<>(); // offset -> size
+    private long freeBytes;
+
+    RangeAllocator(long capacity) {
+        this.capacity = capacity;
+        reset();
+    }
+
+    /**
+     * Finds the smallest free range that fits the request.
+     * @return the aligned offset of the allocation, or INVALID if nothing fits
+     */
+    long allocate(long size, long alignment) {
+        long bestOffset = INVALID;
+        long bestSize = Long.MAX_VALUE;
+        for (var range : freeRanges.entrySet()) {
+            long start = range.getKey();
+            long length = range.getValue();
+            long padding = alignUp(start, alignment) - start;
+            if (length - padding >= size && length < bestSize) {
+                bestOffset = start;
+                bestSize = length;
+                if (length - padding == size) break; // can't do better than exact
+            }
+        }
+        if (bestOffset == INVALID) return INVALID;
+
+        freeRanges.remove(bestOffset);
+        long aligned = alignUp(bestOffset, alignment);
+        if (aligned > bestOffset) freeRanges.put(bestOffset, aligned - bestOffset);
+        long tail = bestOffset + bestSize - (aligned + size);
+        if (tail > 0) freeRanges.put(aligned + size, tail);
+        freeBytes -= size;
+        return aligned;
+    }
+
+    void free(long offset, long size) {
+        freeBytes += size;
+        // merge with the neighbouring ranges so large requests can still be satisfied
+        Map.Entry<Long, Long> prev = freeRanges.floorEntry(offset);
+        if (prev != null && prev.getKey() + prev.getValue() == offset) {
+            freeRanges.remove(prev.getKey());
+            offset = prev.getKey();
+            size += prev.getValue();
+        }
+        Long nextSize = freeRanges.remove(offset + size);
+        if (nextSize != null) size += nextSize;
+        freeRanges.put(offset, size);
+    }
+
+    void reset() {
+        freeRanges.clear();
+        freeRanges.put(0L, capacity);
+        freeBytes = capacity;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    long freeBytes() {
+        return freeBytes;
+    }
+
+    long largestFreeRange() {
+        long largest = 0;
+        for (long size : freeRanges.values()) largest = Math.max(largest, size);
+        return largest;
+    }
+
+    boolean isEmpty() {
+        return freeBytes == capacity;
+    }
+
+    /**
+     * @return 0 when all free space is contiguous, approaching 1 as it is split into small pieces
+     */
+    double fragmentation() {
+        if (freeBytes == 0) return 0.0;
+        return 1.0 - (double) largestFreeRange() / freeBytes;
+    }
+
+    static long alignUp(long value, long alignment) {
+        if (alignment <= 1) return value;
+        return (value + alignment - 1) / alignment * alignment;
+    }
+}
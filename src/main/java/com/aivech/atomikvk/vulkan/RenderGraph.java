@@ -0,0 +1,990 @@
+package com.aivech.atomikvk.vulkan;
+
+import com.aivech.atomikvk.AtomikVk;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.*;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.system.MemoryStack.stackPush;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A frame described as passes that declare which images they touch and how. Compiling it culls the passes nothing
+ * reads from, merges consecutive raster passes into subpasses of one render pass where they only read each other's
+ * pixels as input attachments, and plans every barrier up front: one batched vkCmdPipelineBarrier ahead of each render
+ * pass or other pass, holding only the images whose layout changes or whose accesses conflict.
+ * <p>
+ * Images are either imported, such as the swapchain's, and bound before every execution, or transient and owned by
+ * the graph. Transient images whose lifetimes don't overlap share memory, and the ones that never leave a single
+ * render pass are never stored and get lazily allocated memory where the device has it. Transient images are shared by
+ * all frames in flight, their first barrier waits for the previous frame's last use. The graph is built again when
+ * the target changes.
+ */
+final class RenderGraph {
+    /**
+     * The ways a pass can touch an image. Attachments make a raster pass, transfers can't be mixed with them.
+     */
+    enum Access {
+        COLOR_ATTACHMENT(VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL, VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL,
+                VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT,
+                VK_ACCESS_COLOR_ATTACHMENT_READ_BIT | VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT, VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT,
+                VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT, true),
+        DEPTH_ATTACHMENT(VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL, VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL,
+                VK_PIPELINE_STAGE_EARLY_FRAGMENT_TESTS_BIT | VK_PIPELINE_STAGE_LATE_FRAGMENT_TESTS_BIT,
+                VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_READ_BIT | VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_WRITE_BIT, VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_WRITE_BIT,
+                VK_IMAGE_USAGE_DEPTH_STENCIL_ATTACHMENT_BIT, true),
+        // read at the same pixel by a later subpass
+        INPUT_ATTACHMENT(VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL, VK_IMAGE_LAYOUT_DEPTH_STENCIL_READ_ONLY_OPTIMAL,
+                VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, VK_ACCESS_INPUT_ATTACHMENT_READ_BIT, 0,
+                VK_IMAGE_USAGE_INPUT_ATTACHMENT_BIT, true),
+        SAMPLED(VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL, VK_IMAGE_LAYOUT_DEPTH_STENCIL_READ_ONLY_OPTIMAL,
+                VK_PIPELINE_STAGE_VERTEX_SHADER_BIT | VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT, VK_ACCESS_SHADER_READ_BIT, 0,
+                VK_IMAGE_USAGE_SAMPLED_BIT, false),
+        TRANSFER_SOURCE(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL,
+                VK_PIPELINE_STAGE_TRANSFER_BIT, VK_ACCESS_TRANSFER_READ_BIT, 0,
+                VK_IMAGE_USAGE_TRANSFER_SRC_BIT, false),
+        TRANSFER_DESTINATION(VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL,
+                VK_PIPELINE_STAGE_TRANSFER_BIT, VK_ACCESS_TRANSFER_WRITE_BIT, VK_ACCESS_TRANSFER_WRITE_BIT,
+                VK_IMAGE_USAGE_TRANSFER_DST_BIT, false);
+
+        private final int colorLayout;
+        private final int depthLayout;
+        final int stages;
+        final int access;
+        final int writeAccess;
+        final int usage;
+        final boolean attachment;
+
+        Access(int colorLayout, int depthLayout, int stages, int access, int writeAccess, int usage, boolean attachment) {
+            this.colorLayout = colorLayout;
+            this.depthLayout = depthLayout;
+            this.stages = stages;
+            this.access = access;
+            this.writeAccess = writeAccess;
+            this.usage = usage;
+            this.attachment = attachment;
+        }
+
+        boolean writes() {
+            return writeAccess != 0;
+        }
+
+        int layout(int format) {
+            return isDepth(format) ? depthLayout : colorLayout;
+        }
+    }
+
+    /**
+     * How an imported image changes hands: the layout it's in or has to be left in, and the stages and accesses on
+     * the other side.
+     */
+    record Handoff(int layout, int stages, int access) {
+    }
+
+    /**
+     * Records a pass. Raster passes are inside their subpass once they ask for the command buffer.
+     */
+    @FunctionalInterface
+    interface Body {
+        void record(PassContext context);
+    }
+
+    private final VkDevice device;
+    private final PhysicalDevice gpu;
+    private final MemoryAllocator allocator;
+    private final List<Image> images = new ArrayList<>();
+    private final List<Pass> passes = new ArrayList<>();
+    private final List<Group> groups = new ArrayList<>();
+    // hands the imported images back at the end of the frame
+    private final List<Barrier> finalBarriers = new ArrayList<>();
+    private final List<MemoryAllocator.Allocation> allocations = new ArrayList<>();
+    private boolean compiled;
+
+    RenderGraph(VkDevice device, PhysicalDevice gpu, MemoryAllocator allocator) {
+        this.device = device;
+        this.gpu = gpu;
+        this.allocator = allocator;
+    }
+
+    /**
+     * Declares an image owned outside the graph. Passes writing to it are never culled.
+     * @param before the layout the image arrives in and the stages the first barrier has to wait for
+     * @param after the layout to leave it in and the stages that use it next
+     * @return the image's handle for passes
+     */
+    int importImage(String name, int format, int width, int height, Handoff before, Handoff after) {
+        return add(new Image(images.size(), name, format, width, height, before, after));
+    }
+
+    /**
+     * Declares an image that only lives within the frame, its contents are undefined when the frame starts.
+     * @return the image's handle for passes
+     */
+    int createImage(String name, int format, int width, int height) {
+        return add(new Image(images.size(), name, format, width, height, null, null));
+    }
+
+    private int add(Image image) {
+        if (compiled) throw new IllegalStateException("Render graph is already compiled");
+        images.add(image);
+        return image.id;
+    }
+
+    /**
+     * Passes run in the order they are added.
+     */
+    Pass addPass(String name) {
+        if (compiled) throw new IllegalStateException("Render graph is already compiled");
+        Pass pass = new Pass(name);
+        passes.add(pass);
+        return pass;
+    }
+
+    /**
+     * Sets the image and view an imported image stands for in the next executions.
+     */
+    void bind(int id, long image, long view) {
+        Image imported = images.get(id);
+        if (!imported.isImported()) throw new IllegalArgumentException("'" + imported.name + "' is owned by the graph");
+        imported.image = image;
+        imported.view = view;
+    }
+
+    /**
+     * @return the render pass a raster pass was compiled into, for building its pipelines
+     */
+    long renderPass(Pass pass) {
+        if (pass.group == null || !pass.group.raster) throw new IllegalStateException("'" + pass.name + "' was culled or draws nothing");
+        return pass.group.renderPass;
+    }
+
+    int subpass(Pass pass) {
+        return pass.subpass;
+    }
+
+    boolean isCulled(Pass pass) {
+        return compiled && pass.group == null;
+    }
+
+    void compile() {
+        if (compiled) throw new IllegalStateException("Render graph is already compiled");
+        compiled = true;
+        List<Pass> live = cull();
+        for (Pass pass : live) {
+            Group group = groups.isEmpty() ? null : groups.get(groups.size() - 1);
+            if (group == null || !group.accepts(pass)) {
+                group = new Group();
+                groups.add(group);
+            }
+            group.add(pass);
+        }
+        for (int index = 0; index < groups.size(); index++) {
+            for (Pass pass : groups.get(index).passes) {
+                for (Use use : pass.uses) {
+                    if (use.image.firstGroup < 0) use.image.firstGroup = index;
+                    use.image.lastGroup = index;
+                    use.image.usage |= use.access.usage;
+                }
+            }
+        }
+        long[] memory = createTransientImages();
+        planBarriers();
+        int renderPasses = 0;
+        for (int index = 0; index < groups.size(); index++) {
+            if (!groups.get(index).raster) continue;
+            createRenderPass(groups.get(index), index);
+            renderPasses++;
+        }
+        AtomikVk.LOGGER.debug(String.format("Render graph: %d of %d passes in %d render passes, transient images in %d KiB instead of %d KiB",
+                live.size(), passes.size(), renderPasses, memory[0] / 1024, memory[1] / 1024));
+    }
+
+    /**
+     * Walks the passes backwards from the imported images. A pass lives if it writes something a later live pass or
+     * the outside still needs, what it clears was not needed from before it.
+     */
+    private List<Pass> cull() {
+        Set<Image> needed = new HashSet<>();
+        for (Image image : images) {
+            if (image.isImported()) needed.add(image);
+        }
+        Deque<Pass> live = new ArrayDeque<>();
+        for (int i = passes.size() - 1; i >= 0; i--) {
+            Pass pass = passes.get(i);
+            boolean used = pass.sideEffects;
+            for (Use use : pass.uses) {
+                if (use.access.writes() && needed.contains(use.image)) used = true;
+            }
+            if (!used) continue;
+            live.addFirst(pass);
+            for (Use use : pass.uses) {
+                if (use.isClear()) needed.remove(use.image);
+            }
+            for (Use use : pass.uses) {
+                if (use.reads()) needed.add(use.image);
+            }
+        }
+        return new ArrayList<>(live);
+    }
+
+    /**
+     * Creates the transient images the live passes use and packs them into one allocation per memory type, images
+     * alive at the same time side by side and the others on top of each other.
+     * @return the bytes allocated and the bytes the images would have taken on their own
+     */
+    private long[] createTransientImages() {
+        Map<Integer, List<Image>> byType = new LinkedHashMap<>();
+        long unaliased = 0;
+        try (MemoryStack stack = stackPush()) {
+            var imageInfo = VkImageCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO)
+                    .imageType(VK_IMAGE_TYPE_2D)
+                    .mipLevels(1)
+                    .arrayLayers(1)
+                    .samples(VK_SAMPLE_COUNT_1_BIT)
+                    .tiling(VK_IMAGE_TILING_OPTIMAL)
+                    .sharingMode(VK_SHARING_MODE_EXCLUSIVE)
+                    .initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+            var requirements = VkMemoryRequirements.malloc(stack);
+            LongBuffer pointer = stack.mallocLong(1);
+            long granularity = gpu.limits().bufferImageGranularity();
+            for (Image image : images) {
+                if (image.isImported() || image.firstGroup < 0) continue;
+                // never stored or read outside the one render pass, a tiler can keep it in tile memory entirely
+                image.lazy = image.firstGroup == image.lastGroup && groups.get(image.firstGroup).attachments.contains(image);
+                imageInfo.format(image.format)
+                        .usage(image.usage | (image.lazy ? VK_IMAGE_USAGE_TRANSIENT_ATTACHMENT_BIT : 0));
+                imageInfo.extent().set(image.width, image.height, 1);
+                _CHECK_(vkCreateImage(device, imageInfo, null, pointer), "Failed to create transient image '" + image.name + "'");
+                image.image = pointer.get(0);
+
+                vkGetImageMemoryRequirements(device, image.image, requirements);
+                // blocks are shared with buffers, keep them off the image's pages like MemoryAllocator.allocateImage
+                image.size = RangeAllocator.alignUp(requirements.size(), granularity);
+                image.alignment = Math.max(requirements.alignment(), granularity);
+                image.memoryType = image.lazy
+                        ? allocator.findMemoryType(requirements.memoryTypeBits(), VK_MEMORY_PROPERTY_LAZILY_ALLOCATED_BIT | VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT)
+                        : allocator.findMemoryType(requirements.memoryTypeBits(), VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+                byType.computeIfAbsent(image.memoryType, type -> new ArrayList<>()).add(image);
+                unaliased += image.size;
+            }
+        }
+
+        long allocated = 0;
+        for (var entry : byType.entrySet()) {
+            List<Image> shared = entry.getValue();
+            long size = place(shared);
+            long alignment = 1;
+            for (Image image : shared) alignment = Math.max(alignment, image.alignment);
+            var allocation = allocator.allocate(1 << entry.getKey(), size, alignment, MemoryAllocator.Strategy.FREE_LIST, 0);
+            allocations.add(allocation);
+            allocated += size;
+            for (Image image : shared) {
+                _CHECK_(vkBindImageMemory(device, image.image, allocation.memory, allocation.offset + image.memoryOffset),
+                        "Failed to bind transient image '" + image.name + "'");
+                image.view = createView(image);
+            }
+        }
+        return new long[]{allocated, unaliased};
+    }
+
+    /**
+     * Biggest first, every image goes to the lowest offset that doesn't collide with an image alive at the same time.
+     * @return the bytes the images take together
+     */
+    private static long place(List<Image> shared) {
+        List<Image> sorted = new ArrayList<>(shared);
+        sorted.sort(Comparator.comparingLong((Image image) -> image.size).reversed());
+        List<Image> placed = new ArrayList<>();
+        long size = 0;
+        for (Image image : sorted) {
+            long offset = 0;
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                for (Image other : placed) {
+                    if (image.livesWith(other) && offset < other.memoryOffset + other.size && other.memoryOffset < offset + image.size) {
+                        offset = RangeAllocator.alignUp(other.memoryOffset + other.size, image.alignment);
+                        moved = true;
+                    }
+                }
+            }
+            image.memoryOffset = offset;
+            placed.add(image);
+            size = Math.max(size, offset + image.size);
+        }
+        return size;
+    }
+
+    private long createView(Image image) {
+        try (MemoryStack stack = stackPush()) {
+            var viewInfo = VkImageViewCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO)
+                    .image(image.image)
+                    .viewType(VK_IMAGE_VIEW_TYPE_2D)
+                    .format(image.format);
+            viewInfo.subresourceRange().set(image.aspect(), 0, 1, 0, 1);
+            LongBuffer pointer = stack.mallocLong(1);
+            _CHECK_(vkCreateImageView(device, viewInfo, null, pointer), "Failed to create view of transient image '" + image.name + "'");
+            return pointer.get(0);
+        }
+    }
+
+    /**
+     * Follows every image's layout and last accesses through the groups. A barrier goes in ahead of a group only if
+     * the layout changes or either side writes, reads following reads in the same layout just add their stages for
+     * the next write to wait on.
+     */
+    private void planBarriers() {
+        Map<Image, State> states = new HashMap<>();
+        List<Barrier> firstUses = new ArrayList<>();
+        for (Group group : groups) {
+            for (var entry : group.summarize().entrySet()) {
+                Image image = entry.getKey();
+                Summary use = entry.getValue();
+                State state = states.get(image);
+                if (state == null) {
+                    state = new State();
+                    states.put(image, state);
+                    if (!image.isImported()) {
+                        // the stages are filled in below, once the last uses are known
+                        Barrier barrier = new Barrier(image, VK_IMAGE_LAYOUT_UNDEFINED, use.firstLayout, 0, 0, use.stages, use.access);
+                        group.barriers.add(barrier);
+                        firstUses.add(barrier);
+                    } else if (image.before.layout != use.firstLayout || image.before.access != 0 || use.writeAccess != 0) {
+                        group.barriers.add(new Barrier(image, image.before.layout, use.firstLayout, image.before.stages, image.before.access, use.stages, use.access));
+                    }
+                    state.stages = use.stages;
+                    state.writeAccess = use.writeAccess;
+                } else if (state.layout != use.firstLayout || state.writeAccess != 0 || use.writeAccess != 0) {
+                    group.barriers.add(new Barrier(image, state.layout, use.firstLayout, state.stages, state.writeAccess, use.stages, use.access));
+                    state.stages = use.stages;
+                    state.writeAccess = use.writeAccess;
+                } else {
+                    state.stages |= use.stages;
+                }
+                state.layout = use.lastLayout;
+            }
+        }
+
+        for (Image image : images) {
+            State state = states.get(image);
+            if (!image.isImported() || state == null) continue;
+            Group last = groups.get(image.lastGroup);
+            if (image.after.access == 0 && last.attachments.contains(image)) {
+                // nothing to make visible, such as presentation, the render pass can end in the layout itself
+                last.finalLayouts.put(image, image.after.layout);
+                continue;
+            }
+            if (state.layout != image.after.layout || state.writeAccess != 0) {
+                finalBarriers.add(new Barrier(image, state.layout, image.after.layout, state.stages, state.writeAccess, image.after.stages, image.after.access));
+            }
+        }
+        // the memory was last touched by whichever image sharing it was used last, possibly in the previous frame
+        for (Barrier barrier : firstUses) {
+            for (Image other : images) {
+                State state = states.get(other);
+                if (state == null || !barrier.image.sharesMemoryWith(other)) continue;
+                barrier.srcStages |= state.stages;
+                barrier.srcAccess |= state.writeAccess;
+            }
+        }
+    }
+
+    private void createRenderPass(Group group, int index) {
+        List<Image> attachments = group.attachmentList = new ArrayList<>(group.attachments);
+        Map<Image, Summary> summaries = group.summarize();
+        try (MemoryStack stack = stackPush()) {
+            var descriptions = VkAttachmentDescription.calloc(attachments.size(), stack);
+            group.clearValues = VkClearValue.calloc(attachments.size());
+            for (int a = 0; a < attachments.size(); a++) {
+                Image image = attachments.get(a);
+                Use first = group.firstUse(image);
+                boolean hasContents = image.firstGroup < index || image.isImported() && image.before.layout != VK_IMAGE_LAYOUT_UNDEFINED;
+                int loadOp = first.isClear() ? VK_ATTACHMENT_LOAD_OP_CLEAR : hasContents ? VK_ATTACHMENT_LOAD_OP_LOAD : VK_ATTACHMENT_LOAD_OP_DONT_CARE;
+                int storeOp = image.isImported() || image.lastGroup > index ? VK_ATTACHMENT_STORE_OP_STORE : VK_ATTACHMENT_STORE_OP_DONT_CARE;
+                boolean stencil = hasStencil(image.format);
+                // the barrier ahead of the group already moved it to its first layout
+                descriptions.get(a)
+                        .format(image.format)
+                        .samples(VK_SAMPLE_COUNT_1_BIT)
+                        .loadOp(loadOp)
+                        .storeOp(storeOp)
+                        .stencilLoadOp(stencil ? loadOp : VK_ATTACHMENT_LOAD_OP_DONT_CARE)
+                        .stencilStoreOp(stencil ? storeOp : VK_ATTACHMENT_STORE_OP_DONT_CARE)
+                        .initialLayout(summaries.get(image).firstLayout)
+                        .finalLayout(group.finalLayouts.getOrDefault(image, summaries.get(image).lastLayout));
+                if (first.isClear()) {
+                    float[] value = first.clearValue;
+                    if (isDepth(image.format)) {
+                        group.clearValues.get(a).depthStencil().set(value[0], 0);
+                    } else {
+                        group.clearValues.get(a).color().float32(0, value[0]).float32(1, value[1]).float32(2, value[2]).float32(3, value[3]);
+                    }
+                }
+            }
+
+            var subpasses = VkSubpassDescription.calloc(group.passes.size(), stack);
+            // keyed on source << 32 | destination: source stages and accesses, then destination ones
+            Map<Long, int[]> dependencies = new LinkedHashMap<>();
+            for (int j = 0; j < group.passes.size(); j++) {
+                Pass pass = group.passes.get(j);
+                int colors = 0, inputs = 0;
+                for (Use use : pass.uses) {
+                    if (use.access == Access.COLOR_ATTACHMENT) colors++;
+                    if (use.access == Access.INPUT_ATTACHMENT) inputs++;
+                }
+                var colorRefs = VkAttachmentReference.calloc(colors, stack);
+                var inputRefs = VkAttachmentReference.calloc(inputs, stack);
+                VkAttachmentReference depthRef = null;
+                for (Use use : pass.uses) {
+                    if (!use.access.attachment) continue;
+                    int attachment = attachments.indexOf(use.image);
+                    int layout = use.access.layout(use.image.format);
+                    switch (use.access) {
+                        case COLOR_ATTACHMENT -> colorRefs.get().attachment(attachment).layout(layout);
+                        case INPUT_ATTACHMENT -> inputRefs.get().attachment(attachment).layout(layout);
+                        default -> depthRef = VkAttachmentReference.calloc(stack).attachment(attachment).layout(layout);
+                    }
+                    // every earlier subpass it conflicts with, reads after reads need nothing
+                    for (int i = 0; i < j; i++) {
+                        Use earlier = group.passes.get(i).use(use.image);
+                        if (earlier == null || !earlier.access.writes() && !use.access.writes()) continue;
+                        int[] dependency = dependencies.computeIfAbsent((long) i << 32 | j, key -> new int[4]);
+                        dependency[0] |= earlier.access.stages;
+                        dependency[1] |= earlier.access.writeAccess;
+                        dependency[2] |= use.access.stages;
+                        dependency[3] |= use.access.access;
+                    }
+                }
+
+                // attachments this subpass skips whose contents a later one still needs
+                List<Integer> preserve = new ArrayList<>();
+                for (int a = 0; a < attachments.size(); a++) {
+                    Image image = attachments.get(a);
+                    if (pass.use(image) != null) continue;
+                    boolean before = false, after = false;
+                    for (int i = 0; i < group.passes.size(); i++) {
+                        if (group.passes.get(i).use(image) == null) continue;
+                        if (i < j) before = true;
+                        if (i > j) after = true;
+                    }
+                    if (before && (after || storeOp(descriptions.get(a)))) preserve.add(a);
+                }
+
+                var subpass = subpasses.get(j)
+                        .pipelineBindPoint(VK_PIPELINE_BIND_POINT_GRAPHICS)
+                        .colorAttachmentCount(colors)
+                        .pColorAttachments(colorRefs.rewind())
+                        .pDepthStencilAttachment(depthRef);
+                if (inputs > 0) subpass.pInputAttachments(inputRefs.rewind());
+                if (!preserve.isEmpty()) {
+                    IntBuffer indices = stack.mallocInt(preserve.size());
+                    for (int a : preserve) indices.put(a);
+                    subpass.pPreserveAttachments(indices.flip());
+                }
+            }
+
+            VkSubpassDependency.Buffer p_dependencies = null;
+            if (!dependencies.isEmpty()) {
+                p_dependencies = VkSubpassDependency.calloc(dependencies.size(), stack);
+                for (var entry : dependencies.entrySet()) {
+                    int[] dependency = entry.getValue();
+                    p_dependencies.get()
+                            .srcSubpass((int) (entry.getKey() >>> 32))
+                            .dstSubpass((int) (long) entry.getKey())
+                            .srcStageMask(dependency[0])
+                            .srcAccessMask(dependency[1])
+                            .dstStageMask(dependency[2])
+                            .dstAccessMask(dependency[3])
+                            // subpasses only ever see their own pixel of each other's attachments
+                            .dependencyFlags(VK_DEPENDENCY_BY_REGION_BIT);
+                }
+                p_dependencies.flip();
+            }
+
+            var createInfo = VkRenderPassCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_RENDER_PASS_CREATE_INFO)
+                    .pAttachments(descriptions)
+                    .pSubpasses(subpasses)
+                    .pDependencies(p_dependencies);
+            LongBuffer pointer = stack.mallocLong(1);
+            _CHECK_(vkCreateRenderPass(device, createInfo, null, pointer), "Failed to create render pass for " + group.name());
+            group.renderPass = pointer.get(0);
+        }
+    }
+
+    private static boolean storeOp(VkAttachmentDescription description) {
+        return description.storeOp() == VK_ATTACHMENT_STORE_OP_STORE;
+    }
+
+    /**
+     * Records the whole frame into its primary command buffer, wrapping each render pass or other pass in a profiler
+     * scope. Every imported image must be bound.
+     */
+    void execute(FrameContext frame, ParallelRecorder recorder, GpuProfiler profiler) {
+        if (!compiled) throw new IllegalStateException("Render graph is not compiled");
+        VkCommandBuffer commandBuffer = frame.commandBuffer;
+        try (MemoryStack stack = stackPush()) {
+            for (Group group : groups) {
+                recordBarriers(stack, commandBuffer, group.barriers);
+                int scope = profiler.begin(commandBuffer, frame.index, group.name());
+                if (!group.raster) {
+                    Pass pass = group.passes.get(0);
+                    pass.body.record(new PassContext(pass, frame, recorder, VK_NULL_HANDLE, null));
+                } else {
+                    long framebuffer = framebuffer(group);
+                    var beginInfo = VkRenderPassBeginInfo.calloc(stack)
+                            .sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO)
+                            .renderPass(group.renderPass)
+                            .framebuffer(framebuffer)
+                            .pClearValues(group.clearValues);
+                    beginInfo.renderArea().offset().set(0, 0);
+                    beginInfo.renderArea().extent().set(group.width, group.height);
+                    for (int j = 0; j < group.passes.size(); j++) {
+                        Pass pass = group.passes.get(j);
+                        IntConsumer enter = j == 0
+                                ? contents -> vkCmdBeginRenderPass(commandBuffer, beginInfo, contents)
+                                : contents -> vkCmdNextSubpass(commandBuffer, contents);
+                        PassContext context = new PassContext(pass, frame, recorder, framebuffer, enter);
+                        pass.body.record(context);
+                        context.commandBuffer(); // a subpass that recorded nothing still has to be entered
+                    }
+                    vkCmdEndRenderPass(commandBuffer);
+                }
+                profiler.end(commandBuffer, frame.index, scope);
+            }
+            recordBarriers(stack, commandBuffer, finalBarriers);
+        }
+    }
+
+    private static void recordBarriers(MemoryStack stack, VkCommandBuffer commandBuffer, List<Barrier> barriers) {
+        if (barriers.isEmpty()) return;
+        var p_barriers = VkImageMemoryBarrier.calloc(barriers.size(), stack);
+        int srcStages = 0, dstStages = 0;
+        for (Barrier barrier : barriers) {
+            Image image = barrier.image;
+            if (image.image == VK_NULL_HANDLE) throw new IllegalStateException("'" + image.name + "' was never bound");
+            p_barriers.get()
+                    .sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+                    .srcAccessMask(barrier.srcAccess)
+                    .dstAccessMask(barrier.dstAccess)
+                    .oldLayout(barrier.oldLayout)
+                    .newLayout(barrier.newLayout)
+                    .srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                    .dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                    .image(image.image)
+                    .subresourceRange(range -> range.set(image.aspect(), 0, 1, 0, 1));
+            srcStages |= barrier.srcStages;
+            dstStages |= barrier.dstStages;
+        }
+        vkCmdPipelineBarrier(commandBuffer, srcStages == 0 ? VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT : srcStages, dstStages,
+                0, null, null, p_barriers.flip());
+    }
+
+    /**
+     * Framebuffers are made on first use for each set of views, one per swapchain image at most.
+     */
+    private long framebuffer(Group group) {
+        List<Long> views = new ArrayList<>(group.attachmentList.size());
+        for (Image image : group.attachmentList) {
+            if (image.view == VK_NULL_HANDLE) throw new IllegalStateException("'" + image.name + "' was never bound");
+            views.add(image.view);
+        }
+        return group.framebuffers.computeIfAbsent(views, key -> {
+            try (MemoryStack stack = stackPush()) {
+                LongBuffer attachments = stack.mallocLong(key.size());
+                for (long view : key) attachments.put(view);
+                var framebufferInfo = VkFramebufferCreateInfo.calloc(stack)
+                        .sType(VK_STRUCTURE_TYPE_FRAMEBUFFER_CREATE_INFO)
+                        .renderPass(group.renderPass)
+                        .pAttachments(attachments.flip())
+                        .width(group.width)
+                        .height(group.height)
+                        .layers(1);
+                LongBuffer pointer = stack.mallocLong(1);
+                _CHECK_(vkCreateFramebuffer(device, framebufferInfo, null, pointer), "Failed to create framebuffer for " + group.name());
+                return pointer.get(0);
+            }
+        });
+    }
+
+    /**
+     * The GPU must be done with every frame the graph recorded.
+     */
+    void destroy() {
+        for (Group group : groups) {
+            for (long framebuffer : group.framebuffers.values()) vkDestroyFramebuffer(device, framebuffer, null);
+            if (group.renderPass != VK_NULL_HANDLE) vkDestroyRenderPass(device, group.renderPass, null);
+            if (group.clearValues != null) group.clearValues.free();
+        }
+        for (Image image : images) {
+            if (image.isImported()) continue;
+            if (image.view != VK_NULL_HANDLE) vkDestroyImageView(device, image.view, null);
+            if (image.image != VK_NULL_HANDLE) vkDestroyImage(device, image.image, null);
+        }
+        for (MemoryAllocator.Allocation allocation : allocations) allocator.free(allocation);
+        groups.clear();
+        allocations.clear();
+    }
+
+    static boolean isDepth(int format) {
+        return switch (format) {
+            case VK_FORMAT_D16_UNORM, VK_FORMAT_X8_D24_UNORM_PACK32, VK_FORMAT_D32_SFLOAT,
+                    VK_FORMAT_D16_UNORM_S8_UINT, VK_FORMAT_D24_UNORM_S8_UINT, VK_FORMAT_D32_SFLOAT_S8_UINT -> true;
+            default -> false;
+        };
+    }
+
+    static boolean hasStencil(int format) {
+        return format == VK_FORMAT_D16_UNORM_S8_UINT || format == VK_FORMAT_D24_UNORM_S8_UINT || format == VK_FORMAT_D32_SFLOAT_S8_UINT;
+    }
+
+    /**
+     * A pass as declared: the images it touches, in declaration order, and what records it.
+     */
+    final class Pass {
+        final String name;
+        private final List<Use> uses = new ArrayList<>();
+        private Body body = context -> {
+        };
+        private boolean sideEffects;
+        private boolean raster;
+        private boolean transfers;
+        private int width;
+        private int height;
+        // set by compiling, null if culled
+        private Group group;
+        private int subpass;
+
+        private Pass(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Draws on top of what the image holds.
+         */
+        Pass color(int image) {
+            return use(image, Access.COLOR_ATTACHMENT, null);
+        }
+
+        Pass clearColor(int image, float r, float g, float b, float a) {
+            return use(image, Access.COLOR_ATTACHMENT, new float[]{r, g, b, a});
+        }
+
+        Pass depth(int image) {
+            return use(image, Access.DEPTH_ATTACHMENT, null);
+        }
+
+        Pass clearDepth(int image, float depth) {
+            return use(image, Access.DEPTH_ATTACHMENT, new float[]{depth});
+        }
+
+        /**
+         * Reads the pixel being shaded from an image an earlier pass drew, which lets the two share a render pass.
+         */
+        Pass input(int image) {
+            return use(image, Access.INPUT_ATTACHMENT, null);
+        }
+
+        /**
+         * Samples anywhere in the image, which ends the render pass that drew it.
+         */
+        Pass sample(int image) {
+            return use(image, Access.SAMPLED, null);
+        }
+
+        Pass transferSource(int image) {
+            return use(image, Access.TRANSFER_SOURCE, null);
+        }
+
+        Pass transferDestination(int image) {
+            return use(image, Access.TRANSFER_DESTINATION, null);
+        }
+
+        /**
+         * Keeps the pass even if no image it writes is read, for passes that write buffers or query results.
+         */
+        Pass sideEffects() {
+            sideEffects = true;
+            return this;
+        }
+
+        Pass record(Body body) {
+            this.body = body;
+            return this;
+        }
+
+        private Pass use(int id, Access access, float[] clearValue) {
+            if (compiled) throw new IllegalStateException("Render graph is already compiled");
+            Image image = images.get(id);
+            if (use(image) != null) throw new IllegalArgumentException("Pass '" + name + "' uses '" + image.name + "' twice");
+            if ((access == Access.DEPTH_ATTACHMENT) != isDepth(image.format) && (access == Access.DEPTH_ATTACHMENT || access == Access.COLOR_ATTACHMENT)) {
+                throw new IllegalArgumentException("'" + image.name + "' can't be a " + access + " with format " + image.format);
+            }
+            if (access == Access.DEPTH_ATTACHMENT) {
+                for (Use use : uses) {
+                    if (use.access == Access.DEPTH_ATTACHMENT) throw new IllegalArgumentException("Pass '" + name + "' has two depth attachments");
+                }
+            }
+            boolean transfer = access == Access.TRANSFER_SOURCE || access == Access.TRANSFER_DESTINATION;
+            if (transfer && raster || access.attachment && transfers) {
+                throw new IllegalArgumentException("Pass '" + name + "' mixes attachments and transfers, transfers can't run inside a render pass");
+            }
+            if (access.attachment) {
+                if (raster && (image.width != width || image.height != height)) {
+                    throw new IllegalArgumentException("Attachments of pass '" + name + "' differ in size");
+                }
+                raster = true;
+                width = image.width;
+                height = image.height;
+            }
+            transfers |= transfer;
+            uses.add(new Use(image, access, clearValue));
+            return this;
+        }
+
+        private Use use(Image image) {
+            for (Use use : uses) {
+                if (use.image == image) return use;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * What a pass records with. A raster pass enters its subpass either through {@link #commandBuffer} or
+     * {@link #recordParallel}, not both.
+     */
+    final class PassContext {
+        final FrameContext frame;
+        private final Pass pass;
+        private final ParallelRecorder recorder;
+        private final long framebuffer;
+        // begins the render pass or moves to the next subpass, null outside render passes
+        private final IntConsumer enter;
+        private boolean entered;
+
+        private PassContext(Pass pass, FrameContext frame, ParallelRecorder recorder, long framebuffer, IntConsumer enter) {
+            this.pass = pass;
+            this.frame = frame;
+            this.recorder = recorder;
+            this.framebuffer = framebuffer;
+            this.enter = enter;
+        }
+
+        /**
+         * @return the frame's primary command buffer, inside the pass's subpass for raster passes
+         */
+        VkCommandBuffer commandBuffer() {
+            if (enter != null && !entered) {
+                entered = true;
+                enter.accept(VK_SUBPASS_CONTENTS_INLINE);
+            }
+            return frame.commandBuffer;
+        }
+
+        /**
+         * Records the pass's draws across the recording workers, see {@link ParallelRecorder}.
+         */
+        void recordParallel(int drawCount, ParallelRecorder.DrawTask task) {
+            if (enter == null) throw new IllegalStateException("'" + pass.name + "' is not a raster pass");
+            if (entered) throw new IllegalStateException("'" + pass.name + "' already entered its subpass");
+            entered = true;
+            recorder.recordSubpass(frame, pass.group.renderPass, pass.subpass, framebuffer, drawCount, task, enter);
+        }
+
+        int width() {
+            return pass.width;
+        }
+
+        int height() {
+            return pass.height;
+        }
+
+        /**
+         * @return the view of an image the pass samples or reads as an input attachment
+         */
+        long view(int image) {
+            return images.get(image).view;
+        }
+    }
+
+    private static final class Image {
+        final int id;
+        final String name;
+        final int format;
+        final int width;
+        final int height;
+        // null for transient images
+        final Handoff before;
+        final Handoff after;
+        int usage;
+        int firstGroup = -1;
+        int lastGroup = -1;
+        boolean lazy;
+        int memoryType = -1;
+        long size;
+        long alignment;
+        long memoryOffset;
+        long image = VK_NULL_HANDLE;
+        long view = VK_NULL_HANDLE;
+
+        Image(int id, String name, int format, int width, int height, Handoff before, Handoff after) {
+            this.id = id;
+            this.name = name;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.before = before;
+            this.after = after;
+        }
+
+        boolean isImported() {
+            return before != null;
+        }
+
+        int aspect() {
+            if (!isDepth(format)) return VK_IMAGE_ASPECT_COLOR_BIT;
+            return hasStencil(format) ? VK_IMAGE_ASPECT_DEPTH_BIT | VK_IMAGE_ASPECT_STENCIL_BIT : VK_IMAGE_ASPECT_DEPTH_BIT;
+        }
+
+        boolean livesWith(Image other) {
+            return firstGroup <= other.lastGroup && other.firstGroup <= lastGroup;
+        }
+
+        /**
+         * True for the image itself too.
+         */
+        boolean sharesMemoryWith(Image other) {
+            return !other.isImported() && other.memoryType == memoryType
+                    && memoryOffset < other.memoryOffset + other.size && other.memoryOffset < memoryOffset + size;
+        }
+    }
+
+    private record Use(Image image, Access access, float[] clearValue) {
+        boolean isClear() {
+            return clearValue != null;
+        }
+
+        /**
+         * Drawing without clearing keeps what was there.
+         */
+        boolean reads() {
+            return !access.writes() || access.attachment && !isClear();
+        }
+    }
+
+    /**
+     * Consecutive live passes that run as one render pass, or a single pass outside any.
+     */
+    private static final class Group {
+        final List<Pass> passes = new ArrayList<>();
+        // in order of first use, the render pass's attachment indices
+        final Set<Image> attachments = new LinkedHashSet<>();
+        // sampled or copied
+        final Set<Image> others = new HashSet<>();
+        final List<Barrier> barriers = new ArrayList<>();
+        final Map<List<Long>, Long> framebuffers = new HashMap<>();
+        // imported images the render pass hands back itself
+        final Map<Image, Integer> finalLayouts = new HashMap<>();
+        List<Image> attachmentList;
+        boolean raster;
+        int width;
+        int height;
+        long renderPass = VK_NULL_HANDLE;
+        VkClearValue.Buffer clearValues;
+
+        /**
+         * A raster pass joins if it draws at the same size and no image is both an attachment of the render pass
+         * and sampled inside it.
+         */
+        boolean accepts(Pass pass) {
+            if (!raster || !pass.raster || pass.width != width || pass.height != height) return false;
+            for (Use use : pass.uses) {
+                if (use.access.attachment ? others.contains(use.image) : attachments.contains(use.image)) return false;
+            }
+            return true;
+        }
+
+        void add(Pass pass) {
+            pass.group = this;
+            pass.subpass = passes.size();
+            passes.add(pass);
+            raster = pass.raster;
+            width = pass.width;
+            height = pass.height;
+            for (Use use : pass.uses) {
+                (use.access.attachment ? attachments : others).add(use.image);
+            }
+        }
+
+        Use firstUse(Image image) {
+            for (Pass pass : passes) {
+                Use use = pass.use(image);
+                if (use != null) return use;
+            }
+            return null;
+        }
+
+        /**
+         * @return every image the group touches, in order of first use, with its layouts on the way in and out and
+         * all the stages and accesses the group uses it with
+         */
+        Map<Image, Summary> summarize() {
+            Map<Image, Summary> summaries = new LinkedHashMap<>();
+            for (Pass pass : passes) {
+                for (Use use : pass.uses) {
+                    int layout = use.access.layout(use.image.format);
+                    summaries.merge(use.image, new Summary(layout, layout, use.access.stages, use.access.access, use.access.writeAccess),
+                            (earlier, later) -> new Summary(earlier.firstLayout, later.lastLayout, earlier.stages | later.stages,
+                                    earlier.access | later.access, earlier.writeAccess | later.writeAccess));
+                }
+            }
+            return summaries;
+        }
+
+        String name() {
+            StringJoiner name = new StringJoiner(" + ");
+            for (Pass pass : passes) name.add(pass.name);
+            return name.toString();
+        }
+    }
+
+    private record Summary(int firstLayout, int lastLayout, int stages, int access, int writeAccess) {
+    }
+
+    /**
+     * An image's layout and what touched it since the last barrier.
+     */
+    private static final class State {
+        int layout;
+        int stages;
+        int writeAccess;
+    }
+
+    private static final class Barrier {
+        final Image image;
+        final int oldLayout;
+        final int newLayout;
+        int srcStages;
+        int srcAccess;
+        final int dstStages;
+        final int dstAccess;
+
+        Barrier(Image image, int oldLayout, int newLayout, int srcStages, int srcAccess, int dstStages, int dstAccess) {
+            this.image = image;
+            this.oldLayout = oldLayout;
+            this.newLayout = newLayout;
+            this.srcStages = srcStages;
+            this.srcAccess = srcAccess;
+            this.dstStages = dstStages;
+            this.dstAccess = dstAccess;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkExtent2D;
+
+/**
+ * The images frames are rendered into, either the swapchain's or ones the renderer owns.
+ */
+interface RenderTarget {
+    int imageCount();
+
+    long image(int index);
+
+    long imageView(int index);
+
+    int getImageFormat();
+
+    /**
+     * @return the layout frames leave the images in
+     */
+    int finalLayout();
+
+    VkExtent2D getExtent();
+
+    default int width() {
+        return getExtent().width();
+    }
+
+    default int height() {
+        return getExtent().height();
+    }
+
+    void destroy(VkDevice device);
+}
@@ -0,0 +1,68 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkSamplerCreateInfo;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * One {@code VkSampler} per distinct configuration. Drivers cap the number of samplers that may exist at once, often
+ * at 4000, and creating them is slow, while real scenes only use a handful of configurations.
+ */
+final class SamplerCache {
+    private final VkDevice device;
+    private final float maxAnisotropy;
+    private final ConcurrentHashMap<Settings, Long> samplers = new ConcurrentHashMap<>();
+
+    /**
+     * @param filter magnification and minification {@code VK_FILTER_*}
+     * @param addressMode the {@code VK_SAMPLER_ADDRESS_MODE_*} of all three coordinates
+     * @param anisotropy clamped to what the device supports, 1 disables anisotropic filtering
+     */
+    record Settings(int filter, int mipmapMode, int addressMode, float anisotropy) {
+        static final Settings LINEAR_REPEAT = new Settings(VK_FILTER_LINEAR, VK_SAMPLER_MIPMAP_MODE_LINEAR, VK_SAMPLER_ADDRESS_MODE_REPEAT, 16f);
+        static final Settings LINEAR_CLAMP = new Settings(VK_FILTER_LINEAR, VK_SAMPLER_MIPMAP_MODE_LINEAR, VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE, 1f);
+        static final Settings NEAREST_CLAMP = new Settings(VK_FILTER_NEAREST, VK_SAMPLER_MIPMAP_MODE_NEAREST, VK_SAMPLER_ADDRESS_MODE_CLAMP_TO_EDGE, 1f);
+    }
+
+    SamplerCache(VkDevice device, PhysicalDevice gpu) {
+        this.device = device;
+        maxAnisotropy = gpu.features.samplerAnisotropy() ? gpu.limits().maxSamplerAnisotropy() : 1f;
+    }
+
+    long get(Settings settings) {
+        // devices without anisotropy share one sampler for every anisotropy level
+        Settings key = new Settings(settings.filter, settings.mipmapMode, settings.addressMode, Math.max(1f, Math.min(settings.anisotropy, maxAnisotropy)));
+        return samplers.computeIfAbsent(key, this::create);
+    }
+
+    private long create(Settings settings) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var createInfo = VkSamplerCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SAMPLER_CREATE_INFO)
+                    .magFilter(settings.filter)
+                    .minFilter(settings.filter)
+                    .mipmapMode(settings.mipmapMode)
+                    .addressModeU(settings.addressMode)
+                    .addressModeV(settings.addressMode)
+                    .addressModeW(settings.addressMode)
+                    .anisotropyEnable(settings.anisotropy > 1f)
+                    .maxAnisotropy(settings.anisotropy)
+                    .minLod(0f)
+                    .maxLod(VK_LOD_CLAMP_NONE)
+                    .borderColor(VK_BORDER_COLOR_INT_OPAQUE_BLACK);
+            var pointer = stack.mallocLong(1);
+            _CHECK_(vkCreateSampler(device, createInfo, null, pointer), "Failed to create sampler");
+            return pointer.get(0);
+        }
+    }
+
+    void destroy() {
+        for (long sampler : samplers.values()) vkDestroySampler(device, sampler, null);
+        samplers.clear();
+    }
+}
@@ -14,15 +14,20 @@ import static org.lwjgl.vulkan.KHRSurface.*;
 import static org.lwjgl.vulkan.KHRSwapchain.*;
 import static org.lwjgl.vulkan.VK10.*;
 
-class Swapchain {
+class Swapchain implements RenderTarget {
     private final long pSwapchain;
     private final VkSurfaceFormatKHR format;
     private final VkExtent2D extent;
     private final Details details;
+    private final ImmutableList<Long> images;
     final ImmutableList<Long> imageViews;
 
 
-    Swapchain(long glfwWindow, PhysicalDevice gpu, VkDevice device, long vkSurface) {
+    /**
+     * @param oldSwapchain the swapchain being replaced, or null. It is retired by this call but must still be destroyed
+     *                     by the caller once its images are no longer in use.
+     */
+    Swapchain(long glfwWindow, PhysicalDevice gpu, VkDevice device, long vkSurface, Swapchain oldSwapchain) {
         try (MemoryStack stack = stackPush()) {
             details = new Details(gpu.device, vkSurface, glfwWindow);
             format = details.chooseSurfaceFormat();
@@ -53,7 +58,7 @@ class Swapchain {
                     .compositeAlpha(VK_COMPOSITE_ALPHA_OPAQUE_BIT_KHR)     // window is not transparent
                     .presentMode(presentMode)
                     .clipped(true)        // do not draw under other windows
-                    .oldSwapchain(VK_NULL_HANDLE); // holds an old swapchain if we are recreating due to resize or other event
+                    .oldSwapchain(oldSwapchain != null ? oldSwapchain.pSwapchain : VK_NULL_HANDLE); // lets the presentation engine hand over images without a gap
 
             LongBuffer ppSwapchain = stack.mallocLong(1);
             Vulkan._CHECK_(vkCreateSwapchainKHR(device, createInfo, null, ppSwapchain), "Failed to create swapchain!");
@@ -66,11 +71,14 @@ class Swapchain {
 
             ppVkImages.rewind();
 
+            ImmutableList.Builder<Long> imageHandles = ImmutableList.builder();
             ImmutableList.Builder<Long> views = ImmutableList.builder();
             while (ppVkImages.hasRemaining()) {
+                long image = ppVkImages.get();
+                imageHandles.add(image);
                 VkImageViewCreateInfo viewCreateInfo = VkImageViewCreateInfo.calloc(stack)
                         .sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO)
-                        .image(ppVkImages.get())
+                        .image(image)
                         .viewType(VK_IMAGE_TYPE_2D)
                         .format(format.format());
                 viewCreateInfo.components().set(VK_COMPONENT_SWIZZLE_IDENTITY, VK_COMPONENT_SWIZZLE_IDENTITY, VK_COMPONENT_SWIZZLE_IDENTITY, VK_COMPONENT_SWIZZLE_IDENTITY);
@@ -85,6 +93,7 @@ class Swapchain {
                 Vulkan._CHECK_(vkCreateImageView(device, viewCreateInfo, null, ppImageView), "failed to create image views!");
                 views.add(ppImageView.get(0));
             }
+            images = imageHandles.build();
             imageViews = views.build();
         }
     }
@@ -93,23 +102,48 @@ class Swapchain {
         return pSwapchain;
     }
 
-    int width() {
+    @Override
+    public int imageCount() {
+        return images.size();
+    }
+
+    @Override
+    public long image(int index) {
+        return images.get(index);
+    }
+
+    @Override
+    public long imageView(int index) {
+        return imageViews.get(index);
+    }
+
+    @Override
+    public int width() {
         return extent.width();
     }
 
-    int height() {
+    @Override
+    public int height() {
         return extent.height();
     }
 
-    VkExtent2D getExtent() {
+    @Override
+    public VkExtent2D getExtent() {
         return extent;
     }
 
-    int getImageFormat() {
+    @Override
+    public int getImageFormat() {
         return this.format.format();
     }
 
-    void destroy(VkDevice device) {
+    @Override
+    public int finalLayout() {
+        return VK_IMAGE_LAYOUT_PRESENT_SRC_KHR;
+    }
+
+    @Override
+    public void destroy(VkDevice device) {
         for (long imageView : imageViews) {
             vkDestroyImageView(device, imageView, null);
         }
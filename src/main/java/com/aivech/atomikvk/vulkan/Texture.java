@@ -0,0 +1,77 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.vulkan.VkDevice;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * An optimally tiled, sampled 2D image and its views. Levels may arrive in separate upload batches, smallest first,
+ * and a level may only be sampled once its batch has completed or was submitted ahead of the frame on the same queue.
+ */
+final class Texture {
+    final long image;
+    // the whole chain
+    final long view;
+    final int format;
+    final int width;
+    final int height;
+    final int mipLevels;
+    // views[level] covers that level down to the smallest, so a texture still streaming in samples what it has
+    private final long[] views;
+    // the batch each level was queued in, null until then
+    private final AtomicReferenceArray<UploadService.Ticket> tickets;
+    private final MemoryAllocator.Allocation allocation;
+    // completes once every level is queued, fails if one couldn't be read
+    volatile CompletableFuture<Void> streaming = CompletableFuture.completedFuture(null);
+
+    Texture(long image, long[] views, MemoryAllocator.Allocation allocation, int format, int width, int height, int mipLevels) {
+        this.image = image;
+        this.views = views;
+        this.view = views[0];
+        this.allocation = allocation;
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.mipLevels = mipLevels;
+        tickets = new AtomicReferenceArray<>(mipLevels);
+    }
+
+    void queued(int firstLevel, int lastLevel, UploadService.Ticket ticket) {
+        for (int level = firstLevel; level <= lastLevel; level++) tickets.set(level, ticket);
+    }
+
+    /**
+     * @return the largest level that has completed along with every level below it, {@link #mipLevels} while the
+     * smallest hasn't
+     */
+    int residentLevel(UploadService uploads) {
+        int level = mipLevels;
+        while (level > 0) {
+            UploadService.Ticket ticket = tickets.get(level - 1);
+            if (ticket == null || !uploads.isComplete(ticket)) break;
+            level--;
+        }
+        return level;
+    }
+
+    /**
+     * @return a view of the levels that have completed, or {@code VK_NULL_HANDLE} while none has
+     */
+    long residentView(UploadService uploads) {
+        int level = residentLevel(uploads);
+        return level < mipLevels ? views[level] : VK_NULL_HANDLE;
+    }
+
+    /**
+     * Waits for the levels still being staged, the GPU must be done with the texture.
+     */
+    void destroy(VkDevice device, MemoryAllocator allocator) {
+        streaming.exceptionally(e -> null).join();
+        for (long levelView : views) vkDestroyImageView(device, levelView, null);
+        vkDestroyImage(device, image, null);
+        allocator.free(allocation);
+    }
+}
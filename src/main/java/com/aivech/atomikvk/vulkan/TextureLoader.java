@@ -0,0 +1,251 @@
+package com.aivech.atomikvk.vulkan;
+
+import com.aivech.atomikvk.AtomikVk;
+import com.aivech.atomikvk.common.config.AtomikVkConfig;
+import com.aivech.atomikvk.texture.TextureCache;
+import com.aivech.atomikvk.texture.TextureFile;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkFormatProperties;
+import org.lwjgl.vulkan.VkImageCreateInfo;
+import org.lwjgl.vulkan.VkImageViewCreateInfo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.stb.STBImage.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Decodes PNG, JPEG, TGA and the other formats stb_image reads on worker threads and uploads them as RGBA8 textures.
+ * Files are mapped rather than read, and the decoded pixels are copied once, straight into the upload service's
+ * staging memory. Mip chains are generated on the GPU.
+ * <p>
+ * Converted {@link TextureFile}s skip all of that: their levels are decompressed straight into staging memory and
+ * streamed in from the smallest up.
+ */
+final class TextureLoader {
+    private static final ExecutorService WORKERS;
+
+    static {
+        AtomicInteger threadCount = new AtomicInteger();
+        WORKERS = Executors.newFixedThreadPool(AtomikVkConfig.TEXTURE_LOAD_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "texture-load-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // small levels share a batch up to this size, bigger ones get their own so each becomes usable as it lands
+    private static final long STREAM_GROUP_SIZE = 256 * 1024;
+
+    private final VkDevice device;
+    private final MemoryAllocator allocator;
+    private final UploadService uploads;
+    // whether blits can filter each format, without that the textures get a single level
+    private final boolean srgbMips;
+    private final boolean unormMips;
+    private final boolean blockCompression;
+    // one streamed texture stages its levels at a time, so regions reserved ahead of their copy never fill the ring
+    private final Object staging = new Object();
+
+    /**
+     * @param uploads a service on the graphics queue or one that hands its resources over to it, the blits need it
+     */
+    TextureLoader(VkDevice device, PhysicalDevice gpu, MemoryAllocator allocator, UploadService uploads) {
+        this.device = device;
+        this.allocator = allocator;
+        this.uploads = uploads;
+        srgbMips = supportsLinearBlit(gpu, VK_FORMAT_R8G8B8A8_SRGB);
+        unormMips = supportsLinearBlit(gpu, VK_FORMAT_R8G8B8A8_UNORM);
+        blockCompression = gpu.features.textureCompressionBC();
+    }
+
+    /**
+     * @return whether textures may be converted to BC formats for this device
+     */
+    boolean supportsBlockCompression() {
+        return blockCompression;
+    }
+
+    private static boolean supportsLinearBlit(PhysicalDevice gpu, int format) {
+        int required = VK_FORMAT_FEATURE_BLIT_SRC_BIT | VK_FORMAT_FEATURE_BLIT_DST_BIT | VK_FORMAT_FEATURE_SAMPLED_IMAGE_FILTER_LINEAR_BIT;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var properties = VkFormatProperties.malloc(stack);
+            vkGetPhysicalDeviceFormatProperties(gpu.device, format, properties);
+            boolean supported = (properties.optimalTilingFeatures() & required) == required;
+            if (!supported) AtomikVk.LOGGER.warn("Format " + format + " can't be blitted with linear filtering, its textures won't have mips");
+            return supported;
+        }
+    }
+
+    /**
+     * Decodes on a worker and queues the upload, which is submitted with the upload service's next flush.
+     * @param srgb whether the file holds colors rather than data such as normals
+     */
+    CompletableFuture<Texture> load(Path path, boolean srgb) {
+        return CompletableFuture.supplyAsync(() -> decode(path, srgb), WORKERS);
+    }
+
+    /**
+     * Converts the image through the cache on a miss and streams the converted texture in, see {@link #stream}. An
+     * image that can't be converted or cached is decoded and uploaded whole instead.
+     */
+    CompletableFuture<Texture> load(TextureCache cache, Path path, boolean srgb) {
+        return CompletableFuture.supplyAsync(() -> {
+            TextureFile file;
+            try {
+                file = cache.load(path, srgb, blockCompression);
+            } catch (IOException | RuntimeException e) {
+                AtomikVk.LOGGER.warn("Failed to convert " + path + " through the texture cache, decoding it instead", e);
+                return decode(path, srgb);
+            }
+            Texture texture = stream(file);
+            texture.streaming.whenComplete((done, e) -> {
+                if (e != null) AtomikVk.LOGGER.warn("Failed to stream " + path + ", keeping the levels already in", e);
+            });
+            return texture;
+        }, WORKERS);
+    }
+
+    /**
+     * A single texel of one color, for sampling in place of textures that haven't loaded. Queued with the upload
+     * service's next flush, and sampleable by any frame submitted to the graphics queue after it.
+     * @param rgba packed as bytes in that order
+     */
+    Texture solid(int rgba) {
+        Texture texture = create(VK_FORMAT_R8G8B8A8_UNORM, 1, 1, 1);
+        texture.queued(0, 0, uploads.uploadImage(texture.image, 1, 1, 1, 4, staging -> staging.order(ByteOrder.BIG_ENDIAN).putInt(0, rgba)));
+        return texture;
+    }
+
+    private Texture decode(Path path, boolean srgb) {
+        ByteBuffer pixels;
+        int width, height;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ); MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer w = stack.mallocInt(1), h = stack.mallocInt(1), channels = stack.mallocInt(1);
+            pixels = stbi_load_from_memory(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), w, h, channels, 4);
+            if (pixels == null) throw new RuntimeException("Failed to decode " + path + ": " + stbi_failure_reason());
+            width = w.get(0);
+            height = h.get(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + path, e);
+        }
+
+        try {
+            int format = srgb ? VK_FORMAT_R8G8B8A8_SRGB : VK_FORMAT_R8G8B8A8_UNORM;
+            int mipLevels = (srgb ? srgbMips : unormMips) ? TextureFile.fullMipChain(width, height) : 1;
+            Texture texture = create(format, width, height, mipLevels);
+            texture.queued(0, mipLevels - 1, uploads.uploadImage(texture.image, width, height, mipLevels, (long) width * height * 4,
+                    staging -> MemoryUtil.memCopy(MemoryUtil.memAddress(pixels), MemoryUtil.memAddress(staging), pixels.remaining())));
+            return texture;
+        } finally {
+            stbi_image_free(pixels);
+        }
+    }
+
+    /**
+     * Streams a converted texture in from the smallest level up. Each group of levels is decompressed in parallel
+     * straight into staging memory and flushed as its own batch, so the texture can be sampled through
+     * {@link Texture#residentView} long before it is fully resident. Returns right away, {@link Texture#streaming}
+     * completes once the last level is queued.
+     */
+    Texture stream(TextureFile file) {
+        if (file.encoding.isBlockCompressed() && !blockCompression) {
+            throw new IllegalArgumentException("The device can't sample " + file.encoding + ", convert the texture without block compression");
+        }
+        Texture texture = create(file.vkFormat(), file.width, file.height, file.levelCount);
+        texture.streaming = CompletableFuture.runAsync(() -> streamLevels(file, texture), WORKERS);
+        return texture;
+    }
+
+    private void streamLevels(TextureFile file, Texture texture) {
+        // half the ring at most, so a group can be staged while the one before it is still copying
+        long groupSize = Math.min(STREAM_GROUP_SIZE, uploads.ringSize() / 2);
+        int last = file.levelCount - 1;
+        while (last >= 0) {
+            int first = last;
+            long bytes = file.levelSize(last);
+            while (first > 0 && bytes + file.levelSize(first - 1) <= groupSize) bytes += file.levelSize(--first);
+
+            int count = last - first + 1;
+            int[] levels = new int[count];
+            var regions = new UploadService.StagingRegion[count];
+            var targets = new ByteBuffer[count];
+            synchronized (staging) {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        levels[i] = last - i;
+                        regions[i] = uploads.reserve(file.levelSize(levels[i]));
+                        targets[i] = regions[i].buffer();
+                    }
+                    // without the upload service's lock, other uploads wait for these regions if they need the room
+                    file.decompress(levels, targets);
+                } catch (RuntimeException e) {
+                    for (var region : regions) if (region != null) uploads.release(region);
+                    throw e;
+                }
+                UploadService.Ticket ticket;
+                synchronized (uploads) {
+                    for (int i = 0; i < count; i++) {
+                        uploads.copyToImage(regions[i], texture.image, levels[i], file.width(levels[i]), file.height(levels[i]));
+                    }
+                    ticket = uploads.flush();
+                }
+                texture.queued(first, last, ticket);
+            }
+            last = first - 1;
+        }
+    }
+
+    /**
+     * Creates the image, its memory and a view from every level down, with nothing uploaded yet.
+     */
+    private Texture create(int format, int width, int height, int mipLevels) {
+        long image;
+        long[] views = new long[mipLevels];
+        MemoryAllocator.Allocation allocation;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var imageInfo = VkImageCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_IMAGE_CREATE_INFO)
+                    .imageType(VK_IMAGE_TYPE_2D)
+                    .format(format)
+                    .mipLevels(mipLevels)
+                    .arrayLayers(1)
+                    .samples(VK_SAMPLE_COUNT_1_BIT)
+                    .tiling(VK_IMAGE_TILING_OPTIMAL)
+                    .usage(VK_IMAGE_USAGE_TRANSFER_SRC_BIT | VK_IMAGE_USAGE_TRANSFER_DST_BIT | VK_IMAGE_USAGE_SAMPLED_BIT)
+                    .sharingMode(VK_SHARING_MODE_EXCLUSIVE)
+                    .initialLayout(VK_IMAGE_LAYOUT_UNDEFINED);
+            imageInfo.extent().set(width, height, 1);
+            var pointer = stack.mallocLong(1);
+            _CHECK_(vkCreateImage(device, imageInfo, null, pointer), "Failed to create texture image.");
+            image = pointer.get(0);
+            allocation = allocator.allocateImage(image, MemoryAllocator.Strategy.FREE_LIST, VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
+
+            var viewInfo = VkImageViewCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_IMAGE_VIEW_CREATE_INFO)
+                    .image(image)
+                    .viewType(VK_IMAGE_VIEW_TYPE_2D)
+                    .format(format);
+            for (int level = 0; level < mipLevels; level++) {
+                viewInfo.subresourceRange().set(VK_IMAGE_ASPECT_COLOR_BIT, level, mipLevels - level, 0, 1);
+                _CHECK_(vkCreateImageView(device, viewInfo, null, pointer), "Failed to create texture image view.");
+                views[level] = pointer.get(0);
+            }
+        }
+        return new Texture(image, views, allocation, format, width, height, mipLevels);
+    }
+}
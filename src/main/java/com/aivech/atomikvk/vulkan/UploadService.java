@@ -0,0 +1,631 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static com.aivech.atomikvk.vulkan.Vulkan._CHECK_;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Batches host to device buffer and image copies through a persistent, persistently mapped staging ring.
+ * Copies accumulate until {@link #flush()}, which records all of them into one command buffer and submits it with a
+ * fence. Nothing here waits on the GPU unless the ring is full or a caller explicitly awaits a ticket. Images get their
+ * mip chains blitted on the graphics queue, with the layout transitions of every image in the batch recorded together.
+ * <p>
+ * When created for a dedicated transfer family the copies run on the transfer queue, release the destinations to the
+ * graphics family, and a small acquire batch on the graphics queue waits for them through a semaphore. Ownership of a
+ * whole buffer moves with every copy, so that mode is meant for filling fresh resources rather than patching ranges
+ * of buffers the graphics queue is already using.
+ */
+final class UploadService {
+    static final long DEFAULT_RING_SIZE = 16L * 1024 * 1024;
+    private static final long STAGING_ALIGNMENT = 16;
+    private static final int CONSUMER_STAGES = VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT | VK_PIPELINE_STAGE_VERTEX_INPUT_BIT
+            | VK_PIPELINE_STAGE_VERTEX_SHADER_BIT | VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT;
+    private static final int CONSUMER_ACCESS = VK_ACCESS_INDEX_READ_BIT | VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT
+            | VK_ACCESS_UNIFORM_READ_BIT | VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_INDIRECT_COMMAND_READ_BIT;
+    // mip blits run after the acquire on the graphics queue
+    private static final int ACQUIRE_STAGES = CONSUMER_STAGES | VK_PIPELINE_STAGE_TRANSFER_BIT;
+
+    private final VkDevice device;
+    private final MemoryAllocator allocator;
+    private final VkQueue queue;
+    private final int queueFamily;
+    private final long commandPool;
+    private final VkQueue graphicsQueue;
+    private final int graphicsFamily;
+    private final long graphicsCommandPool; // only for ownership acquires, VK_NULL_HANDLE on the graphics queue
+    private final GraphicsBuffer ring;
+
+    private long head = 0; // bytes reserved since the ring last emptied, the write position is head % ring size
+    private final TreeSet<Long> outstanding = new TreeSet<>(); // ring starts of regions the GPU may still read
+    private final Map<Long, Thread> held = new HashMap<>(); // ring starts of regions reserved but not yet queued
+    private final List<PendingCopy> pendingCopies = new ArrayList<>();
+    private final List<PendingImage> pendingImages = new ArrayList<>();
+    private final List<GraphicsBuffer> pendingOverflow = new ArrayList<>();
+    private final ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+    private final ArrayDeque<Batch> idleBatches = new ArrayDeque<>();
+    private long nextBatchId = 1;
+    private long completedBatchId = 0;
+
+    UploadService(VkDevice device, MemoryAllocator allocator, VkQueue queue, int queueFamilyIndex, long ringSize) {
+        this(device, allocator, queue, queueFamilyIndex, queue, queueFamilyIndex, ringSize);
+    }
+
+    /**
+     * Creates an upload service on the given queue that hands finished resources over to the graphics queue.
+     */
+    UploadService(VkDevice device, MemoryAllocator allocator, VkQueue queue, int queueFamilyIndex,
+                  VkQueue graphicsQueue, int graphicsFamilyIndex, long ringSize) {
+        this.device = device;
+        this.allocator = allocator;
+        this.queue = queue;
+        this.queueFamily = queueFamilyIndex;
+        this.graphicsQueue = graphicsQueue;
+        this.graphicsFamily = graphicsFamilyIndex;
+
+        ring = new GraphicsBuffer(allocator, device, ringSize,
+                VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+                VK_SHARING_MODE_EXCLUSIVE,
+                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT);
+
+        commandPool = createCommandPool(queueFamilyIndex);
+        graphicsCommandPool = transfersOwnership() ? createCommandPool(graphicsFamilyIndex) : VK_NULL_HANDLE;
+    }
+
+    private long createCommandPool(int queueFamilyIndex) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var createInfo = VkCommandPoolCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+                    .flags(VK_COMMAND_POOL_CREATE_TRANSIENT_BIT | VK_COMMAND_POOL_CREATE_RESET_COMMAND_BUFFER_BIT)
+                    .queueFamilyIndex(queueFamilyIndex);
+            var pp_commandPool = stack.mallocLong(1);
+            _CHECK_(vkCreateCommandPool(device, createInfo, null, pp_commandPool), "Failed to create upload command pool.");
+            return pp_commandPool.get(0);
+        }
+    }
+
+    /**
+     * @return true if copies run on a different queue family than the one that consumes them
+     */
+    boolean transfersOwnership() {
+        return queueFamily != graphicsFamily;
+    }
+
+    /**
+     * Reserves space in the staging ring. The region must be filled and handed to {@link #copy} before the next flush.
+     * Regions may be filled without holding this service's lock; while other threads still fill theirs, a full ring
+     * waits for them to be queued.
+     */
+    synchronized StagingRegion reserve(long size) {
+        long ringSize = ring.size;
+        if (size > ringSize) {
+            // bigger than the whole ring, stage it through a temporary buffer that lives as long as the batch
+            var overflow = new GraphicsBuffer(allocator, device, size,
+                    VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
+                    VK_SHARING_MODE_EXCLUSIVE,
+                    MemoryAllocator.Strategy.LINEAR,
+                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT,
+                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT);
+            return new StagingRegion(overflow, 0, size, -1);
+        }
+
+        long start;
+        while (true) {
+            // nothing left for the GPU to read, start over at the beginning rather than wrap past an empty ring
+            if (outstanding.isEmpty()) head = 0;
+            start = RangeAllocator.alignUp(head, STAGING_ALIGNMENT);
+            if (start % ringSize + size > ringSize) start = RangeAllocator.alignUp(start, ringSize); // don't straddle the end
+            if (start + size - tail() <= ringSize) break;
+            // out of room, reclaim finished batches and only block if the GPU really is behind
+            if (retireBatches()) continue;
+            flushLocked();
+            if (waitOldestBatch()) continue;
+            if (!heldByOtherThreads())
+                throw new IllegalStateException("Staging ring exhausted by regions that were never queued for copy.");
+            try {
+                wait(); // woken by copy() or copyToImage()
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for staging space.", e);
+            }
+        }
+        head = start + size;
+        outstanding.add(start);
+        held.put(start, Thread.currentThread());
+        return new StagingRegion(ring, start % ringSize, size, start);
+    }
+
+    /**
+     * Queues a copy from a filled staging region into a device buffer.
+     */
+    synchronized void copy(StagingRegion src, GraphicsBuffer dst, long dstOffset) {
+        allocator.flush(src.buffer.allocation, src.offset, src.size);
+        if (src.ringStart < 0) pendingOverflow.add(src.buffer);
+        pendingCopies.add(new PendingCopy(src.buffer.buffer, src.offset, dst.buffer, dstOffset, src.size, src.ringStart));
+        queued(src);
+    }
+
+    /**
+     * Stages the given bytes and queues their copy.
+     */
+    Ticket upload(GraphicsBuffer dst, long dstOffset, ByteBuffer data) {
+        return upload(dst, dstOffset, data.remaining(), staging -> staging.put(data.duplicate()));
+    }
+
+    /**
+     * Lets the writer fill the staging memory directly and queues the copy.
+     */
+    Ticket upload(GraphicsBuffer dst, long dstOffset, long size, Consumer<ByteBuffer> writer) {
+        synchronized (this) {
+            var region = reserve(size);
+            writer.accept(region.buffer());
+            copy(region, dst, dstOffset);
+            return new Ticket(nextBatchId);
+        }
+    }
+
+    /**
+     * Stages the top level of a color image and queues its copy. The other mip levels are blitted down from it, so the
+     * image's format must support linear blits when {@code mipLevels} is more than one. Every level ends up in
+     * {@code SHADER_READ_ONLY_OPTIMAL}.
+     * @param writer fills {@code size} bytes of tightly packed texels for level 0
+     */
+    Ticket uploadImage(long image, int width, int height, int mipLevels, long size, Consumer<ByteBuffer> writer) {
+        synchronized (this) {
+            var region = reserve(size);
+            writer.accept(region.buffer());
+            queueImage(region, image, 0, width, height, mipLevels);
+            return new Ticket(nextBatchId);
+        }
+    }
+
+    /**
+     * Queues a copy from a filled staging region into a single mip level of a color image, which ends up in
+     * {@code SHADER_READ_ONLY_OPTIMAL}. The other levels are left alone, so an image can be filled a level at a time
+     * while the levels already there are sampled.
+     * @param width the width of that level
+     */
+    synchronized void copyToImage(StagingRegion src, long image, int level, int width, int height) {
+        queueImage(src, image, level, width, height, 1);
+    }
+
+    private void queueImage(StagingRegion src, long image, int baseLevel, int width, int height, int mipLevels) {
+        allocator.flush(src.buffer.allocation, src.offset, src.size);
+        if (src.ringStart < 0) pendingOverflow.add(src.buffer);
+        pendingImages.add(new PendingImage(src.buffer.buffer, src.offset, image, baseLevel, width, height, mipLevels, src.ringStart));
+        queued(src);
+    }
+
+    /**
+     * Gives back a reserved region that won't be queued after all, such as when filling it failed.
+     */
+    synchronized void release(StagingRegion src) {
+        if (src.ringStart < 0) {
+            src.buffer.free(device);
+            return;
+        }
+        outstanding.remove(src.ringStart);
+        queued(src);
+    }
+
+    private void queued(StagingRegion src) {
+        if (src.ringStart >= 0 && held.remove(src.ringStart) != null) notifyAll();
+    }
+
+    private boolean heldByOtherThreads() {
+        for (Thread holder : held.values()) {
+            if (holder != Thread.currentThread()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the most a single region can take without going through a temporary buffer
+     */
+    long ringSize() {
+        return ring.size;
+    }
+
+    /**
+     * Submits every queued copy as one batch.
+     * @return a ticket that completes when the batch has executed
+     */
+    synchronized Ticket flush() {
+        flushLocked();
+        return new Ticket(nextBatchId - 1);
+    }
+
+    /**
+     * Reclaims staging space from batches the GPU has finished. Never blocks.
+     */
+    synchronized void poll() {
+        retireBatches();
+    }
+
+    synchronized boolean isComplete(Ticket ticket) {
+        if (ticket.batchId > completedBatchId) retireBatches();
+        return ticket.batchId <= completedBatchId;
+    }
+
+    /**
+     * Blocks until the ticket's batch has executed, submitting it first if it is still open.
+     */
+    synchronized void await(Ticket ticket) {
+        if (ticket.batchId >= nextBatchId) flushLocked();
+        while (ticket.batchId > completedBatchId) {
+            if (!waitOldestBatch()) break;
+        }
+    }
+
+    synchronized void destroy() {
+        for (Batch batch : inFlight) {
+            vkWaitForFences(device, batch.fence, true, -1);
+            batch.destroy();
+        }
+        for (Batch batch : idleBatches) {
+            batch.destroy();
+        }
+        for (GraphicsBuffer overflow : pendingOverflow) overflow.free(device);
+        inFlight.clear();
+        idleBatches.clear();
+        vkDestroyCommandPool(device, commandPool, null);
+        if (graphicsCommandPool != VK_NULL_HANDLE) vkDestroyCommandPool(device, graphicsCommandPool, null);
+        ring.free(device);
+    }
+
+    private void flushLocked() {
+        if (pendingCopies.isEmpty() && pendingImages.isEmpty()) return;
+        Batch batch = idleBatches.isEmpty() ? new Batch() : idleBatches.poll();
+        batch.id = nextBatchId++;
+        for (PendingCopy copy : pendingCopies) {
+            if (copy.ringStart >= 0) batch.ringStarts.add(copy.ringStart);
+        }
+        for (PendingImage image : pendingImages) {
+            if (image.ringStart >= 0) batch.ringStarts.add(image.ringStart);
+        }
+        batch.overflow.addAll(pendingOverflow);
+        pendingOverflow.clear();
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            var beginInfo = VkCommandBufferBeginInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+                    .flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
+            _CHECK_(vkBeginCommandBuffer(batch.commandBuffer, beginInfo), "Failed to begin upload command buffer.");
+            recordCopies(stack, batch.commandBuffer);
+            recordImageCopies(stack, batch.commandBuffer);
+            if (!transfersOwnership()) recordMipChains(stack, batch.commandBuffer);
+            recordReadBarrier(stack, batch.commandBuffer, false);
+            _CHECK_(vkEndCommandBuffer(batch.commandBuffer), "Failed to record upload command buffer.");
+            vkResetFences(device, batch.fence);
+
+            if (!transfersOwnership()) {
+                var submitInfo = VkSubmitInfo.calloc(stack)
+                        .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                        .pCommandBuffers(stack.pointers(batch.commandBuffer));
+                synchronized (queue) {
+                    _CHECK_(vkQueueSubmit(queue, submitInfo, batch.fence), "Could not submit upload batch.");
+                }
+            } else {
+                _CHECK_(vkBeginCommandBuffer(batch.acquireCommandBuffer, beginInfo), "Failed to begin acquire command buffer.");
+                recordReadBarrier(stack, batch.acquireCommandBuffer, true);
+                recordMipChains(stack, batch.acquireCommandBuffer);
+                _CHECK_(vkEndCommandBuffer(batch.acquireCommandBuffer), "Failed to record acquire command buffer.");
+
+                var transferSubmit = VkSubmitInfo.calloc(stack)
+                        .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                        .pCommandBuffers(stack.pointers(batch.commandBuffer))
+                        .pSignalSemaphores(stack.longs(batch.semaphore));
+                var acquireSubmit = VkSubmitInfo.calloc(stack)
+                        .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                        .waitSemaphoreCount(1)
+                        .pWaitSemaphores(stack.longs(batch.semaphore))
+                        .pWaitDstStageMask(stack.ints(ACQUIRE_STAGES))
+                        .pCommandBuffers(stack.pointers(batch.acquireCommandBuffer));
+                synchronized (queue) {
+                    _CHECK_(vkQueueSubmit(queue, transferSubmit, VK_NULL_HANDLE), "Could not submit upload batch.");
+                }
+                // only the acquire waits for the transfer queue, frames already queued on graphics keep running
+                synchronized (graphicsQueue) {
+                    _CHECK_(vkQueueSubmit(graphicsQueue, acquireSubmit, batch.fence), "Could not submit ownership acquire.");
+                }
+            }
+        }
+        pendingCopies.clear();
+        pendingImages.clear();
+        inFlight.add(batch);
+    }
+
+    private void recordCopies(MemoryStack stack, VkCommandBuffer cmd) {
+        // one vkCmdCopyBuffer per source/destination pair, with every region for that pair
+        Map<Long, Map<Long, List<PendingCopy>>> bySource = new LinkedHashMap<>();
+        for (PendingCopy copy : pendingCopies) {
+            bySource.computeIfAbsent(copy.srcBuffer, k -> new LinkedHashMap<>())
+                    .computeIfAbsent(copy.dstBuffer, k -> new ArrayList<>())
+                    .add(copy);
+        }
+        for (var source : bySource.entrySet()) {
+            for (var destination : source.getValue().entrySet()) {
+                var copies = destination.getValue();
+                var regions = VkBufferCopy.malloc(copies.size(), stack);
+                for (int i = 0; i < copies.size(); i++) {
+                    var copy = copies.get(i);
+                    regions.get(i).srcOffset(copy.srcOffset).dstOffset(copy.dstOffset).size(copy.size);
+                }
+                vkCmdCopyBuffer(cmd, source.getKey(), destination.getKey(), regions);
+            }
+        }
+    }
+
+    private void recordImageCopies(MemoryStack stack, VkCommandBuffer cmd) {
+        if (pendingImages.isEmpty()) return;
+        var toTransfer = VkImageMemoryBarrier.calloc(pendingImages.size(), stack);
+        for (PendingImage image : pendingImages) {
+            toTransfer.get()
+                    .sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+                    .srcAccessMask(0)
+                    .dstAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+                    .oldLayout(VK_IMAGE_LAYOUT_UNDEFINED)
+                    .newLayout(VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL)
+                    .srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                    .dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                    .image(image.image)
+                    .subresourceRange(range -> range.set(VK_IMAGE_ASPECT_COLOR_BIT, image.baseLevel, image.mipLevels, 0, 1));
+        }
+        vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, null, toTransfer.rewind());
+
+        var region = VkBufferImageCopy.calloc(1, stack);
+        for (PendingImage image : pendingImages) {
+            region.bufferOffset(image.srcOffset);
+            region.imageSubresource().set(VK_IMAGE_ASPECT_COLOR_BIT, image.baseLevel, 0, 1);
+            region.imageExtent().set(image.width, image.height, 1);
+            vkCmdCopyBufferToImage(cmd, image.srcBuffer, image.image, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, region);
+        }
+    }
+
+    /**
+     * Fills every level from the one above it, one level of all images at a time so each step is a single barrier,
+     * then moves the whole chains to shader reads.
+     */
+    private void recordMipChains(MemoryStack stack, VkCommandBuffer cmd) {
+        if (pendingImages.isEmpty()) return;
+        int maxLevels = 0;
+        for (PendingImage image : pendingImages) maxLevels = Math.max(maxLevels, image.mipLevels);
+
+        var blit = VkImageBlit.calloc(1, stack);
+        for (int level = 1; level < maxLevels; level++) {
+            int count = 0;
+            for (PendingImage image : pendingImages) if (image.mipLevels > level) count++;
+            var toSource = VkImageMemoryBarrier.calloc(count, stack);
+            for (PendingImage image : pendingImages) {
+                if (image.mipLevels <= level) continue;
+                imageBarrier(toSource.get(), image, level - 1, 1, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL)
+                        .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+                        .dstAccessMask(VK_ACCESS_TRANSFER_READ_BIT);
+            }
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_TRANSFER_BIT, 0, null, null, toSource.rewind());
+
+            for (PendingImage image : pendingImages) {
+                if (image.mipLevels <= level) continue;
+                blit.srcSubresource().set(VK_IMAGE_ASPECT_COLOR_BIT, image.baseLevel + level - 1, 0, 1);
+                blit.srcOffsets(1).set(Math.max(1, image.width >> (level - 1)), Math.max(1, image.height >> (level - 1)), 1);
+                blit.dstSubresource().set(VK_IMAGE_ASPECT_COLOR_BIT, image.baseLevel + level, 0, 1);
+                blit.dstOffsets(1).set(Math.max(1, image.width >> level), Math.max(1, image.height >> level), 1);
+                vkCmdBlitImage(cmd, image.image, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, image.image, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, blit, VK_FILTER_LINEAR);
+            }
+        }
+
+        // every level but the last was a blit source
+        int count = 0;
+        for (PendingImage image : pendingImages) count += image.mipLevels > 1 ? 2 : 1;
+        var toShader = VkImageMemoryBarrier.calloc(count, stack);
+        for (PendingImage image : pendingImages) {
+            if (image.mipLevels > 1) {
+                imageBarrier(toShader.get(), image, 0, image.mipLevels - 1, VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL)
+                        .srcAccessMask(VK_ACCESS_TRANSFER_READ_BIT)
+                        .dstAccessMask(VK_ACCESS_SHADER_READ_BIT);
+            }
+            imageBarrier(toShader.get(), image, image.mipLevels - 1, 1, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL)
+                    .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+                    .dstAccessMask(VK_ACCESS_SHADER_READ_BIT);
+        }
+        vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_VERTEX_SHADER_BIT | VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT,
+                0, null, null, toShader.rewind());
+    }
+
+    /**
+     * @param firstLevel relative to the image's base level, as are the levels in the mip chain loops
+     */
+    private static VkImageMemoryBarrier imageBarrier(VkImageMemoryBarrier barrier, PendingImage image, int firstLevel, int levels, int oldLayout, int newLayout) {
+        return barrier.sType(VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER)
+                .oldLayout(oldLayout)
+                .newLayout(newLayout)
+                .srcQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                .dstQueueFamilyIndex(VK_QUEUE_FAMILY_IGNORED)
+                .image(image.image)
+                .subresourceRange(range -> range.set(VK_IMAGE_ASPECT_COLOR_BIT, image.baseLevel + firstLevel, levels, 0, 1));
+    }
+
+    /**
+     * Without an ownership transfer this is a plain barrier from the copies to every consumer on the same queue.
+     * Otherwise it records the release half on the transfer queue, or the acquire half on the graphics queue.
+     */
+    private void recordReadBarrier(MemoryStack stack, VkCommandBuffer cmd, boolean acquire) {
+        if (!transfersOwnership()) {
+            var barrier = VkMemoryBarrier.calloc(1, stack)
+                    .sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+                    .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+                    .dstAccessMask(CONSUMER_ACCESS);
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, CONSUMER_STAGES, 0, barrier, null, null);
+            return;
+        }
+
+        Set<Long> destinations = new LinkedHashSet<>();
+        for (PendingCopy copy : pendingCopies) destinations.add(copy.dstBuffer);
+        var barriers = VkBufferMemoryBarrier.calloc(destinations.size(), stack);
+        for (long dst : destinations) {
+            barriers.get()
+                    .sType(VK_STRUCTURE_TYPE_BUFFER_MEMORY_BARRIER)
+                    .srcAccessMask(acquire ? 0 : VK_ACCESS_TRANSFER_WRITE_BIT)
+                    .dstAccessMask(acquire ? CONSUMER_ACCESS : 0)
+                    .srcQueueFamilyIndex(queueFamily)
+                    .dstQueueFamilyIndex(graphicsFamily)
+                    .buffer(dst)
+                    .offset(0)
+                    .size(VK_WHOLE_SIZE);
+        }
+        barriers.rewind();
+        // images move over with the whole chain still a copy destination, the mips are blitted after the acquire
+        var imageBarriers = VkImageMemoryBarrier.calloc(pendingImages.size(), stack);
+        for (PendingImage image : pendingImages) {
+            imageBarrier(imageBarriers.get(), image, 0, image.mipLevels, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL, VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL)
+                    .srcAccessMask(acquire ? 0 : VK_ACCESS_TRANSFER_WRITE_BIT)
+                    .dstAccessMask(acquire ? VK_ACCESS_TRANSFER_READ_BIT | VK_ACCESS_TRANSFER_WRITE_BIT : 0)
+                    .srcQueueFamilyIndex(queueFamily)
+                    .dstQueueFamilyIndex(graphicsFamily);
+        }
+        imageBarriers.rewind();
+        if (acquire) {
+            // source stages match the semaphore wait stages so the wait chains into the acquire
+            vkCmdPipelineBarrier(cmd, ACQUIRE_STAGES, ACQUIRE_STAGES, 0, null, barriers, imageBarriers);
+        } else {
+            vkCmdPipelineBarrier(cmd, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, 0, null, barriers, imageBarriers);
+        }
+    }
+
+    /**
+     * @return true if any batch finished
+     */
+    private boolean retireBatches() {
+        boolean retired = false;
+        while (!inFlight.isEmpty() && vkGetFenceStatus(device, inFlight.peek().fence) == VK_SUCCESS) {
+            retire(inFlight.poll());
+            retired = true;
+        }
+        return retired;
+    }
+
+    /**
+     * @return false if there was nothing in flight to wait for
+     */
+    private boolean waitOldestBatch() {
+        Batch oldest = inFlight.poll();
+        if (oldest == null) return false;
+        vkWaitForFences(device, oldest.fence, true, -1);
+        retire(oldest);
+        return true;
+    }
+
+    private long tail() {
+        return outstanding.isEmpty() ? head : outstanding.first();
+    }
+
+    private void retire(Batch batch) {
+        outstanding.removeAll(batch.ringStarts);
+        batch.ringStarts.clear();
+        completedBatchId = batch.id;
+        batch.releaseOverflow();
+        idleBatches.add(batch);
+    }
+
+    /**
+     * A slice of host visible staging memory.
+     */
+    static final class StagingRegion {
+        private final GraphicsBuffer buffer;
+        final long offset;
+        final long size;
+        private final long ringStart;
+
+        private StagingRegion(GraphicsBuffer buffer, long offset, long size, long ringStart) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.size = size;
+            this.ringStart = ringStart;
+        }
+
+        /**
+         * @return a native-order view of the region, positioned at zero
+         */
+        ByteBuffer buffer() {
+            return MemoryUtil.memByteBuffer(buffer.allocation.mappedAddress + offset, (int) size);
+        }
+    }
+
+    /**
+     * Identifies the batch an upload was or will be submitted in.
+     */
+    record Ticket(long batchId) {
+    }
+
+    private record PendingCopy(long srcBuffer, long srcOffset, long dstBuffer, long dstOffset, long size, long ringStart) {
+    }
+
+    /**
+     * Covers {@code mipLevels} levels from {@code baseLevel}, the first copied and the rest blitted. The extent is
+     * the base level's.
+     */
+    private record PendingImage(long srcBuffer, long srcOffset, long image, int baseLevel, int width, int height, int mipLevels, long ringStart) {
+    }
+
+    private final class Batch {
+        private final VkCommandBuffer commandBuffer;
+        private final VkCommandBuffer acquireCommandBuffer;
+        private final long semaphore;
+        private final long fence;
+        private final List<GraphicsBuffer> overflow = new ArrayList<>();
+        private final List<Long> ringStarts = new ArrayList<>();
+        private long id;
+
+        private Batch() {
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                commandBuffer = allocateCommandBuffer(stack, commandPool);
+                if (transfersOwnership()) {
+                    acquireCommandBuffer = allocateCommandBuffer(stack, graphicsCommandPool);
+                    var semaphoreInfo = VkSemaphoreCreateInfo.calloc(stack)
+                            .sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+                    var p_semaphore = stack.mallocLong(1);
+                    _CHECK_(vkCreateSemaphore(device, semaphoreInfo, null, p_semaphore), "Failed to create upload semaphore.");
+                    semaphore = p_semaphore.get(0);
+                } else {
+                    acquireCommandBuffer = null;
+                    semaphore = VK_NULL_HANDLE;
+                }
+
+                var fenceInfo = VkFenceCreateInfo.calloc(stack)
+                        .sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+                var p_fence = stack.mallocLong(1);
+                _CHECK_(vkCreateFence(device, fenceInfo, null, p_fence), "Failed to create upload fence.");
+                fence = p_fence.get(0);
+            }
+        }
+
+        private VkCommandBuffer allocateCommandBuffer(MemoryStack stack, long pool) {
+            var allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+                    .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
+                    .commandPool(pool)
+                    .commandBufferCount(1);
+            var p_commandBuffer = stack.mallocPointer(1);
+            _CHECK_(vkAllocateCommandBuffers(device, allocInfo, p_commandBuffer), "Failed to allocate upload command buffer.");
+            return new VkCommandBuffer(p_commandBuffer.get(0), device);
+        }
+
+        private void releaseOverflow() {
+            for (GraphicsBuffer buffer : overflow) buffer.free(device);
+            overflow.clear();
+        }
+
+        private void destroy() {
+            releaseOverflow();
+            vkDestroyFence(device, fence, null);
+            if (semaphore != VK_NULL_HANDLE) vkDestroySemaphore(device, semaphore, null);
+        }
+    }
+}
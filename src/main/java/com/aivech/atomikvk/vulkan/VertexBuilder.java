@@ -0,0 +1,191 @@
+package com.aivech.atomikvk.vulkan;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.BitSet;
+
+/**
+ * Packs vertex attributes into off-heap streams, one per binding of a {@link VertexFormat}. Attributes are filled a
+ * whole array at a time and encoded straight into native memory; float attributes that make up a binding on their own
+ * are copied in bulk.
+ */
+public final class VertexBuilder implements AutoCloseable {
+    private final VertexFormat format;
+    private final int vertexCount;
+    private final ByteBuffer[] streams;
+    private final float[] scratch = new float[4];
+
+    /**
+     * The streams start zeroed, so attributes that are never filled read as zero.
+     */
+    public VertexBuilder(VertexFormat format, int vertexCount) {
+        this.format = format;
+        this.vertexCount = vertexCount;
+        streams = new ByteBuffer[format.bindingCount()];
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = MemoryUtil.memCalloc(vertexCount * format.stride(i));
+        }
+    }
+
+    public VertexFormat format() {
+        return format;
+    }
+
+    public int vertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * Fills an attribute for every vertex.
+     * @param values {@code components} floats per vertex, back to back
+     */
+    public VertexBuilder put(int location, float[] values) {
+        return put(location, 0, values, 0, vertexCount);
+    }
+
+    /**
+     * Fills an attribute for {@code count} vertices starting at {@code firstVertex}, reading from
+     * {@code values[offset]} on.
+     */
+    public VertexBuilder put(int location, int firstVertex, float[] values, int offset, int count) {
+        VertexFormat.Attribute attribute = format.attribute(location);
+        VertexFormat.Encoding encoding = attribute.encoding();
+        checkRange(firstVertex, count, values.length - offset, encoding.components);
+        int stride = format.stride(attribute.binding());
+        long address = MemoryUtil.memAddress(streams[attribute.binding()]) + (long) firstVertex * stride + attribute.offset();
+        if (encoding.isRaw() && stride == encoding.size) {
+            MemoryUtil.memFloatBuffer(address, count * encoding.components).put(values, offset, count * encoding.components);
+            return this;
+        }
+        encoding.encode(values, offset, address, stride, count);
+        return this;
+    }
+
+    /**
+     * Fills an attribute for every vertex from the buffer's remaining floats, leaving its position untouched. Direct
+     * buffers are read in native order, like the ones LWJGL allocates.
+     */
+    public VertexBuilder put(int location, FloatBuffer values) {
+        return put(location, values, format.attribute(location).encoding().components);
+    }
+
+    /**
+     * Like {@link #put(int, FloatBuffer)}, for sources that store more floats per vertex than the attribute uses, such
+     * as three component texture coordinates feeding a two component attribute.
+     * @param sourceStride floats from one vertex to the next in {@code values}
+     */
+    public VertexBuilder put(int location, FloatBuffer values, int sourceStride) {
+        VertexFormat.Attribute attribute = format.attribute(location);
+        VertexFormat.Encoding encoding = attribute.encoding();
+        if (sourceStride < encoding.components) {
+            throw new IllegalArgumentException("Source stride " + sourceStride + " is less than the " + encoding.components + " components of location " + location);
+        }
+        if (values.hasArray() && sourceStride == encoding.components) {
+            return put(location, 0, values.array(), values.arrayOffset() + values.position(), vertexCount);
+        }
+        checkRange(0, vertexCount, values.remaining() + sourceStride - encoding.components, sourceStride);
+        int stride = format.stride(attribute.binding());
+        long address = MemoryUtil.memAddress(streams[attribute.binding()]) + attribute.offset();
+        if (!values.isDirect()) {
+            for (int i = 0, src = values.position(); i < vertexCount; i++, src += sourceStride, address += stride) {
+                values.get(src, scratch, 0, encoding.components);
+                encoding.encode(scratch, 0, address, stride, 1);
+            }
+            return this;
+        }
+        long src = MemoryUtil.memAddress(values);
+        if (encoding.isRaw() && stride == encoding.size && sourceStride == encoding.components) {
+            MemoryUtil.memCopy(src, address, (long) vertexCount * encoding.size);
+            return this;
+        }
+        for (int i = 0; i < vertexCount; i++, address += stride, src += (long) sourceStride * Float.BYTES) {
+            for (int c = 0; c < encoding.components; c++) scratch[c] = MemoryUtil.memGetFloat(src + (long) c * Float.BYTES);
+            encoding.encode(scratch, 0, address, stride, 1);
+        }
+        return this;
+    }
+
+    /**
+     * Moves every vertex {@code i} to {@code remap[i]}, in all streams. The remap must be a permutation, any slot left
+     * unfilled would hold garbage.
+     */
+    public void reorder(IntBuffer remap) {
+        if (remap.remaining() < vertexCount) {
+            throw new IllegalArgumentException("Remap has " + remap.remaining() + " entries for " + vertexCount + " vertices");
+        }
+        BitSet taken = new BitSet(vertexCount);
+        for (int i = 0; i < vertexCount; i++) {
+            int target = remap.get(remap.position() + i);
+            if (target < 0 || target >= vertexCount) throw new IndexOutOfBoundsException("Vertex " + i + " remapped to " + target);
+            if (taken.get(target)) throw new IllegalArgumentException("Vertex " + i + " remapped to " + target + ", which is already taken");
+            taken.set(target);
+        }
+        for (int b = 0; b < streams.length; b++) {
+            int stride = format.stride(b);
+            ByteBuffer reordered = MemoryUtil.memAlloc(streams[b].capacity());
+            long src = MemoryUtil.memAddress(streams[b]);
+            long dst = MemoryUtil.memAddress(reordered);
+            for (int i = 0; i < vertexCount; i++) {
+                MemoryUtil.memCopy(src + (long) i * stride, dst + (long) remap.get(remap.position() + i) * stride, stride);
+            }
+            MemoryUtil.memFree(streams[b]);
+            streams[b] = reordered;
+        }
+    }
+
+    private void checkRange(int firstVertex, int count, int available, int components) {
+        if (firstVertex < 0 || count < 0 || firstVertex + count > vertexCount) {
+            throw new IndexOutOfBoundsException("Vertices " + firstVertex + " to " + (firstVertex + count) + " out of " + vertexCount);
+        }
+        if (available < (long) count * components) {
+            throw new IllegalArgumentException(count + " vertices need " + count * components + " floats, got " + available);
+        }
+    }
+
+    /**
+     * @return the packed vertices of a binding
+     */
+    public ByteBuffer stream(int binding) {
+        return streams[binding].duplicate();
+    }
+
+    /**
+     * @return the bytes of all streams together
+     */
+    public long size() {
+        long size = 0;
+        for (ByteBuffer stream : streams) size += stream.capacity();
+        return size;
+    }
+
+    /**
+     * @return where a binding's stream starts in the layout {@link #copyTo} writes
+     */
+    public long offset(int binding) {
+        long offset = 0;
+        for (int i = 0; i < binding; i++) offset += streams[i].capacity();
+        return offset;
+    }
+
+    /**
+     * Writes all streams back to back, in binding order, at the buffer's position.
+     */
+    public void copyTo(ByteBuffer target) {
+        if (target.remaining() < size()) throw new BufferOverflowException();
+        long address = MemoryUtil.memAddress(target);
+        for (ByteBuffer stream : streams) {
+            MemoryUtil.memCopy(MemoryUtil.memAddress(stream), address, stream.capacity());
+            address += stream.capacity();
+        }
+        target.position(target.position() + (int) size());
+    }
+
+    @Override
+    public void close() {
+        for (ByteBuffer stream : streams) MemoryUtil.memFree(stream);
+    }
+}
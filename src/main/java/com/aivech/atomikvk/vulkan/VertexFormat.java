@@ -0,0 +1,397 @@
+package com.aivech.atomikvk.vulkan;
+
+import com.google.common.collect.ImmutableList;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.vulkan.VkVertexInputAttributeDescription;
+import org.lwjgl.vulkan.VkVertexInputBindingDescription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Describes how vertex attributes are laid out in one or more vertex buffer bindings. Attributes added to the same
+ * binding are interleaved in the order they were added; giving every attribute its own binding stores them as separate
+ * streams instead.
+ */
+public final class VertexFormat {
+    public final ImmutableList<Attribute> attributes;
+    private final int[] strides;
+    private final int[] inputRates;
+
+    private VertexFormat(List<Attribute> attributes, List<Integer> strides, List<Integer> inputRates) {
+        this.attributes = ImmutableList.copyOf(attributes);
+        this.strides = strides.stream().mapToInt(Integer::intValue).toArray();
+        this.inputRates = inputRates.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * A single per-vertex binding with the given encodings at locations 0, 1, 2...
+     */
+    public static VertexFormat interleaved(Encoding... encodings) {
+        Builder builder = builder().binding(VK_VERTEX_INPUT_RATE_VERTEX);
+        for (int i = 0; i < encodings.length; i++) builder.attribute(i, encodings[i]);
+        return builder.build();
+    }
+
+    /**
+     * One per-vertex binding per encoding, at locations 0, 1, 2... Each stream can be bound and updated on its own.
+     */
+    public static VertexFormat separate(Encoding... encodings) {
+        Builder builder = builder();
+        for (int i = 0; i < encodings.length; i++) builder.binding(VK_VERTEX_INPUT_RATE_VERTEX).attribute(i, encodings[i]);
+        return builder.build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Appends another format's bindings after this one's, typically per-instance data behind per-vertex meshes. Its
+     * attributes keep their locations, which must not clash with these.
+     */
+    public VertexFormat with(VertexFormat other) {
+        List<Attribute> attributes = new ArrayList<>(this.attributes);
+        for (Attribute attribute : other.attributes) {
+            for (Attribute existing : this.attributes) {
+                if (existing.location == attribute.location) throw new IllegalArgumentException("Vertex location " + attribute.location + " is already in use");
+            }
+            attributes.add(new Attribute(attribute.location, attribute.binding + bindingCount(), attribute.offset, attribute.encoding));
+        }
+        List<Integer> strides = new ArrayList<>();
+        List<Integer> inputRates = new ArrayList<>();
+        for (VertexFormat format : List.of(this, other)) {
+            for (int i = 0; i < format.bindingCount(); i++) {
+                strides.add(format.strides[i]);
+                inputRates.add(format.inputRates[i]);
+            }
+        }
+        return new VertexFormat(attributes, strides, inputRates);
+    }
+
+    public int bindingCount() {
+        return strides.length;
+    }
+
+    public int stride(int binding) {
+        return strides[binding];
+    }
+
+    public int inputRate(int binding) {
+        return inputRates[binding];
+    }
+
+    public Attribute attribute(int location) {
+        for (Attribute attribute : attributes) {
+            if (attribute.location == location) return attribute;
+        }
+        throw new IllegalArgumentException("No vertex attribute at location " + location);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof VertexFormat other && attributes.equals(other.attributes)
+                && Arrays.equals(strides, other.strides) && Arrays.equals(inputRates, other.inputRates);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * attributes.hashCode() + Arrays.hashCode(strides)) + Arrays.hashCode(inputRates);
+    }
+
+    VkVertexInputBindingDescription.Buffer getBindDesc(MemoryStack stack) {
+        var p_bindDesc = VkVertexInputBindingDescription.calloc(strides.length, stack);
+        for (int i = 0; i < strides.length; i++) {
+            p_bindDesc.get(i)
+                    .binding(i)
+                    .stride(strides[i])
+                    .inputRate(inputRates[i]);
+        }
+        return p_bindDesc;
+    }
+
+    VkVertexInputAttributeDescription.Buffer getAttrDesc(MemoryStack stack) {
+        var p_attrDesc = VkVertexInputAttributeDescription.calloc(attributes.size(), stack);
+        for (int i = 0; i < attributes.size(); i++) {
+            Attribute attribute = attributes.get(i);
+            p_attrDesc.get(i)
+                    .binding(attribute.binding)
+                    .location(attribute.location)
+                    .format(attribute.encoding.vkFormat)
+                    .offset(attribute.offset);
+        }
+        return p_attrDesc;
+    }
+
+    public record Attribute(int location, int binding, int offset, Encoding encoding) {
+    }
+
+    /**
+     * How the floats handed to a {@link VertexBuilder} end up in the vertex buffer. Every encoding is a multiple of 4
+     * bytes, so interleaved attributes stay aligned.
+     */
+    public enum Encoding {
+        FLOAT(VK_FORMAT_R32_SFLOAT, 1, 4) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index++, address += stride) {
+                    MemoryUtil.memPutFloat(address, src[index]);
+                }
+            }
+        },
+        FLOAT2(VK_FORMAT_R32G32_SFLOAT, 2, 8) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index += 2, address += stride) {
+                    MemoryUtil.memPutFloat(address, src[index]);
+                    MemoryUtil.memPutFloat(address + 4, src[index + 1]);
+                }
+            }
+        },
+        FLOAT3(VK_FORMAT_R32G32B32_SFLOAT, 3, 12) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index += 3, address += stride) {
+                    MemoryUtil.memPutFloat(address, src[index]);
+                    MemoryUtil.memPutFloat(address + 4, src[index + 1]);
+                    MemoryUtil.memPutFloat(address + 8, src[index + 2]);
+                }
+            }
+        },
+        FLOAT4(VK_FORMAT_R32G32B32A32_SFLOAT, 4, 16) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index += 4, address += stride) {
+                    MemoryUtil.memPutFloat(address, src[index]);
+                    MemoryUtil.memPutFloat(address + 4, src[index + 1]);
+                    MemoryUtil.memPutFloat(address + 8, src[index + 2]);
+                    MemoryUtil.memPutFloat(address + 12, src[index + 3]);
+                }
+            }
+        },
+        HALF2(VK_FORMAT_R16G16_SFLOAT, 2, 4) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index += 2, address += stride) {
+                    MemoryUtil.memPutShort(address, toHalf(src[index]));
+                    MemoryUtil.memPutShort(address + 2, toHalf(src[index + 1]));
+                }
+            }
+        },
+        /**
+         * Three halves padded with w = 1, three component 16 bit formats are rarely supported for vertex input.
+         */
+        HALF3(VK_FORMAT_R16G16B16A16_SFLOAT, 3, 8) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index += 3, address += stride) {
+                    MemoryUtil.memPutShort(address, toHalf(src[index]));
+                    MemoryUtil.memPutShort(address + 2, toHalf(src[index + 1]));
+                    MemoryUtil.memPutShort(address + 4, toHalf(src[index + 2]));
+                    MemoryUtil.memPutShort(address + 6, HALF_ONE);
+                }
+            }
+        },
+        HALF4(VK_FORMAT_R16G16B16A16_SFLOAT, 4, 8) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index += 4, address += stride) {
+                    MemoryUtil.memPutShort(address, toHalf(src[index]));
+                    MemoryUtil.memPutShort(address + 2, toHalf(src[index + 1]));
+                    MemoryUtil.memPutShort(address + 4, toHalf(src[index + 2]));
+                    MemoryUtil.memPutShort(address + 6, toHalf(src[index + 3]));
+                }
+            }
+        },
+        /**
+         * RGB in [0, 1] with an opaque alpha.
+         */
+        UNORM8X3(VK_FORMAT_R8G8B8A8_UNORM, 3, 4) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index += 3, address += stride) {
+                    MemoryUtil.memPutByte(address, unorm8(src[index]));
+                    MemoryUtil.memPutByte(address + 1, unorm8(src[index + 1]));
+                    MemoryUtil.memPutByte(address + 2, unorm8(src[index + 2]));
+                    MemoryUtil.memPutByte(address + 3, (byte) 0xff);
+                }
+            }
+        },
+        UNORM8X4(VK_FORMAT_R8G8B8A8_UNORM, 4, 4) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index += 4, address += stride) {
+                    MemoryUtil.memPutByte(address, unorm8(src[index]));
+                    MemoryUtil.memPutByte(address + 1, unorm8(src[index + 1]));
+                    MemoryUtil.memPutByte(address + 2, unorm8(src[index + 2]));
+                    MemoryUtil.memPutByte(address + 3, unorm8(src[index + 3]));
+                }
+            }
+        },
+        /**
+         * Four values in [-1, 1], for tangents with the bitangent sign in w.
+         */
+        SNORM8X4(VK_FORMAT_R8G8B8A8_SNORM, 4, 4) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index += 4, address += stride) {
+                    MemoryUtil.memPutByte(address, (byte) snorm(src[index], 127));
+                    MemoryUtil.memPutByte(address + 1, (byte) snorm(src[index + 1], 127));
+                    MemoryUtil.memPutByte(address + 2, (byte) snorm(src[index + 2], 127));
+                    MemoryUtil.memPutByte(address + 3, (byte) snorm(src[index + 3], 127));
+                }
+            }
+        },
+        /**
+         * A unit normal, octahedron mapped to two 16 bit snorms. The vertex shader decodes it with
+         * <pre>
+         * vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+         * float t = max(-n.z, 0.0);
+         * n.xy += mix(vec2(t), vec2(-t), greaterThanEqual(n.xy, vec2(0.0)));
+         * n = normalize(n);
+         * </pre>
+         */
+        OCT16(VK_FORMAT_R16G16_SNORM, 3, 4) {
+            @Override
+            void encode(float[] src, int index, long address, int stride, int count) {
+                for (int i = 0; i < count; i++, index += 3, address += stride) {
+                    float x = src[index], y = src[index + 1], z = src[index + 2];
+                    float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+                    if (l1 == 0f) {
+                        MemoryUtil.memPutInt(address, 0);
+                        continue;
+                    }
+                    x /= l1;
+                    y /= l1;
+                    if (z < 0f) {
+                        float folded = (1f - Math.abs(y)) * (x >= 0f ? 1f : -1f);
+                        y = (1f - Math.abs(x)) * (y >= 0f ? 1f : -1f);
+                        x = folded;
+                    }
+                    MemoryUtil.memPutShort(address, (short) snorm(x, 32767));
+                    MemoryUtil.memPutShort(address + 2, (short) snorm(y, 32767));
+                }
+            }
+        };
+
+        private static final short HALF_ONE = 0x3c00;
+
+        public final int vkFormat;
+        /**
+         * Floats consumed per vertex.
+         */
+        public final int components;
+        /**
+         * Bytes written per vertex.
+         */
+        public final int size;
+
+        Encoding(int vkFormat, int components, int size) {
+            this.vkFormat = vkFormat;
+            this.components = components;
+            this.size = size;
+        }
+
+        /**
+         * Encodes {@code count} vertices, {@link #components} floats each starting at {@code src[index]}, to native
+         * memory {@code stride} bytes apart. The loop lives in every constant so each one gets its own compiled copy.
+         */
+        abstract void encode(float[] src, int index, long address, int stride, int count);
+
+        /**
+         * @return true if the encoded bytes are the input floats unchanged, so a tight stream can be bulk copied
+         */
+        boolean isRaw() {
+            return size == components * Float.BYTES;
+        }
+
+        // plain comparisons rather than Math.min/max, whose NaN and -0 handling costs branches on every call
+        private static byte unorm8(float value) {
+            return (byte) (value <= 0f ? 0 : value >= 1f ? 255 : (int) (value * 255f + .5f));
+        }
+
+        private static int snorm(float value, int max) {
+            return value <= -1f ? -max : value >= 1f ? max : Math.round(value * max);
+        }
+
+        /**
+         * IEEE 754 binary16 bits of the value, rounded to nearest even.
+         */
+        static short toHalf(float value) {
+            int bits = Float.floatToRawIntBits(value);
+            int sign = (bits >>> 16) & 0x8000;
+            int abs = bits & 0x7fffffff;
+            if (abs >= 0x38800000 && abs < 0x477ff000) {
+                // normal half that doesn't round to infinity: round the float bits to nearest even, then rebias
+                return (short) (sign | ((abs + 0xfff + ((abs >>> 13) & 1)) >>> 13) - ((127 - 15) << 10));
+            }
+            int floatExponent = (bits >>> 23) & 0xff;
+            int mantissa = bits & 0x7fffff;
+            if (floatExponent == 0xff) { // infinity or NaN
+                return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+            }
+            int exponent = floatExponent - 127 + 15;
+            if (exponent >= 31) { // too large, rounds to infinity
+                return (short) (sign | 0x7c00);
+            }
+            if (exponent <= 0) { // subnormal half, or zero
+                if (exponent < -10) return (short) sign;
+                mantissa |= 0x800000;
+                int shift = 14 - exponent;
+                int half = mantissa >> shift;
+                int remainder = mantissa & ((1 << shift) - 1);
+                int halfway = 1 << (shift - 1);
+                if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) half++;
+                return (short) (sign | half);
+            }
+            int half = sign | exponent << 10 | mantissa >> 13;
+            int remainder = mantissa & 0x1fff;
+            // a carry out of the mantissa bumps the exponent, which is still the correctly rounded result
+            if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) half++;
+            return (short) half;
+        }
+    }
+
+    public static final class Builder {
+        private final List<Attribute> attributes = new ArrayList<>();
+        private final List<Integer> strides = new ArrayList<>();
+        private final List<Integer> inputRates = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Starts a new binding, the following attributes are interleaved into it.
+         * @param inputRate {@code VK_VERTEX_INPUT_RATE_VERTEX} or {@code VK_VERTEX_INPUT_RATE_INSTANCE}
+         */
+        public Builder binding(int inputRate) {
+            strides.add(0);
+            inputRates.add(inputRate);
+            return this;
+        }
+
+        /**
+         * Appends an attribute to the current binding, starting a per-vertex one if there is none yet.
+         */
+        public Builder attribute(int location, Encoding encoding) {
+            for (Attribute attribute : attributes) {
+                if (attribute.location == location) throw new IllegalArgumentException("Vertex location " + location + " is already in use");
+            }
+            if (strides.isEmpty()) binding(VK_VERTEX_INPUT_RATE_VERTEX);
+            int binding = strides.size() - 1;
+            int offset = strides.get(binding);
+            attributes.add(new Attribute(location, binding, offset, encoding));
+            strides.set(binding, offset + encoding.size);
+            return this;
+        }
+
+        public VertexFormat build() {
+            if (strides.contains(0)) throw new IllegalStateException("Vertex format has a binding without attributes");
+            return new VertexFormat(attributes, strides, inputRates);
+        }
+    }
+}
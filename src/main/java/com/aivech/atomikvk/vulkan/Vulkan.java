@@ -2,23 +2,38 @@ package com.aivech.atomikvk.vulkan;
 
 import com.aivech.atomikvk.common.GraphicsProvider;
 import com.aivech.atomikvk.AtomikVk;
+import com.aivech.atomikvk.common.capture.FrameConsumer;
+import com.aivech.atomikvk.common.config.AtomikVkConfig;
+import com.aivech.atomikvk.common.jfr.*;
 import com.aivech.atomikvk.common.resource.ShaderResource;
+import com.aivech.atomikvk.common.resource.ShaderWatcher;
+import com.aivech.atomikvk.mesh.MeshCache;
+import com.aivech.atomikvk.mesh.MeshFile;
+import com.aivech.atomikvk.mesh.MeshImporter;
 import com.aivech.atomikvk.shaderc.ShaderException;
+import com.aivech.atomikvk.texture.TextureCache;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.glfw.GLFWVulkan;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.vulkan.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static org.lwjgl.glfw.GLFW.glfwGetFramebufferSize;
 import static org.lwjgl.glfw.GLFW.glfwWaitEvents;
 import static org.lwjgl.vulkan.EXTDebugReport.VK_ERROR_VALIDATION_FAILED_EXT;
 import static org.lwjgl.vulkan.EXTDebugUtils.*;
+import static org.lwjgl.vulkan.EXTPipelineCreationFeedback.VK_EXT_PIPELINE_CREATION_FEEDBACK_EXTENSION_NAME;
 import static org.lwjgl.vulkan.KHRDisplaySwapchain.VK_ERROR_INCOMPATIBLE_DISPLAY_KHR;
 import static org.lwjgl.vulkan.KHRSurface.*;
 import static org.lwjgl.vulkan.KHRSwapchain.*;
@@ -29,97 +44,305 @@ public class Vulkan implements GraphicsProvider {
     public static final CharSequence[] validationLayers = {"VK_LAYER_KHRONOS_validation"};
     public static final CharSequence[] debugExtensions = {"VK_EXT_debug_utils"};
     public static final CharSequence[] deviceRequiredExtensions = {VK_KHR_SWAPCHAIN_EXTENSION_NAME};
+    public static final String[] deviceOptionalExtensions = {VK_EXT_PIPELINE_CREATION_FEEDBACK_EXTENSION_NAME};
     public static final boolean ENABLE_VALIDATION = true; //true;
-    // public static final int MAX_FRAMES_IN_FLIGHT = 2;
+    private static final DescriptorLayoutCache.Binding TEXTURE_BINDING = new DescriptorLayoutCache.Binding(0,
+            VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER, 1, VK_SHADER_STAGE_FRAGMENT_BIT);
 
     private long glfwWindow;
+    private boolean headless;
+    private boolean validation;
     private VkInstance instance;
     private long vkDebugUtilsMessenger;
     private long surfaceKHR;
     private PhysicalDevice gpu;
     private VkDevice device;
+    private final Set<String> enabledOptionalExtensions = new HashSet<>();
     private VkQueue graphicsQueue;
     private VkQueue presentationQueue;
     private VkQueue transferQueue;
+    private MemoryAllocator allocator;
+    private PipelineCache pipelineCache;
+    // geometry patches ranges of buffers frames are drawing from, so it stays on the graphics queue
+    private UploadService uploads;
+    // fresh textures copy on the transfer queue where there is one, the acquire and mip blits run on the graphics queue
+    private UploadService streaming;
+    private TextureLoader textures;
+    private SamplerCache samplers;
+    // streamed in through the texture cache for the demo geometry, completes with null if it couldn't be loaded
+    private CompletableFuture<Texture> demoTexture;
+    // sampled in its place until it has a level resident
+    private Texture blankTexture;
     private ShaderResource[] shaders;
+    private ShaderWatcher shaderWatcher;
+    private final ConcurrentLinkedQueue<List<ShaderResource>> shaderReloads = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<RetiredPipeline> retiredPipelines = new ArrayDeque<>();
+    // null when headless, otherwise also the render target
     private Swapchain swapchain;
+    private RenderTarget target;
+    // the frame's passes, rebuilt with the target since its images are part of it
+    private RenderGraph graph;
+    private RenderGraph.Pass mainPass;
+    private int targetImage;
+    private DescriptorLayoutCache descriptorLayouts;
+    // set 0 is the frame's dynamic uniform buffer, set 1 the demo texture
+    private long[] setLayouts;
     private Pipeline pipeline;
-    private long[] framebuffers;
-    private long commandPool;
-    private GraphicsBuffer vertexBuffer;
-    private GraphicsBuffer indexBuffer;
-    private VkCommandBuffer[] commandBuffers;
-    private long[] imageAvailableSemaphore;
+    // every mesh the scene draws, drawn with one indirect call per pipeline
+    private GeometryArena geometry;
+    // drawn as instances of the demo geometry, rewritten into the frame's transient buffer every frame
+    private InstanceList instances;
+    private int demoDraw;
+    private FrameContext[] frames;
+    private ParallelRecorder recorder;
+    private GpuProfiler profiler;
+    private FrameReadback readback;
+    // per target image
     private long[] renderFinishedSemaphore;
-    private long[] fences;
     private long[] imagesInFlight;
     private final int[] currentFrame = new int[1];
     private int frameCounter = 0;
+    private long frameNumber = 0;
+    private volatile boolean resizeRequested;
+    private int resizeRequests;
 
     @Override
     public void init(long window) {
         glfwWindow = window;
         createInstance();
         setupDebugMessenger();
-            createSurface(window);
+        createSurface(window);
         gpu = PhysicalDevice.selectVkPhysDevice(instance, surfaceKHR, deviceRequiredExtensions);
-        createLogicalDevice();
+        createDevice(deviceRequiredExtensions);
+        swapchain = new Swapchain(window, gpu, device, surfaceKHR, null);
+        target = swapchain;
+        createRenderer();
+    }
+
+    /**
+     * Renders into device local images instead of a swapchain. There is nothing to present and no vsync, frames are
+     * produced as fast as the GPU finishes them. Works on software drivers such as lavapipe.
+     */
+    @Override
+    public void initHeadless(int width, int height) {
+        headless = true;
+        createInstance();
+        setupDebugMessenger();
+        gpu = PhysicalDevice.selectVkPhysDevice(instance, VK_NULL_HANDLE, new CharSequence[0]);
+        createDevice(new CharSequence[0]);
+        target = new OffscreenTarget(device, allocator, width, height, AtomikVkConfig.FRAMES_IN_FLIGHT);
+        createRenderer();
+    }
+
+    private void createDevice(CharSequence[] requiredExtensions) {
+        createLogicalDevice(requiredExtensions);
         getQueues();
+        allocator = new MemoryAllocator(gpu, device);
+        pipelineCache = new PipelineCache(device, gpu, Path.of(AtomikVkConfig.CACHE_DIRECTORY, "pipelines.bin"),
+                enabledOptionalExtensions.contains(VK_EXT_PIPELINE_CREATION_FEEDBACK_EXTENSION_NAME));
+        uploads = new UploadService(device, allocator, graphicsQueue, gpu.graphicsIndex, UploadService.DEFAULT_RING_SIZE);
+        streaming = gpu.transferIndex == gpu.graphicsIndex ? uploads
+                : new UploadService(device, allocator, transferQueue, gpu.transferIndex, graphicsQueue, gpu.graphicsIndex, UploadService.DEFAULT_RING_SIZE);
+        textures = new TextureLoader(device, gpu, allocator, streaming);
+        samplers = new SamplerCache(device, gpu);
         loadInitialResources();
-        swapchain = new Swapchain(window, gpu, device, surfaceKHR);
-        pipeline = new Pipeline(device, swapchain, shaders);
-        createFramebuffers();
-        createCommandPool();
-        createVertexBuffer();
-        createIndexBuffer();
-        createCommandBuffers();
-        createSyncObjects();
+        loadTextures();
+        if (AtomikVkConfig.SHADER_HOT_RELOAD) startShaderWatcher();
+    }
+
+    private void createRenderer() {
+        descriptorLayouts = new DescriptorLayoutCache(device);
+        setLayouts = new long[]{descriptorLayouts.get(FrameContext.UNIFORM_BINDING), descriptorLayouts.get(TEXTURE_BINDING)};
+        createGraph();
+        pipeline = new Pipeline(device, pipelineCache, graph.renderPass(mainPass), graph.subpass(mainPass), DemoGeometry.PIPELINE_FORMAT, setLayouts, shaders);
+        createImageResources();
+        createGeometry();
+        uploads.flush(); // ordered before the first frame by the graphics queue, no need to wait
+        createFrameContexts();
+    }
+
+    /**
+     * Declares the frame's passes against the current target.
+     */
+    private void createGraph() {
+        graph = new RenderGraph(device, gpu, allocator);
+        // frames wait for the acquire semaphore at color output, the contents are cleared anyway
+        var acquired = new RenderGraph.Handoff(VK_IMAGE_LAYOUT_UNDEFINED, VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT, 0);
+        // offscreen images are copied out after the frame, presentation is ordered by the semaphore
+        var handedOff = target.finalLayout() == VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL
+                ? new RenderGraph.Handoff(VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_ACCESS_TRANSFER_READ_BIT)
+                : new RenderGraph.Handoff(target.finalLayout(), VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, 0);
+        targetImage = graph.importImage("target", target.getImageFormat(), target.width(), target.height(), acquired, handedOff);
+        mainPass = graph.addPass("main pass")
+                .clearColor(targetImage, 0f, 0f, 0f, 1f)
+                .record(context -> {
+                    var scene = writeScene(context.frame);
+                    context.recordParallel(scene.commands.drawCount(),
+                            (cb, first, count) -> recordDraws(cb, context.frame, scene, first, count));
+                });
+        graph.compile();
     }
 
     @Override
     public void drawFrame() {
-        vkWaitForFences(device, fences[frameCounter], true, -1);
-        var result = vkAcquireNextImageKHR(device, swapchain.swapchain(), -1, imageAvailableSemaphore[frameCounter], VK_NULL_HANDLE, currentFrame);
-        if (result == VK_ERROR_OUT_OF_DATE_KHR) {
-            windowResizeUpdate();
-            return;
+        FrameEvent event = new FrameEvent();
+        event.begin();
+        long number = frameNumber;
+        int context = frameCounter;
+        int image = renderFrame();
+        if (event.shouldCommit()) {
+            event.frameNumber = number;
+            event.frameContext = context;
+            event.imageIndex = image;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return the swapchain image presented, or -1 if the frame was skipped
+     */
+    private int renderFrame() {
+        uploads.poll();
+        streaming.poll();
+        if (readback != null) readback.poll(device);
+        if (resizeRequested && swapchain != null) recreateSwapchain();
+        applyShaderReloads();
+        destroyRetiredPipelines();
+        FrameContext frame = frames[frameCounter];
+        FenceWaitEvent frameWait = new FenceWaitEvent();
+        frameWait.begin();
+        frame.begin(device);
+        commitFenceWait(frameWait, frame.index, "frame context");
+        profiler.collect(device, frame.index);
+
+        int image;
+        if (swapchain != null) {
+            AcquireImageEvent acquire = new AcquireImageEvent();
+            acquire.begin();
+            var result = vkAcquireNextImageKHR(device, swapchain.swapchain(), -1, frame.imageAvailable, VK_NULL_HANDLE, currentFrame);
+            if (acquire.shouldCommit()) {
+                acquire.frameNumber = frameNumber;
+                acquire.imageIndex = currentFrame[0];
+                acquire.result = result;
+                acquire.commit();
+            }
+            if (result == VK_ERROR_OUT_OF_DATE_KHR) {
+                recreateSwapchain();
+                return -1;
+            }
+            // a suboptimal image was still acquired and its semaphore will signal, so render it and rebuild after
+            if (result == VK_SUBOPTIMAL_KHR) resizeRequested = true;
+            else _CHECK_(result, "Failed to acquire swapchain image!");
+            image = currentFrame[0];
+        } else {
+            // one offscreen image per frame context, already free once the context's fence has signaled
+            image = frame.index;
         }
 
-        if (imagesInFlight[currentFrame[0]] != VK_NULL_HANDLE) {
-            vkWaitForFences(device, imagesInFlight[currentFrame[0]], true, -1);
+        // the image's render finished semaphore may still be waited on by a frame from another context
+        if (imagesInFlight[image] != VK_NULL_HANDLE) {
+            FenceWaitEvent imageWait = new FenceWaitEvent();
+            imageWait.begin();
+            vkWaitForFences(device, imagesInFlight[image], true, -1);
+            commitFenceWait(imageWait, frame.index, "swapchain image");
         }
-        imagesInFlight[currentFrame[0]] = fences[frameCounter];
+        imagesInFlight[image] = frame.fence;
+        recordCommandBuffer(frame, image);
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            LongBuffer waitSemaphore = stack.mallocLong(1).put(imageAvailableSemaphore[frameCounter]).rewind();
-            LongBuffer signalSemaphore = stack.mallocLong(1).put(renderFinishedSemaphore[frameCounter]).rewind();
-            IntBuffer waitStages = stack.mallocInt(1).put(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT).rewind();
             var frameSubmitInfo = VkSubmitInfo.calloc(stack)
                     .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
-                    .waitSemaphoreCount(1)
-                    .pWaitSemaphores(waitSemaphore)
-                    .pWaitDstStageMask(waitStages)
-                    .pSignalSemaphores(signalSemaphore)
-                    .pCommandBuffers(stack.mallocPointer(1).put(commandBuffers[currentFrame[0]].address()).rewind());
-
-            vkResetFences(device, fences[frameCounter]);
-            _CHECK_(vkQueueSubmit(graphicsQueue, frameSubmitInfo, fences[frameCounter]), "failed to submit draw command buffer");
+                    .pCommandBuffers(stack.pointers(frame.commandBuffer));
+            if (swapchain != null) {
+                frameSubmitInfo.waitSemaphoreCount(1)
+                        .pWaitSemaphores(stack.longs(frame.imageAvailable))
+                        .pWaitDstStageMask(stack.ints(VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT))
+                        .pSignalSemaphores(stack.longs(renderFinishedSemaphore[image]));
+            }
+
+            // anything streamed in since last frame lands ahead of this frame's draws
+            streaming.flush();
+            uploads.flush();
+            vkResetFences(device, frame.fence);
+            QueueSubmitEvent submit = new QueueSubmitEvent();
+            submit.begin();
+            synchronized (graphicsQueue) {
+                _CHECK_(vkQueueSubmit(graphicsQueue, frameSubmitInfo, frame.fence), "failed to submit draw command buffer");
+            }
+            if (submit.shouldCommit()) {
+                submit.frameNumber = frameNumber;
+                submit.imageIndex = image;
+                submit.queueFamily = gpu.graphicsIndex;
+                submit.commit();
+            }
+            if (readback != null && readback.isCapturing()) {
+                long copied = readback.capture(device, graphicsQueue, target.image(image), frameNumber);
+                // the next frame rendering into this image has to wait for the copy too, not just for the frame
+                if (copied != VK_NULL_HANDLE) imagesInFlight[image] = copied;
+            }
+            if (swapchain != null) present(image);
+            frameCounter = (frameCounter + 1) % frames.length;
+            frameNumber++;
+            return image;
+        }
+    }
+
+    private void present(int image) {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
             var presentInfo = VkPresentInfoKHR.calloc(stack)
                     .sType(VK_STRUCTURE_TYPE_PRESENT_INFO_KHR)
-                    .pWaitSemaphores(signalSemaphore.rewind())
+                    .pWaitSemaphores(stack.longs(renderFinishedSemaphore[image]))
                     .swapchainCount(1)
-                    .pSwapchains(stack.mallocLong(1).put(swapchain.swapchain()).rewind())
-                    .pImageIndices(stack.mallocInt(1).put(currentFrame[0]).rewind());
-
-            var presentResult = vkQueuePresentKHR(presentationQueue, presentInfo);
-            if (presentResult == VK_ERROR_OUT_OF_DATE_KHR || presentResult == VK_SUBOPTIMAL_KHR) windowResizeUpdate();
+                    .pSwapchains(stack.longs(swapchain.swapchain()))
+                    .pImageIndices(stack.ints(image));
+
+            PresentEvent present = new PresentEvent();
+            present.begin();
+            int presentResult;
+            synchronized (presentationQueue) {
+                presentResult = vkQueuePresentKHR(presentationQueue, presentInfo);
+            }
+            if (present.shouldCommit()) {
+                present.frameNumber = frameNumber;
+                present.imageIndex = image;
+                present.result = presentResult;
+                present.commit();
+            }
+            if (presentResult == VK_ERROR_OUT_OF_DATE_KHR || presentResult == VK_SUBOPTIMAL_KHR) resizeRequested = true;
             else _CHECK_(presentResult, "Failed to present image!");
-            frameCounter = (frameCounter + 1) % framebuffers.length;
-            // vkDeviceWaitIdle(device);
         }
     }
 
+    private void commitFenceWait(FenceWaitEvent event, int context, String reason) {
+        if (event.shouldCommit()) {
+            event.frameNumber = frameNumber;
+            event.frameContext = context;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    /**
+     * Called for every framebuffer size event. A drag produces a burst of them, so this only flags the swapchain
+     * and the next frame rebuilds it once.
+     */
     @Override
     public void windowResizeUpdate() {
+        resizeRequests++;
+        resizeRequested = true;
+    }
+
+    /**
+     * Replaces the swapchain and the objects that depend on its size. Pipelines use dynamic viewport and scissor and
+     * survive, the frame graph is rebuilt for the new images and pipelines only if the surface format changed. Only
+     * the frames still in flight can use the old swapchain, so we wait for their fences instead of draining the whole
+     * device.
+     */
+    private void recreateSwapchain() {
+        SwapchainRecreateEvent event = new SwapchainRecreateEvent();
+        event.begin();
+        resizeRequested = false;
+        int coalesced = resizeRequests;
+        resizeRequests = 0;
         int[] width = new int[1];
         int[] height = new int[1];
         glfwGetFramebufferSize(glfwWindow, width, height);
@@ -128,43 +351,111 @@ public class Vulkan implements GraphicsProvider {
             glfwGetFramebufferSize(glfwWindow, width, height);
         }
 
-        vkDeviceWaitIdle(device);
-
-        destroySwapchain();
+        FenceWaitEvent wait = new FenceWaitEvent();
+        wait.begin();
+        waitForFrames();
+        commitFenceWait(wait, -1, "all frames");
+        destroyRetiredPipelines(true);
+
+        Swapchain oldSwapchain = swapchain;
+        swapchain = new Swapchain(glfwWindow, gpu, device, surfaceKHR, oldSwapchain);
+        target = swapchain;
+        destroyImageResources();
+        oldSwapchain.destroy(device);
+        graph.destroy();
+        createGraph();
+
+        if (swapchain.getImageFormat() != oldSwapchain.getImageFormat()) {
+            pipeline.destroy(device);
+            pipeline = new Pipeline(device, pipelineCache, graph.renderPass(mainPass), graph.subpass(mainPass), DemoGeometry.PIPELINE_FORMAT, setLayouts, shaders);
+        }
+        createImageResources();
+
+        if (event.shouldCommit()) {
+            event.frameNumber = frameNumber;
+            event.width = swapchain.width();
+            event.height = swapchain.height();
+            event.imageCount = imagesInFlight.length;
+            event.coalescedRequests = coalesced;
+            event.commit();
+        }
+    }
 
-        swapchain = new Swapchain(glfwWindow, gpu, device, surfaceKHR);
-        pipeline = new Pipeline(device, swapchain, shaders);
-        createFramebuffers();
-        createCommandPool();
-        createCommandBuffers();
-        createSyncObjects();
+    private void waitForFrames() {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            LongBuffer pFences = stack.mallocLong(frames.length);
+            for (FrameContext frame : frames) pFences.put(frame.fence);
+            vkWaitForFences(device, pFences.flip(), true, -1);
+        }
     }
 
     public void destroySwapchain() {
-        if (framebuffers != null)
-            for (int i = 0; i < framebuffers.length; i++) {
-                vkDestroySemaphore(device, imageAvailableSemaphore[i], null);
-                vkDestroySemaphore(device, renderFinishedSemaphore[i], null);
-                vkDestroyFence(device, fences[i], null);
-            }
-        if (commandPool != VK_NULL_HANDLE) vkDestroyCommandPool(device, commandPool, null);
-        if (framebuffers != null)
-            for (long framebuffer : framebuffers) {
-                vkDestroyFramebuffer(device, framebuffer, null);
+        if (frames != null)
+            for (FrameContext frame : frames) {
+                frame.destroy(device);
             }
+        destroyImageResources();
+        if (recorder != null) recorder.destroy();
+        if (profiler != null) {
+            if (profiler.isEnabled()) profiler.log();
+            profiler.destroy(device);
+        }
+        // only called with the device idle
+        destroyRetiredPipelines(true);
         if (pipeline != null) pipeline.destroy(device);
-        if (swapchain != null) swapchain.destroy(device);
+        if (graph != null) graph.destroy();
+        if (readback != null) readback.destroy(device);
+        if (target != null) target.destroy(device);
+    }
+
+    /**
+     * Starts handing every rendered frame to the consumer, or stops with null. Frames arrive a few frames late, on
+     * readback worker threads. Only available headless, swapchain images aren't created for copying.
+     */
+    public void captureFrames(FrameConsumer consumer) {
+        if (!(target instanceof OffscreenTarget)) throw new IllegalStateException("Frame capture requires headless mode.");
+        if (readback == null) {
+            if (consumer == null) return;
+            readback = new FrameReadback(device, allocator, gpu.graphicsIndex, target.width(), target.height(),
+                    AtomikVkConfig.READBACK_SLOTS, AtomikVkConfig.READBACK_THREADS);
+        }
+        readback.setConsumer(consumer);
+    }
+
+    /**
+     * @return GPU timings of the frame's scopes
+     */
+    public GpuProfiler getProfiler() {
+        return profiler;
     }
 
     @Override
     public void cleanup() {
+        if (shaderWatcher != null) shaderWatcher.close();
+        List<ShaderResource> unused;
+        while ((unused = shaderReloads.poll()) != null) unused.forEach(ShaderResource::close);
+
         if (device != null) {
             vkDeviceWaitIdle(device);
 
             destroySwapchain();
 
-            if (indexBuffer != null) indexBuffer.free(device);
-            if (vertexBuffer != null) vertexBuffer.free(device);
+            if (geometry != null) geometry.destroy(device);
+            if (instances != null) instances.close();
+            if (descriptorLayouts != null) descriptorLayouts.destroy();
+            if (samplers != null) samplers.destroy();
+            // the texture has to be done loading before the upload services go, and is freed after them
+            Texture texture = demoTexture != null ? demoTexture.join() : null;
+            if (texture != null) texture.streaming.exceptionally(e -> null).join();
+            if (streaming != null && streaming != uploads) streaming.destroy();
+            if (uploads != null) uploads.destroy();
+            if (texture != null) texture.destroy(device, allocator);
+            if (blankTexture != null) blankTexture.destroy(device, allocator);
+            if (allocator != null) allocator.destroy();
+            if (pipelineCache != null) {
+                pipelineCache.save(device);
+                pipelineCache.destroy(device);
+            }
 
             for (var shader : shaders) {
                 shader.close();
@@ -172,13 +463,15 @@ public class Vulkan implements GraphicsProvider {
 
             vkDestroyDevice(device, null);
         }
+        if (gpu != null) gpu.free();
 
         if (surfaceKHR != VK_NULL_HANDLE) vkDestroySurfaceKHR(instance, surfaceKHR, null);
 
-        if (ENABLE_VALIDATION && vkDebugUtilsMessenger != VK_NULL_HANDLE)
+        if (validation && vkDebugUtilsMessenger != VK_NULL_HANDLE)
             EXTDebugUtils.vkDestroyDebugUtilsMessengerEXT(instance, vkDebugUtilsMessenger, null);
 
         if (instance != null) vkDestroyInstance(instance, null);
+        MeshImporter.shutdown();
     }
 
     private void createInstance() {
@@ -204,9 +497,14 @@ public class Vulkan implements GraphicsProvider {
                 AtomikVk.LOGGER.debug(ext.extensionNameString());
             }
 
-            // get required VK extensions
-            PointerBuffer pGLFWVkRequiredExtensions = GLFWVulkan.glfwGetRequiredInstanceExtensions();
-            if (ENABLE_VALIDATION) {
+            // get required VK extensions, none without a window
+            PointerBuffer pGLFWVkRequiredExtensions = headless ? null : GLFWVulkan.glfwGetRequiredInstanceExtensions();
+            // batch machines rarely have the SDK installed, don't refuse to run there
+            validation = ENABLE_VALIDATION && checkValidationLayerSupport();
+            if (ENABLE_VALIDATION && !validation) {
+                AtomikVk.LOGGER.warn("Validation layers requested but not present, running without them");
+            }
+            if (validation) {
                 PointerBuffer pVkRequiredExtensions = stack.mallocPointer(
                         (pGLFWVkRequiredExtensions != null ? pGLFWVkRequiredExtensions.capacity() : 0) + debugExtensions.length);
                 if (pGLFWVkRequiredExtensions != null) {
@@ -224,12 +522,7 @@ public class Vulkan implements GraphicsProvider {
                 pCreateInfo.ppEnabledExtensionNames(pGLFWVkRequiredExtensions);
             }
 
-            // check for validation layers
-            if (ENABLE_VALIDATION && !checkValidationLayerSupport()) {
-                throw new AssertionError("Requested validation layers not present!");
-            }
-
-            if (ENABLE_VALIDATION) {
+            if (validation) {
                 // and enable them
                 PointerBuffer pVkRequiredLayers = stack.mallocPointer(validationLayers.length);
                 for (CharSequence layer : validationLayers) {
@@ -247,7 +540,7 @@ public class Vulkan implements GraphicsProvider {
     }
 
     private void setupDebugMessenger() {
-        if (!ENABLE_VALIDATION) return;
+        if (!validation) return;
         try (MemoryStack stack = MemoryStack.stackPush()) {
             VkDebugUtilsMessengerCreateInfoEXT messengerCreateInfo = VkDebugUtilsMessengerCreateInfoEXT.calloc(stack);
             messengerCreateInfo.sType(VK_STRUCTURE_TYPE_DEBUG_UTILS_MESSENGER_CREATE_INFO_EXT)
@@ -274,9 +567,14 @@ public class Vulkan implements GraphicsProvider {
 
     }
 
-    private void createLogicalDevice() {
+    private void createLogicalDevice(CharSequence[] requiredExtensions) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            VkPhysicalDeviceFeatures features = VkPhysicalDeviceFeatures.calloc(stack);
+            // optional features the renderer makes use of where the device has them
+            VkPhysicalDeviceFeatures features = VkPhysicalDeviceFeatures.calloc(stack)
+                    .multiDrawIndirect(gpu.features.multiDrawIndirect())
+                    .drawIndirectFirstInstance(gpu.features.drawIndirectFirstInstance())
+                    .samplerAnisotropy(gpu.features.samplerAnisotropy())
+                    .textureCompressionBC(gpu.features.textureCompressionBC());
             int queueCount = gpu.getQueueCount();
             VkDeviceQueueCreateInfo.Buffer queueCreateInfos = VkDeviceQueueCreateInfo.calloc(queueCount, stack);
             VkDeviceQueueCreateInfo graphicsQueueInfo = queueCreateInfos.rewind().get();
@@ -291,7 +589,7 @@ public class Vulkan implements GraphicsProvider {
                         .pQueuePriorities(stack.floats(1.0f));
 
             }
-            if (gpu.transferIndex != gpu.graphicsIndex) {
+            if (gpu.transferIndex != gpu.graphicsIndex && gpu.transferIndex != gpu.presentIndex) {
                 var transferQueueInfo = queueCreateInfos.get();
                 transferQueueInfo.sType(VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO)
                         .queueFamilyIndex(gpu.transferIndex)
@@ -299,8 +597,14 @@ public class Vulkan implements GraphicsProvider {
             }
             queueCreateInfos.rewind();
 
-            PointerBuffer ppDeviceExtensionNames = stack.mallocPointer(deviceRequiredExtensions.length);
-            for (CharSequence str : deviceRequiredExtensions) {
+            for (String extension : deviceOptionalExtensions) {
+                if (gpu.supportsExtension(extension)) enabledOptionalExtensions.add(extension);
+            }
+            PointerBuffer ppDeviceExtensionNames = stack.mallocPointer(requiredExtensions.length + enabledOptionalExtensions.size());
+            for (CharSequence str : requiredExtensions) {
+                ppDeviceExtensionNames.put(stack.UTF8(str, true));
+            }
+            for (String str : enabledOptionalExtensions) {
                 ppDeviceExtensionNames.put(stack.UTF8(str, true));
             }
             ppDeviceExtensionNames.rewind();
@@ -331,212 +635,275 @@ public class Vulkan implements GraphicsProvider {
                 presentationQueue = new VkQueue(pPresentQueue.get(0), device);
             } else presentationQueue = graphicsQueue;
 
-            if (gpu.transferIndex != gpu.graphicsIndex) {
+            // queue submission locks on these objects, so families in use twice must share one VkQueue instance
+            if (gpu.transferIndex == gpu.presentIndex) transferQueue = presentationQueue;
+            else if (gpu.transferIndex != gpu.graphicsIndex) {
                 PointerBuffer pTransferQueue = stack.mallocPointer(1);
-                vkGetDeviceQueue(device, gpu.presentIndex, 0, pTransferQueue);
+                vkGetDeviceQueue(device, gpu.transferIndex, 0, pTransferQueue);
                 transferQueue = new VkQueue(pTransferQueue.get(0), device);
             } else transferQueue = graphicsQueue;
         }
     }
 
     private void loadInitialResources() {
-        shaders = new ShaderResource[2];
         ClassLoader loader = AtomikVk.class.getClassLoader();
         try {
-            shaders[0] = new ShaderResource(new File(loader.getResource("shader/triangle.vert").toURI()));
-            shaders[1] = new ShaderResource(new File(loader.getResource("shader/triangle.frag").toURI()));
+            shaders = ShaderResource.loadAll(
+                    new File(loader.getResource("shader/triangle.vert").toURI()),
+                    new File(loader.getResource("shader/triangle.frag").toURI()));
         } catch (URISyntaxException e) {
             throw new ShaderException("Failed to load shader resource", e);
         }
 
     }
 
-    private void createFramebuffers() {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            framebuffers = new long[swapchain.imageViews.size()];
-            for (int i = 0; i < framebuffers.length; i++) {
-                LongBuffer imageView = stack.mallocLong(1).put(swapchain.imageViews.get(i)).rewind();
-                var framebufferInfo = VkFramebufferCreateInfo.calloc(stack)
-                        .sType(VK_STRUCTURE_TYPE_FRAMEBUFFER_CREATE_INFO)
-                        .renderPass(pipeline.getRenderPass())
-                        .attachmentCount(1)
-                        .pAttachments(imageView)
-                        .width(swapchain.width())
-                        .height(swapchain.height())
-                        .layers(1);
-
-                LongBuffer pp_framebuffer = stack.mallocLong(1);
-                _CHECK_(vkCreateFramebuffer(device, framebufferInfo, null, pp_framebuffer), "Failed to create framebuffer on index " + i);
-                framebuffers[i] = pp_framebuffer.get(0);
-            }
+    private void loadTextures() {
+        // white, so the demo geometry shows its own colors until the texture is in
+        blankTexture = textures.solid(0xffffffff);
+        try {
+            Path source = Path.of(AtomikVk.class.getClassLoader().getResource("texture/checker.png").toURI());
+            TextureCache cache = new TextureCache(Path.of(AtomikVkConfig.CACHE_DIRECTORY, "textures"));
+            demoTexture = textures.load(cache, source, true).exceptionally(e -> {
+                AtomikVk.LOGGER.warn("Failed to load the demo texture, drawing without it", e);
+                return null;
+            });
+        } catch (URISyntaxException e) {
+            throw new RuntimeException("Failed to locate texture resource", e);
         }
     }
 
-    private void createCommandPool() {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            var createInfo = VkCommandPoolCreateInfo.calloc(stack)
-                    .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
-                    .queueFamilyIndex(gpu.graphicsIndex);
-            var pp_commandPool = stack.mallocLong(1);
-            _CHECK_(vkCreateCommandPool(device, createInfo, null, pp_commandPool), "Failed to create command pool.");
-            commandPool = pp_commandPool.get(0);
+    private void startShaderWatcher() {
+        try {
+            shaderWatcher = new ShaderWatcher(shaderReloads::add);
+            File[] sources = new File[shaders.length];
+            for (int i = 0; i < shaders.length; i++) sources[i] = shaders[i].source;
+            shaderWatcher.watch(sources);
+        } catch (IOException e) {
+            AtomikVk.LOGGER.warn("Shader hot reload unavailable", e);
         }
     }
 
-    private void createVertexBuffer() {
-        var size = VkVertex.SIZE * VkVertex.VERTICES.length;
-        var stagingBuffer = new GraphicsBuffer(gpu, device, size,
-                VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
-                VK_SHARING_MODE_EXCLUSIVE,
-                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+    /**
+     * Swaps in shaders the watcher recompiled. Only pipelines built from them are rebuilt, and the pipelines they
+     * replace are destroyed once every frame that could still use them has finished, see
+     * {@link #destroyRetiredPipelines()}. A pipeline that fails to build keeps its previous version.
+     */
+    private void applyShaderReloads() {
+        List<ShaderResource> reloaded;
+        while ((reloaded = shaderReloads.poll()) != null) {
+            Map<Path, ShaderResource> bySource = new HashMap<>();
+            for (ShaderResource shader : reloaded) {
+                bySource.put(shader.source.toPath().toAbsolutePath().normalize(), shader);
+            }
+            if (!pipeline.usesAny(bySource.keySet())) {
+                reloaded.forEach(ShaderResource::close);
+                continue;
+            }
+
+            ShaderResource[] updated = shaders.clone();
+            for (int i = 0; i < updated.length; i++) {
+                ShaderResource replacement = bySource.get(updated[i].source.toPath().toAbsolutePath().normalize());
+                if (replacement != null) updated[i] = replacement;
+            }
+            // reloads of sources this pipeline doesn't use, or superseded within the batch, are never swapped in
+            Set<ShaderResource> substituted = Collections.newSetFromMap(new IdentityHashMap<>());
+            substituted.addAll(Arrays.asList(updated));
+            for (ShaderResource shader : reloaded) {
+                if (!substituted.contains(shader)) shader.close();
+            }
+            Pipeline rebuilt;
+            try {
+                rebuilt = new Pipeline(device, pipelineCache, graph.renderPass(mainPass), graph.subpass(mainPass), DemoGeometry.PIPELINE_FORMAT, setLayouts, updated);
+            } catch (RuntimeException e) {
+                AtomikVk.LOGGER.error("Failed to rebuild pipeline, keeping the previous version", e);
+                for (ShaderResource shader : reloaded) {
+                    if (substituted.contains(shader)) shader.close();
+                }
+                continue;
+            }
+            retiredPipelines.add(new RetiredPipeline(pipeline, frameNumber));
+            pipeline = rebuilt;
+            for (ShaderResource shader : shaders) {
+                if (bySource.containsKey(shader.source.toPath().toAbsolutePath().normalize())) shader.close();
+            }
+            shaders = updated;
+        }
+    }
+
+    /**
+     * Every frame waits on the fence of the frame submitted {@code frames.length} frames earlier, so once that
+     * many frames have started since a pipeline was retired, nothing on the GPU can still reference it.
+     */
+    private void destroyRetiredPipelines() {
+        destroyRetiredPipelines(false);
+    }
+
+    /**
+     * @param idle every frame fence is known to be signaled, so all retired pipelines can go
+     */
+    private void destroyRetiredPipelines(boolean idle) {
+        while (!retiredPipelines.isEmpty() && (idle || frameNumber - retiredPipelines.peek().retiredAt() >= frames.length)) {
+            retiredPipelines.poll().pipeline().destroy(device);
+        }
+    }
 
+    /**
+     * Creates what exists once per target image: the fence of the frame using it and, when presenting, the semaphore
+     * presentation waits on.
+     */
+    private void createImageResources() {
+        int imageCount = target.imageCount();
+        renderFinishedSemaphore = swapchain != null ? new long[imageCount] : null;
+        imagesInFlight = new long[imageCount];
+        Arrays.fill(imagesInFlight, VK_NULL_HANDLE);
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            PointerBuffer data = stack.mallocPointer(1);
-            vkMapMemory(device, stagingBuffer.backingMemory, 0, size, 0, data);
-            vertexCopy(data, size);
-            vkUnmapMemory(device, stagingBuffer.backingMemory);
+            var semaphoreCreateInfo = VkSemaphoreCreateInfo.calloc(stack)
+                    .sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+            LongBuffer pointer = stack.mallocLong(1);
+            for (int i = 0; renderFinishedSemaphore != null && i < imageCount; i++) {
+                _CHECK_(vkCreateSemaphore(device, semaphoreCreateInfo, null, pointer), "Failed to create semaphores.");
+                renderFinishedSemaphore[i] = pointer.get(0);
+            }
         }
+    }
 
-        vertexBuffer = new GraphicsBuffer(gpu, device, size,
-                VK_BUFFER_USAGE_VERTEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
-                VK_SHARING_MODE_EXCLUSIVE,
-                VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT
-        );
+    private void destroyImageResources() {
+        if (imagesInFlight == null) return;
+        if (renderFinishedSemaphore != null) {
+            for (long semaphore : renderFinishedSemaphore) vkDestroySemaphore(device, semaphore, null);
+        }
+        renderFinishedSemaphore = null;
+        imagesInFlight = null;
+    }
 
-        copyVkBuffer(stagingBuffer, vertexBuffer, size);
+    private void createFrameContexts() {
+        recorder = new ParallelRecorder(device, AtomikVkConfig.RECORDING_THREADS);
+        profiler = new GpuProfiler(device, gpu, gpu.graphicsIndex, AtomikVkConfig.FRAMES_IN_FLIGHT, AtomikVkConfig.GPU_PROFILER);
+        frames = new FrameContext[AtomikVkConfig.FRAMES_IN_FLIGHT];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new FrameContext(device, allocator, descriptorLayouts, gpu.limits().minUniformBufferOffsetAlignment(), gpu.graphicsIndex, i, AtomikVkConfig.FRAME_TRANSIENT_BUFFER_SIZE, recorder.workerCount);
+        }
+    }
 
-        stagingBuffer.free(device);
+    private void createGeometry() {
+        geometry = new GeometryArena(device, allocator, gpu, DemoGeometry.FORMAT, DemoGeometry.INDEX_TYPE,
+                AtomikVkConfig.GEOMETRY_ARENA_VERTICES, AtomikVkConfig.GEOMETRY_ARENA_INDICES);
+        try (VertexBuilder vertices = DemoGeometry.vertices(); MemoryStack stack = MemoryStack.stackPush()) {
+            ByteBuffer indices = stack.malloc(DemoGeometry.INDEX_TYPE.size * DemoGeometry.INDICES.length);
+            DemoGeometry.indexCopy(indices);
+            var mesh = geometry.add(uploads, vertices, indices.flip(), DemoGeometry.INDEX_TYPE, DemoGeometry.INDICES.length);
+            instances = new InstanceList(DemoGeometry.INSTANCE_FORMAT, 1);
+            instances.add(1);
+            instances.set(0, 2, 0f, 0f, 1f).set(0, 3, 1f, 1f, 1f);
+            demoDraw = geometry.addDraw(mesh.parts().get(0), instances.size(), 0);
+        }
+        loadDemoMesh();
+    }
 
+    /**
+     * Imports the hexagon in the middle of the scene through the mesh cache and decompresses it straight into the
+     * arena's staging memory. Drawn as the first instance, it stays put however the instance list changes.
+     */
+    private void loadDemoMesh() {
+        MeshImporter importer = new MeshImporter(DemoGeometry.FORMAT)
+                .bind(0, MeshImporter.Semantic.POSITION)
+                .bind(1, MeshImporter.Semantic.COLOR);
+        try {
+            Path source = Path.of(AtomikVk.class.getClassLoader().getResource("mesh/hexagon.obj").toURI());
+            MeshFile file = new MeshCache(Path.of(AtomikVkConfig.CACHE_DIRECTORY, "meshes")).load(source, importer);
+            for (GeometryArena.Part part : geometry.add(uploads, file).parts()) geometry.addDraw(part, 1, 0);
+        } catch (URISyntaxException | IOException e) {
+            AtomikVk.LOGGER.warn("Failed to load the demo mesh, drawing without it", e);
+        }
     }
 
-    private void copyVkBuffer(GraphicsBuffer src, GraphicsBuffer dst, long size) {
+    private void recordCommandBuffer(FrameContext frame, int image) {
+        VkCommandBuffer commandBuffer = frame.commandBuffer;
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            var allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
-                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
-                    .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
-                    .commandPool(commandPool)
-                    .commandBufferCount(1);
-            var pCmdCopyBuffer = stack.mallocPointer(1);
-            _CHECK_(vkAllocateCommandBuffers(device, allocInfo, pCmdCopyBuffer), "Failed to create copy command buffer");
-            var cmdCopyBuffer = new VkCommandBuffer(pCmdCopyBuffer.get(0), device);
-
             var beginInfo = VkCommandBufferBeginInfo.calloc(stack)
                     .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
                     .flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT);
-            vkBeginCommandBuffer(cmdCopyBuffer,beginInfo);
-
-            var copyRegion = VkBufferCopy.calloc(1,stack)
-                    .srcOffset(0)
-                    .dstOffset(0)
-                    .size(size);
-
-            vkCmdCopyBuffer(cmdCopyBuffer, src.buffer, dst.buffer, copyRegion);
-            vkEndCommandBuffer(cmdCopyBuffer);
 
-            var submitInfo = VkSubmitInfo.calloc(stack)
-                    .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
-                    .pCommandBuffers(pCmdCopyBuffer);
-
-            _CHECK_(vkQueueSubmit(graphicsQueue, submitInfo,VK_NULL_HANDLE), "Could not submit copy command");
-            vkQueueWaitIdle(graphicsQueue);
+            _CHECK_(vkBeginCommandBuffer(commandBuffer, beginInfo), "Failed to begin recording command buffer for frame " + frame.index);
+            profiler.beginFrame(commandBuffer, frame.index);
 
-            vkFreeCommandBuffers(device, commandPool,pCmdCopyBuffer);
+            graph.bind(targetImage, target.image(image), target.imageView(image));
+            graph.execute(frame, recorder, profiler);
+            _CHECK_(vkEndCommandBuffer(commandBuffer), "Failed to record command buffer for frame " + frame.index);
         }
     }
 
-    private void createIndexBuffer() {
-        var size = 2 * VkVertex.INDICES.length; // short
-
-        var stagingBuffer = new GraphicsBuffer(gpu, device, size,
-                VK_BUFFER_USAGE_TRANSFER_SRC_BIT,
-                VK_SHARING_MODE_EXCLUSIVE,
-                VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+    /**
+     * Writes everything the GPU reads this frame into the frame's transient buffer.
+     */
+    private SceneData writeScene(FrameContext frame) {
+        // xy scale and zw offset of the whole scene
+        long view = frame.allocateUniform(4 * Float.BYTES);
+        long address = frame.transientAddress(view);
+        MemoryUtil.memPutFloat(address, 1f);
+        MemoryUtil.memPutFloat(address + 4, 1f);
+        MemoryUtil.memPutFloat(address + 8, 0f);
+        MemoryUtil.memPutFloat(address + 12, 0f);
+        long instanceOffset = instances.write(frame);
+        geometry.setInstances(demoDraw, instances.size(), 0);
+        return new SceneData(view, writeTextureSet(frame), instanceOffset, geometry.writeCommands(frame));
+    }
 
+    /**
+     * @return a set from the frame's pools sampling the demo texture's resident levels, or the blank texture until
+     * it has any
+     */
+    private long writeTextureSet(FrameContext frame) {
+        Texture texture = demoTexture.getNow(null);
+        long view = texture != null ? texture.residentView(streaming) : VK_NULL_HANDLE;
+        // flushed to the graphics queue ahead of the first frame, so it is always safe to sample
+        if (view == VK_NULL_HANDLE) view = blankTexture.view;
+        long set = frame.descriptors.allocate(setLayouts[1]);
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            PointerBuffer data = stack.mallocPointer(1);
-            vkMapMemory(device, stagingBuffer.backingMemory, 0, size, 0, data);
-            indexCopy(data, size);
-            vkUnmapMemory(device, stagingBuffer.backingMemory);
+            var imageInfo = VkDescriptorImageInfo.calloc(1, stack)
+                    .sampler(samplers.get(SamplerCache.Settings.LINEAR_REPEAT))
+                    .imageView(view)
+                    .imageLayout(VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+            var write = VkWriteDescriptorSet.calloc(1, stack)
+                    .sType(VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET)
+                    .dstSet(set)
+                    .dstBinding(TEXTURE_BINDING.binding())
+                    .descriptorType(TEXTURE_BINDING.type())
+                    .descriptorCount(1)
+                    .pImageInfo(imageInfo);
+            vkUpdateDescriptorSets(device, write, null);
         }
-
-        indexBuffer = new GraphicsBuffer(gpu, device, size,
-                VK_BUFFER_USAGE_INDEX_BUFFER_BIT | VK_BUFFER_USAGE_TRANSFER_DST_BIT,
-                VK_SHARING_MODE_EXCLUSIVE,
-                VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT
-        );
-
-        copyVkBuffer(stagingBuffer, indexBuffer, size);
-
-        stagingBuffer.free(device);
+        return set;
     }
 
-    private void createCommandBuffers() {
-        commandBuffers = new VkCommandBuffer[framebuffers.length];
+    /**
+     * Records a range of the scene's draws. Runs on the recording workers, each range into its own command buffer,
+     * so all state is set again every time.
+     */
+    private void recordDraws(VkCommandBuffer commandBuffer, FrameContext frame, SceneData scene, int first, int count) {
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            var allocInfo = VkCommandBufferAllocateInfo.calloc(stack)
-                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
-                    .commandPool(commandPool)
-                    .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
-                    .commandBufferCount(commandBuffers.length);
-            var p_buffers = stack.mallocPointer(commandBuffers.length);
-            _CHECK_(vkAllocateCommandBuffers(device, allocInfo, p_buffers), "Failed to allocate command buffers.");
-            for (int i = 0; i < commandBuffers.length; i++) {
-                commandBuffers[i] = new VkCommandBuffer(p_buffers.get(i), device);
-
-                var beginInfo = VkCommandBufferBeginInfo.calloc(stack)
-                        .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
-
-                _CHECK_(vkBeginCommandBuffer(commandBuffers[i], beginInfo), "Failed to begin recording command buffer at index " + i);
-
-                var renderPassInfo = VkRenderPassBeginInfo.calloc(stack)
-                        .sType(VK_STRUCTURE_TYPE_RENDER_PASS_BEGIN_INFO)
-                        .renderPass(pipeline.getRenderPass())
-                        .framebuffer(framebuffers[i]);
-                renderPassInfo.renderArea().offset().set(0, 0);
-                renderPassInfo.renderArea().extent(swapchain.getExtent());
-
-                var clearColor = VkClearValue.calloc(1, stack);
-                clearColor.color().float32(0, 0f)
-                        .float32(1, 0f)
-                        .float32(2, 0f)
-                        .float32(3, 1f);
-
-                renderPassInfo.clearValueCount(1)
-                        .pClearValues(clearColor);
-
-                vkCmdBeginRenderPass(commandBuffers[i], renderPassInfo, VK_SUBPASS_CONTENTS_INLINE);
-                vkCmdBindPipeline(commandBuffers[i], VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline.p_pipeline);
-                vkCmdBindVertexBuffers(commandBuffers[i], 0, new long[]{vertexBuffer.buffer}, new long[]{0});
-                vkCmdBindIndexBuffer(commandBuffers[i], indexBuffer.buffer, 0, VK_INDEX_TYPE_UINT16);
-                vkCmdDrawIndexed(commandBuffers[i], VkVertex.INDICES.length, 1, 0, 0, 0);
-                vkCmdEndRenderPass(commandBuffers[i]);
-                _CHECK_(vkEndCommandBuffer(commandBuffers[i]), "Failed to record command buffer at index " + i);
-            }
+            vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline.p_pipeline);
+            var viewport = VkViewport.calloc(1, stack)
+                    .x(0.0f).y(0.0f)
+                    .width((float) target.width())
+                    .height((float) target.height())
+                    .minDepth(0.0f).maxDepth(1.0f);
+            vkCmdSetViewport(commandBuffer, 0, viewport);
+            var scissor = VkRect2D.calloc(1, stack)
+                    .extent(target.getExtent());
+            vkCmdSetScissor(commandBuffer, 0, scissor);
+            vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipeline.p_pipelineLayout, 0,
+                    stack.longs(frame.uniformSet, scene.textureSet), stack.ints((int) scene.uniformOffset));
+            geometry.bind(commandBuffer);
+            vkCmdBindVertexBuffers(commandBuffer, geometry.format.bindingCount(), stack.longs(frame.transientBuffer.buffer), stack.longs(scene.instanceOffset));
+            scene.commands.record(commandBuffer, first, count);
         }
     }
 
-    private void createSyncObjects() {
-        imageAvailableSemaphore = new long[framebuffers.length];
-        renderFinishedSemaphore = new long[framebuffers.length];
-        fences = new long[framebuffers.length];
-        imagesInFlight = new long[framebuffers.length];
-        Arrays.fill(imagesInFlight, VK_NULL_HANDLE);
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            var semaphoreCreateInfo = VkSemaphoreCreateInfo.calloc(stack)
-                    .sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
-            var fenceCreateInfo = VkFenceCreateInfo.calloc(stack)
-                    .sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO)
-                    .flags(VK_FENCE_CREATE_SIGNALED_BIT);
-            LongBuffer pointer = stack.mallocLong(1);
-            for (int i = 0; i < framebuffers.length; i++) {
-                _CHECK_(vkCreateSemaphore(device, semaphoreCreateInfo, null, pointer.rewind()), "Failed to create semaphores.");
-                imageAvailableSemaphore[i] = pointer.get(0);
-                _CHECK_(vkCreateSemaphore(device, semaphoreCreateInfo, null, pointer.rewind()), "Failed to create semaphores.");
-                renderFinishedSemaphore[i] = pointer.get(0);
-                _CHECK_(vkCreateFence(device, fenceCreateInfo, null, pointer.rewind()), "Failed to create fence.");
-                fences[i] = pointer.get(0);
-            }
-        }
+    private record RetiredPipeline(Pipeline pipeline, long retiredAt) {
+    }
+
+    private record SceneData(long uniformOffset, long textureSet, long instanceOffset, GeometryArena.Commands commands) {
     }
 
     @SuppressWarnings("unused")
@@ -574,25 +941,6 @@ public class Vulkan implements GraphicsProvider {
         }
     }
 
-    private void vertexCopy(PointerBuffer dest, long size) {
-        var buffer = dest.getByteBuffer(0, (int) size);
-        for (var v : VkVertex.VERTICES) {
-            buffer.putFloat(v.pos().x());
-            buffer.putFloat(v.pos().y());
-
-            buffer.putFloat(v.color().x());
-            buffer.putFloat(v.color().y());
-            buffer.putFloat(v.color().z());
-        }
-    }
-
-    private void indexCopy(PointerBuffer dest, long size) {
-        var buffer = dest.getByteBuffer(0, (int) size);
-        for (var i: VkVertex.INDICES) {
-            buffer.putShort(i);
-        }
-    }
-
     public static void _CHECK_(int vkRet, String msg) {
         if (vkRet != VK_SUCCESS) {
             throw new RuntimeException(msg + " : " + translateVulkanResult(vkRet));
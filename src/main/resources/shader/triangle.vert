@@ -1,4 +1,4 @@
-#version 410
+#version 450
 
 /* vec2 positions[3] = vec2[](
   vec2(0.0, -0.5),
@@ -13,10 +13,22 @@ vec3 colors[3] = vec3[](
 
 layout(location = 0) in vec2 inPosition;
 layout(location = 1) in vec3 inColor;
+// per instance
+layout(location = 2) in vec3 inOffsetScale;
+layout(location = 3) in vec3 inTint;
+
+layout(set = 0, binding = 0) uniform Frame {
+    // xy scale and zw offset of the whole scene
+    vec4 view;
+};
 
 layout(location = 0) out vec3 fragColor;
+layout(location = 1) out vec2 fragTexCoord;
 
 void main() {
-    gl_Position = vec4(inPosition, 0.0, 1.0);
-    fragColor = inColor;
+    vec2 position = inPosition * inOffsetScale.z + inOffsetScale.xy;
+    gl_Position = vec4(position * view.xy + view.zw, 0.0, 1.0);
+    fragColor = inColor * inTint;
+    // the demo geometry has no texture coordinates, so the texture is laid over it in object space
+    fragTexCoord = inPosition * 2.0;
 }